@@ -0,0 +1,268 @@
+/**
+ * Admission controller for vCenter clone and power operations - adapts the number of operations in flight
+ * between a floor and ceiling with an AIMD policy, backing off on task queueing, latency growth and errors
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ *          The above copyright notice and this permission notice shall be
+ *          included in all copies or substantial portions of the Software.
+ *
+ *          THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *          EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ *          OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *          NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *          HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *          WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ *          FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ *          OTHER DEALINGS IN THE SOFTWARE.
+ */
+package vappdeployer;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import com.vmware.vim25.TaskInfo;
+import com.vmware.vim25.TaskInfoState;
+
+public class AdmissionController
+{
+    // Concurrency control modes
+    static final String CONCURRENCY_FIXED = "fixed";
+    static final String CONCURRENCY_ADAPTIVE = "adaptive";
+
+    // Task queued on vCenter for longer than this counts as congestion
+    private static final long QUEUED_THRESHOLD_MS = 1000;
+    // Smoothed operation latency over this multiple of its best smoothed latency counts as congestion
+    private static final double LATENCY_FACTOR = 2.0;
+    private static final int MIN_LATENCY_SAMPLES = 5;
+    private static final double EWMA_WEIGHT = 0.2;
+    // Multiplicative decrease
+    private static final double DECREASE_FACTOR = 0.5;
+
+    private final boolean adaptive;
+    private final Executor executor;
+    private final EventLog events;
+    private final Queue<CompletableFuture<Void>> waiters = new ArrayDeque<CompletableFuture<Void>>();
+    private final int floor;
+    private final int ceiling;
+
+    private int limit;
+    private int inFlight = 0;
+    private boolean slowStart = true;
+    private double increaseCredit = 0;
+    // Completions to wait for after a decrease, so tasks admitted before it do not trigger another one
+    private int decreaseHoldoff = 0;
+    private int decreases = 0;
+    private int minLimitSeen;
+    private int maxLimitSeen;
+
+    // Operation -> smoothed latency, best smoothed latency and sample count
+    private final Map<String, double[]> latencyStats = new HashMap<String, double[]>();
+
+    // Time weighted limit, to report what the controller settled on
+    private final long startTime = System.currentTimeMillis();
+    private long lastChangeTime = startTime;
+    private double limitTimeSum = 0;
+
+    /**
+     * Constructor, fixed mode does not limit admission at all. Limit changes are published to the event log
+     */
+    public
+    AdmissionController(String mode, int floor, int ceiling, Executor executor, EventLog events)
+    {
+        if (!isValidMode(mode)) {
+            throw new IllegalArgumentException("Unknown concurrency mode: " + mode);
+        }
+        this.adaptive = mode.equals(CONCURRENCY_ADAPTIVE);
+        this.executor = executor;
+        this.events = events;
+        this.floor = Math.max(1, floor);
+        this.ceiling = Math.max(this.floor, ceiling);
+        this.limit = this.floor;
+        this.minLimitSeen = limit;
+        this.maxLimitSeen = limit;
+    }
+
+    static boolean
+    isValidMode(String mode)
+    {
+        return mode.equals(CONCURRENCY_FIXED) || mode.equals(CONCURRENCY_ADAPTIVE);
+    }
+
+    /**
+     * Future completes once another operation may be started
+     */
+    public synchronized CompletableFuture<Void>
+    acquire()
+    {
+        if (!adaptive) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        if (inFlight < limit && waiters.isEmpty()) {
+            inFlight++;
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> waiter = new CompletableFuture<Void>();
+        waiters.add(waiter);
+        return waiter;
+    }
+
+    /**
+     * Give back the slot taken through acquire
+     */
+    public synchronized void
+    release()
+    {
+        if (!adaptive) {
+            return;
+        }
+        inFlight--;
+        admitWaiters();
+    }
+
+    /**
+     * Hand free slots to waiting operations, completed on the executor so their continuations do not run
+     * under this lock
+     */
+    private void
+    admitWaiters()
+    {
+        while (inFlight < limit && !waiters.isEmpty()) {
+            final CompletableFuture<Void> waiter = waiters.poll();
+            inFlight++;
+            executor.execute(new Runnable() {
+                @Override
+                public void
+                run()
+                {
+                    waiter.complete(null);
+                }
+            });
+        }
+    }
+
+    /**
+     * Feed back a completed task - time the caller waited for it and its final TaskInfo
+     */
+    public synchronized void
+    onTaskComplete(String operation, long waitMs, TaskInfo taskInfo)
+    {
+        if (!adaptive) {
+            return;
+        }
+
+        String congestion = null;
+
+        if (!TaskInfoState.success.equals(taskInfo.getState())) {
+            congestion = operation + " task failed";
+        }
+
+        long queuedMs = queuedMs(taskInfo);
+        if (congestion == null && queuedMs > QUEUED_THRESHOLD_MS) {
+            congestion = operation + " task queued " + queuedMs + " ms";
+        }
+
+        double[] stats = latencyStats.get(operation);
+        if (stats == null) {
+            stats = new double[] { waitMs, waitMs, 0 };
+            latencyStats.put(operation, stats);
+        }
+        stats[0] = stats[0] * (1 - EWMA_WEIGHT) + waitMs * EWMA_WEIGHT;
+        stats[2]++;
+
+        if (stats[2] >= MIN_LATENCY_SAMPLES) {
+            // Smoothed latency, so a single slow task does not count as congestion
+            if (congestion == null && stats[0] > stats[1] * LATENCY_FACTOR && stats[1] > 0) {
+                congestion = operation + " latency " + Math.round(stats[0]) + " ms over best " + Math.round(stats[1])
+                    + " ms";
+            }
+            stats[1] = Math.min(stats[1], stats[0]);
+        }
+
+        if (decreaseHoldoff > 0) {
+            decreaseHoldoff--;
+            return;
+        }
+
+        if (congestion != null) {
+            setLimit(Math.max(floor, (int) (limit * DECREASE_FACTOR)), congestion);
+            slowStart = false;
+            increaseCredit = 0;
+            decreases++;
+            decreaseHoldoff = inFlight;
+        } else if (slowStart) {
+            // Until the first sign of congestion, grow by one per completion (doubling every round trip)
+            setLimit(Math.min(ceiling, limit + 1), "slow start");
+        } else {
+            // Additive increase, one more slot per limit completions
+            increaseCredit += 1.0 / limit;
+            if (increaseCredit >= 1) {
+                increaseCredit = 0;
+                setLimit(Math.min(ceiling, limit + 1), "additive increase");
+            }
+        }
+    }
+
+    /**
+     * Publish the limit the controller settled on, before the event log is closed
+     */
+    public synchronized void
+    printSummary()
+    {
+        if (!adaptive) {
+            return;
+        }
+        setLimit(limit, null);
+        long elapsedMs = Math.max(1, System.currentTimeMillis() - startTime);
+
+        events.notice("Adaptive concurrency settled at " + limit + " in-flight operations (time weighted average "
+            + String.format("%.1f", limitTimeSum / elapsedMs) + ", range " + minLimitSeen + ".." + maxLimitSeen
+            + ", floor " + floor + ", ceiling " + ceiling + ", " + decreases + " decreases)");
+    }
+
+    private void
+    setLimit(int newLimit, String reason)
+    {
+        long now = System.currentTimeMillis();
+        limitTimeSum += (double) limit * (now - lastChangeTime);
+        lastChangeTime = now;
+
+        if (newLimit != limit) {
+            events.notice("[Adaptive] concurrency limit " + limit + " -> " + newLimit + " (" + reason + ")");
+            limit = newLimit;
+            minLimitSeen = Math.min(minLimitSeen, limit);
+            maxLimitSeen = Math.max(maxLimitSeen, limit);
+            admitWaiters();
+        }
+    }
+
+    /**
+     * Time the task spent queued on vCenter before it started running, 0 if not known
+     */
+    private static long
+    queuedMs(TaskInfo taskInfo)
+    {
+        if (taskInfo.getQueueTime() == null || taskInfo.getStartTime() == null) {
+            return 0;
+        }
+        return Math.max(0, taskInfo.getStartTime().getTimeInMillis() - taskInfo.getQueueTime().getTimeInMillis());
+    }
+
+    public boolean
+    isAdaptive()
+    {
+        return adaptive;
+    }
+
+} // End of admission controller class
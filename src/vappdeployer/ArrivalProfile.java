@@ -0,0 +1,120 @@
+/**
+ * Arrival rate profile of an open loop run - constant rate, steps and linear ramps, in lifecycles per minute.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ *          The above copyright notice and this permission notice shall be
+ *          included in all copies or substantial portions of the Software.
+ *
+ *          THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *          EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ *          OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *          NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *          HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *          WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ *          FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ *          OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package vappdeployer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ArrivalProfile
+{
+    // Segments as { start offset ms, duration ms, rate at start, rate at end }
+    private final List<double[]> segments = new ArrayList<double[]>();
+    private long totalDurationMs = 0L;
+
+    private
+    ArrivalProfile()
+    {
+    }
+
+    /**
+     * Constant rate for the given number of seconds
+     */
+    public static ArrivalProfile
+    constant(double ratePerMinute, long durationSeconds)
+    {
+        ArrivalProfile profile = new ArrivalProfile();
+        profile.addSegment(ratePerMinute, ratePerMinute, durationSeconds);
+        return profile;
+    }
+
+    /**
+     * Parse a profile of comma separated segments, each <rate>@<seconds> for a step or <from>-<to>@<seconds>
+     * for a linear ramp, rates per minute. E.g. "10-60@300,60@600,120@300"
+     */
+    public static ArrivalProfile
+    parse(String profileSpec)
+    {
+        ArrivalProfile profile = new ArrivalProfile();
+
+        for (String segmentSpec : profileSpec.split(",")) {
+            String[] rateDuration = segmentSpec.trim().split("@");
+
+            if (rateDuration.length != 2) {
+                throw new IllegalArgumentException("Invalid rate profile segment: " + segmentSpec
+                    + ", expected <rate>@<seconds> or <from>-<to>@<seconds>");
+            }
+            String[] rates = rateDuration[0].split("-");
+            double fromRate = Double.parseDouble(rates[0]);
+            double toRate = rates.length > 1 ? Double.parseDouble(rates[1]) : fromRate;
+            profile.addSegment(fromRate, toRate, Long.parseLong(rateDuration[1]));
+        }
+        return profile;
+    }
+
+    private void
+    addSegment(double fromRate, double toRate, long durationSeconds)
+    {
+        if (fromRate < 0 || toRate < 0 || durationSeconds <= 0) {
+            throw new IllegalArgumentException("Rates can not be negative and durations have to be positive");
+        }
+        segments.add(new double[] { totalDurationMs, durationSeconds * 1000.0, fromRate, toRate });
+        totalDurationMs += durationSeconds * 1000L;
+    }
+
+    /**
+     * Target rate (per minute) at the offset from the start of the run, -1 once the profile is over
+     */
+    public double
+    rateAt(double offsetMs)
+    {
+        for (double[] segment : segments) {
+            if (offsetMs < segment[0] + segment[1]) {
+                return segment[2] + (segment[3] - segment[2]) * (offsetMs - segment[0]) / segment[1];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Number of arrivals the profile asks for
+     */
+    public double
+    getExpectedArrivals()
+    {
+        double arrivals = 0;
+
+        for (double[] segment : segments) {
+            arrivals += (segment[2] + segment[3]) / 2 * segment[1] / 60000.0;
+        }
+        return arrivals;
+    }
+
+    public long
+    getDurationMs()
+    {
+        return totalDurationMs;
+    }
+
+} // End of arrival profile class
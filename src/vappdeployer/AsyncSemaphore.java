@@ -0,0 +1,105 @@
+/**
+ * Non-blocking counting semaphore - acquire returns a future that completes once a permit is granted,
+ * so waiting lifecycles do not hold a thread
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ *          The above copyright notice and this permission notice shall be
+ *          included in all copies or substantial portions of the Software.
+ *
+ *          THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *          EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ *          OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *          NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *          HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *          WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ *          FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ *          OTHER DEALINGS IN THE SOFTWARE.
+ */
+package vappdeployer;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+public class AsyncSemaphore
+{
+    private int permits;
+    private final Executor executor;
+    private final Queue<CompletableFuture<Void>> waiters = new ArrayDeque<CompletableFuture<Void>>();
+
+    /**
+     * Constructor, granted waiters are completed on the executor so their continuations do not run on
+     * the releasing thread
+     */
+    public
+    AsyncSemaphore(int permits, Executor executor)
+    {
+        this.permits = permits;
+        this.executor = executor;
+    }
+
+    /**
+     * Future completes once a permit is granted, waiters are served in order
+     */
+    public CompletableFuture<Void>
+    acquire()
+    {
+        synchronized (this) {
+            if (permits > 0 && waiters.isEmpty()) {
+                permits--;
+                return CompletableFuture.completedFuture(null);
+            }
+            CompletableFuture<Void> waiter = new CompletableFuture<Void>();
+            waiters.add(waiter);
+            return waiter;
+        }
+    }
+
+    /**
+     * Take a permit only if one is free right now, without queueing
+     */
+    public synchronized boolean
+    tryAcquire()
+    {
+        if (permits > 0 && waiters.isEmpty()) {
+            permits--;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Give back a permit, handing it straight to the longest waiter if there is one
+     */
+    public void
+    release()
+    {
+        final CompletableFuture<Void> nextWaiter;
+
+        synchronized (this) {
+            nextWaiter = waiters.poll();
+            if (nextWaiter == null) {
+                permits++;
+                return;
+            }
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void
+            run()
+            {
+                nextWaiter.complete(null);
+            }
+        });
+    }
+
+} // End of async semaphore class
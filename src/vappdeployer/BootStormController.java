@@ -0,0 +1,426 @@
+/**
+ * Power on controller - queues the VMs of all vApps waiting to power on and submits them in batches of multi-VM
+ * power on tasks, within a global and a per datastore cap on VMs booting at once, optionally ramped up.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ *          The above copyright notice and this permission notice shall be
+ *          included in all copies or substantial portions of the Software.
+ *
+ *          THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *          EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ *          OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *          NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *          HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *          WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ *          FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ *          OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package vappdeployer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.TaskInfo;
+import com.vmware.vim25.TaskInfoState;
+
+public class BootStormController
+{
+    // Operation name of batch power on tasks, for task wait metrics and adaptive admission
+    private static final String OPERATION = "PowerOn VM";
+    // Re-check for room to boot this often while the ramp holds back queued VMs
+    private static final long RAMP_TICK_MS = 1000;
+
+    private final VSphereBackend backend;
+    private final DeploymentScheduler scheduler;
+    private final AdmissionController admission;
+    private final PhaseDeadlines deadlines;
+    private final PhaseMetrics metrics;
+    private final EventLog events;
+
+    // VMs per power on task, 0 for one task per vApp; caps of VMs booting at once, 0 for unlimited
+    private final int batchSize;
+    private final long windowMs;
+    private final int maxBoots;
+    private final int maxDatastoreBoots;
+    private final long rampMs;
+    private final long holdMs;
+
+    // Waiting vApps in arrival order, VMs booting in all and per datastore MOR value
+    private final LinkedList<BootRequest> queue = new LinkedList<BootRequest>();
+    private final Map<String, Integer> datastoreBoots = new HashMap<String, Integer>();
+    private int boots = 0;
+    private long firstBootTime = 0;
+    private boolean dispatchScheduled = false;
+
+    // Batch statistics
+    private int batches = 0;
+    private int failedBatches = 0;
+    private int bootedVms = 0;
+    private int maxBatchSeen = 0;
+    private int peakBoots = 0;
+
+    /**
+     * VMs of one vApp to power on, possibly split over several batches
+     */
+    class BootRequest
+    {
+        final ManagedObjectReference dcMor;
+        final String datastoreKey;
+        final String host;
+        final int iteration;
+        final LinkedList<ManagedObjectReference> waitingVms;
+        final int vmCount;
+        final long queuedTime = System.currentTimeMillis();
+        final CompletableFuture<Boolean> done = new CompletableFuture<Boolean>();
+        int completedVms = 0;
+        boolean failed = false;
+
+        BootRequest(ManagedObjectReference dcMor, ManagedObjectReference dsMor, String host, int iteration,
+            List<ManagedObjectReference> vmMors)
+        {
+            this.dcMor = dcMor;
+            this.datastoreKey = dsMor == null ? null : dsMor.getVal();
+            this.host = host;
+            this.iteration = iteration;
+            this.waitingVms = new LinkedList<ManagedObjectReference>(vmMors);
+            this.vmCount = vmMors.size();
+        }
+    }
+
+    /**
+     * VMs of one power on task, and how many of them came from each vApp
+     */
+    class BootBatch
+    {
+        final ManagedObjectReference dcMor;
+        final List<ManagedObjectReference> vmMors = new ArrayList<ManagedObjectReference>();
+        final Map<BootRequest, Integer> requestVms = new HashMap<BootRequest, Integer>();
+        final Map<String, Integer> datastoreVms = new HashMap<String, Integer>();
+        int batchNo;
+
+        BootBatch(ManagedObjectReference dcMor)
+        {
+            this.dcMor = dcMor;
+        }
+    }
+
+    /**
+     * Constructor
+     */
+    public
+    BootStormController(VSphereBackend backend, DeploymentScheduler scheduler, AdmissionController admission,
+        PhaseDeadlines deadlines, PhaseMetrics metrics, EventLog events, int batchSize, long windowMs, int maxBoots,
+        int maxDatastoreBoots, long rampMs, long holdMs)
+    {
+        this.backend = backend;
+        this.scheduler = scheduler;
+        this.admission = admission;
+        this.deadlines = deadlines;
+        this.metrics = metrics;
+        this.events = events;
+        this.batchSize = batchSize;
+        this.windowMs = windowMs;
+        this.maxBoots = maxBoots;
+        this.maxDatastoreBoots = maxDatastoreBoots;
+        this.rampMs = rampMs;
+        this.holdMs = holdMs;
+    }
+
+    /**
+     * Queue the VMs of a vApp on the datastore (null if not known) for power on. The future completes with whether
+     * every batch they went out in succeeded
+     */
+    public CompletableFuture<Boolean>
+    powerOn(ManagedObjectReference dcMor, ManagedObjectReference dsMor, String host, int iteration,
+        List<ManagedObjectReference> vmMors)
+    {
+        BootRequest request = new BootRequest(dcMor, dsMor, host, iteration, vmMors);
+
+        if (vmMors.isEmpty()) {
+            request.done.complete(Boolean.TRUE);
+            return request.done;
+        }
+        synchronized (this) {
+            queue.add(request);
+        }
+        dispatch();
+        return request.done;
+    }
+
+    /**
+     * Global cap on VMs booting at once, raised linearly from 1 to the max over the ramp
+     */
+    private int
+    currentCap(long now)
+    {
+        if (maxBoots <= 0 || rampMs <= 0 || firstBootTime == 0 || now - firstBootTime >= rampMs) {
+            return maxBoots;
+        }
+        return Math.max(1, (int) Math.ceil((double) maxBoots * (now - firstBootTime) / rampMs));
+    }
+
+    /**
+     * Form and submit batches while there are queued VMs and room to boot them. A batch that is not full waits for
+     * more VMs until its oldest vApp has waited the batching window
+     */
+    private void
+    dispatch()
+    {
+        List<BootBatch> readyBatches = new ArrayList<BootBatch>();
+        long retryDelayMs = -1;
+
+        synchronized (this) {
+            while (!queue.isEmpty()) {
+                long now = System.currentTimeMillis();
+
+                if (batchSize > 0 && queuedVms() < batchSize && now - queue.getFirst().queuedTime < windowMs) {
+                    retryDelayMs = queue.getFirst().queuedTime + windowMs - now;
+                    break;
+                }
+                if (firstBootTime == 0) {
+                    firstBootTime = now;
+                }
+                int cap = currentCap(now);
+                int room = cap <= 0 ? Integer.MAX_VALUE : cap - boots;
+
+                BootBatch batch = room > 0 ? formBatch(room) : null;
+                if (batch == null) {
+                    // Held back by the ramp - look again once it allows more, otherwise a completion dispatches
+                    if (cap < maxBoots) {
+                        retryDelayMs = RAMP_TICK_MS;
+                    }
+                    break;
+                }
+                batch.batchNo = ++batches;
+                boots += batch.vmMors.size();
+                peakBoots = Math.max(peakBoots, boots);
+                maxBatchSeen = Math.max(maxBatchSeen, batch.vmMors.size());
+                readyBatches.add(batch);
+            }
+
+            if (retryDelayMs >= 0 && !dispatchScheduled) {
+                dispatchScheduled = true;
+            } else {
+                retryDelayMs = -1;
+            }
+        }
+
+        for (BootBatch batch : readyBatches) {
+            submit(batch);
+        }
+
+        if (retryDelayMs >= 0) {
+            scheduler.delay(retryDelayMs).thenRunAsync(new Runnable() {
+                @Override
+                public void
+                run()
+                {
+                    synchronized (BootStormController.this) {
+                        dispatchScheduled = false;
+                    }
+                    dispatch();
+                }
+            }, scheduler.getExecutor());
+        }
+    }
+
+    private int
+    queuedVms()
+    {
+        int count = 0;
+
+        for (BootRequest request : queue) {
+            count += request.waitingVms.size();
+        }
+        return count;
+    }
+
+    /**
+     * Take up to room VMs, oldest vApps first, from one datacenter and within the per datastore cap. Without a
+     * batch size a batch is one vApp's VMs. Null if no VM can boot now
+     */
+    private BootBatch
+    formBatch(int room)
+    {
+        BootBatch batch = null;
+        int limit = batchSize > 0 ? Math.min(room, batchSize) : room;
+        Iterator<BootRequest> it = queue.iterator();
+
+        while (it.hasNext() && (batch == null || batch.vmMors.size() < limit)) {
+            BootRequest request = it.next();
+
+            if (batch != null && (batchSize <= 0 || !batch.dcMor.getVal().equals(request.dcMor.getVal()))) {
+                continue;
+            }
+            int take = Math.min(request.waitingVms.size(), limit - (batch == null ? 0 : batch.vmMors.size()));
+
+            if (maxDatastoreBoots > 0 && request.datastoreKey != null) {
+                Integer dsBoots = datastoreBoots.get(request.datastoreKey);
+                take = Math.min(take, maxDatastoreBoots - (dsBoots == null ? 0 : dsBoots));
+            }
+            if (take <= 0) {
+                continue;
+            }
+
+            if (batch == null) {
+                batch = new BootBatch(request.dcMor);
+            }
+            for (int i = 0; i < take; i++) {
+                batch.vmMors.add(request.waitingVms.removeFirst());
+            }
+            batch.requestVms.put(request, take);
+
+            if (request.datastoreKey != null) {
+                Integer dsBoots = datastoreBoots.get(request.datastoreKey);
+                datastoreBoots.put(request.datastoreKey, (dsBoots == null ? 0 : dsBoots) + take);
+                Integer batchDsVms = batch.datastoreVms.get(request.datastoreKey);
+                batch.datastoreVms.put(request.datastoreKey, (batchDsVms == null ? 0 : batchDsVms) + take);
+            }
+
+            // Time the vApp waited for its last VM to go out
+            if (request.waitingVms.isEmpty()) {
+                it.remove();
+                metrics.record(PhaseMetrics.PHASE_BOOT_WAIT, request.host, request.iteration, request.queuedTime,
+                    true);
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Submit the batch as one multi-VM power on task, through admission like every other vCenter operation and
+     * bounded by the power on deadline
+     */
+    private void
+    submit(final BootBatch batch)
+    {
+        final long batchStartTime = System.currentTimeMillis();
+        events.info("Power on batch " + batch.batchNo + ": " + batch.vmMors.size() + " VM(s) of "
+            + batch.requestVms.size() + " vApp(s)");
+
+        admission.acquire()
+            .thenComposeAsync(new Function<Void, CompletableFuture<TaskInfo>>() {
+                @Override
+                public CompletableFuture<TaskInfo>
+                apply(Void v)
+                {
+                    try {
+                        return deadlines.bound(backend.powerOnMultiVM(batch.dcMor, batch.vmMors),
+                            PhaseMetrics.PHASE_POWER_ON);
+                    } catch (Exception e) {
+                        CompletableFuture<TaskInfo> failed = new CompletableFuture<TaskInfo>();
+                        failed.completeExceptionally(e);
+                        return failed;
+                    }
+                }
+            }, scheduler.getExecutor())
+            .whenComplete(new BiConsumer<TaskInfo, Throwable>() {
+                @Override
+                public void
+                accept(TaskInfo taskInfo, Throwable t)
+                {
+                    long waitMs = System.currentTimeMillis() - batchStartTime;
+                    admission.release();
+
+                    if (taskInfo != null) {
+                        admission.onTaskComplete(OPERATION, waitMs, taskInfo);
+                    }
+                    boolean succeeded = t == null && taskInfo.getState().equals(TaskInfoState.success);
+                    finish(batch, batchStartTime, succeeded);
+                }
+            });
+    }
+
+    /**
+     * Batch task is done - report it, complete the vApps whose VMs have all been through, and free the boot slots,
+     * after the hold time if there is one (guests keep booting after the power on task)
+     */
+    private void
+    finish(final BootBatch batch, long batchStartTime, boolean succeeded)
+    {
+        metrics.record(PhaseMetrics.PHASE_BOOT_BATCH, "size-" + batch.vmMors.size(), batch.batchNo, batchStartTime,
+            succeeded);
+
+        if (succeeded) {
+            events.info("Power on batch " + batch.batchNo + " done in "
+                + (System.currentTimeMillis() - batchStartTime) + " ms");
+        } else {
+            events.error(null, batch.batchNo, null, "[Error] Power on batch " + batch.batchNo + " of "
+                + batch.vmMors.size() + " VM(s) failed");
+        }
+
+        List<BootRequest> doneRequests = new ArrayList<BootRequest>();
+        synchronized (this) {
+            bootedVms += batch.vmMors.size();
+            if (!succeeded) {
+                failedBatches++;
+            }
+            for (Map.Entry<BootRequest, Integer> entry : batch.requestVms.entrySet()) {
+                BootRequest request = entry.getKey();
+                request.completedVms += entry.getValue();
+                request.failed |= !succeeded;
+
+                if (request.completedVms == request.vmCount) {
+                    doneRequests.add(request);
+                }
+            }
+        }
+        for (BootRequest request : doneRequests) {
+            request.done.complete(!request.failed);
+        }
+
+        if (holdMs > 0) {
+            scheduler.delay(holdMs).thenRunAsync(new Runnable() {
+                @Override
+                public void
+                run()
+                {
+                    release(batch);
+                }
+            }, scheduler.getExecutor());
+        } else {
+            release(batch);
+        }
+    }
+
+    private void
+    release(BootBatch batch)
+    {
+        synchronized (this) {
+            boots -= batch.vmMors.size();
+
+            for (Map.Entry<String, Integer> entry : batch.datastoreVms.entrySet()) {
+                datastoreBoots.put(entry.getKey(), datastoreBoots.get(entry.getKey()) - entry.getValue());
+            }
+        }
+        dispatch();
+    }
+
+    public synchronized void
+    printSummary()
+    {
+        if (batches == 0) {
+            return;
+        }
+        System.out.println("Power on: " + bootedVms + " VM(s) in " + batches + " batch(es), "
+            + String.format("%.1f", (double) bootedVms / batches) + " VM(s) per batch on average (max " + maxBatchSeen
+            + "), at most " + peakBoots + " booting at once, " + failedBatches + " batch(es) failed");
+    }
+
+} // End of boot storm controller class
@@ -0,0 +1,82 @@
+/**
+ * Clone durations per clone mode (full / linked), so both can be reported side by side.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ *          The above copyright notice and this permission notice shall be
+ *          included in all copies or substantial portions of the Software.
+ *
+ *          THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *          EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ *          OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *          NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *          HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *          WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ *          FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ *          OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package vappdeployer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class CloneModeStats
+{
+    // Clone mode -> { count, total ms, min ms, max ms, failures }
+    private final Map<String, long[]> statsMap = new LinkedHashMap<String, long[]>();
+
+    /**
+     * Record one clone of the given mode
+     */
+    public synchronized void
+    record(String cloneMode, long durationMs, boolean succeeded)
+    {
+        long[] stats = statsMap.get(cloneMode);
+
+        if (stats == null) {
+            stats = new long[] { 0L, 0L, Long.MAX_VALUE, 0L, 0L };
+            statsMap.put(cloneMode, stats);
+        }
+
+        if (succeeded) {
+            stats[0]++;
+            stats[1] += durationMs;
+            stats[2] = Math.min(stats[2], durationMs);
+            stats[3] = Math.max(stats[3], durationMs);
+        } else {
+            stats[4]++;
+        }
+    }
+
+    /**
+     * Print clone timings of all modes as one table
+     */
+    public synchronized void
+    print()
+    {
+        if (statsMap.isEmpty()) {
+            return;
+        }
+
+        System.out.println("----------------------------- Clone timings -----------------------------");
+        System.out.println(String.format("%-10s %8s %8s %12s %12s %12s", "Mode", "Clones", "Failed", "Avg (s)",
+            "Min (s)", "Max (s)"));
+
+        for (Map.Entry<String, long[]> entry : statsMap.entrySet()) {
+            long[] stats = entry.getValue();
+            double avg = stats[0] == 0 ? 0 : stats[1] / (double) stats[0] / 1000;
+            double min = stats[0] == 0 ? 0 : stats[2] / 1000.0;
+            System.out.println(String.format("%-10s %8d %8d %12.1f %12.1f %12.1f", entry.getKey(), stats[0], stats[4],
+                avg, min, stats[3] / 1000.0));
+        }
+        System.out.println("-------------------------------------------------------------------------");
+    }
+
+} // End of clone mode stats class
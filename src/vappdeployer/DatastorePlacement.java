@@ -0,0 +1,227 @@
+/**
+ * Datastore placement engine, picks the VAppCloneSpec location for each clone out of the destination
+ * host's accessible datastores. Reads cached datastore summaries from the inventory snapshot and tracks
+ * capacity/clones claimed by in-flight clones, so parallel deployments spread across datastores.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ *          The above copyright notice and this permission notice shall be
+ *          included in all copies or substantial portions of the Software.
+ *
+ *          THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *          EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ *          OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *          NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *          HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *          WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ *          FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ *          OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package vappdeployer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.vmware.vim25.DatastoreSummary;
+import com.vmware.vim25.ManagedObjectReference;
+
+public abstract class DatastorePlacement
+{
+    // Placement policies
+    public static final String POLICY_FREE_SPACE = "freespace";
+    public static final String POLICY_ROUND_ROBIN = "roundrobin";
+    public static final String POLICY_LEAST_INFLIGHT = "leastinflight";
+
+    protected InventorySnapshot inventory;
+
+    // Datastore MOR value -> bytes / number of clones claimed by in-flight clones
+    private final Map<String, Long> claimedBytes = new HashMap<String, Long>();
+    private final Map<String, Integer> inflightClones = new HashMap<String, Integer>();
+
+    protected
+    DatastorePlacement(InventorySnapshot inventory)
+    {
+        this.inventory = inventory;
+    }
+
+    /**
+     * Create placement engine for the given policy name
+     */
+    public static DatastorePlacement
+    forPolicy(String policy, InventorySnapshot inventory)
+    {
+        if (policy.equals(POLICY_ROUND_ROBIN)) {
+            return new RoundRobinPlacement(inventory);
+        } else if (policy.equals(POLICY_LEAST_INFLIGHT)) {
+            return new LeastInflightPlacement(inventory);
+        } else if (policy.equals(POLICY_FREE_SPACE)) {
+            return new FreeSpacePlacement(inventory);
+        }
+        throw new IllegalArgumentException("Unknown datastore placement policy: " + policy);
+    }
+
+    /**
+     * Pick the target datastore for a clone of requiredBytes on the host and claim it, null if the host
+     * has no accessible datastore. Claim has to be given back through release() once the clone is done
+     */
+    public synchronized ManagedObjectReference
+    place(ManagedObjectReference hostMor, long requiredBytes) throws Exception
+    {
+        List<ManagedObjectReference> accessibleDs = inventory.getAccessibleDatastores(hostMor);
+        List<ManagedObjectReference> candidates = new ArrayList<ManagedObjectReference>();
+
+        for (ManagedObjectReference dsMor : accessibleDs) {
+            if (getAvailableBytes(dsMor) >= requiredBytes) {
+                candidates.add(dsMor);
+            }
+        }
+
+        // Nothing fits after in-flight claims, let the policy choose among all and vCenter decide
+        if (candidates.isEmpty()) {
+            candidates = accessibleDs;
+        }
+        if (candidates.isEmpty()) {
+            return null;
+        }
+
+        ManagedObjectReference targetDsMor = select(hostMor, candidates);
+        String dsKey = targetDsMor.getVal();
+        claimedBytes.put(dsKey, getClaimedBytes(targetDsMor) + requiredBytes);
+        inflightClones.put(dsKey, getInflightClones(targetDsMor) + 1);
+        return targetDsMor;
+    }
+
+    /**
+     * Give back capacity claimed through place()
+     */
+    public synchronized void
+    release(ManagedObjectReference dsMor, long requiredBytes)
+    {
+        String dsKey = dsMor.getVal();
+        claimedBytes.put(dsKey, Math.max(getClaimedBytes(dsMor) - requiredBytes, 0L));
+        inflightClones.put(dsKey, Math.max(getInflightClones(dsMor) - 1, 0));
+    }
+
+    /**
+     * Policy specific choice out of the candidate datastores, called with the engine lock held
+     */
+    protected abstract ManagedObjectReference
+    select(ManagedObjectReference hostMor, List<ManagedObjectReference> candidates) throws Exception;
+
+    /**
+     * Free space as per cached summary, less the space claimed by in-flight clones
+     */
+    protected long
+    getAvailableBytes(ManagedObjectReference dsMor) throws Exception
+    {
+        DatastoreSummary dsSummary = inventory.getDatastoreSummary(dsMor);
+        long freeSpace = dsSummary == null ? 0L : dsSummary.getFreeSpace();
+        return freeSpace - getClaimedBytes(dsMor);
+    }
+
+    protected long
+    getClaimedBytes(ManagedObjectReference dsMor)
+    {
+        Long claimed = claimedBytes.get(dsMor.getVal());
+        return claimed == null ? 0L : claimed.longValue();
+    }
+
+    protected int
+    getInflightClones(ManagedObjectReference dsMor)
+    {
+        Integer inflight = inflightClones.get(dsMor.getVal());
+        return inflight == null ? 0 : inflight.intValue();
+    }
+
+    /**
+     * Datastore with the most free space left after in-flight claims
+     */
+    static class FreeSpacePlacement extends DatastorePlacement
+    {
+        FreeSpacePlacement(InventorySnapshot inventory)
+        {
+            super(inventory);
+        }
+
+        @Override
+        protected ManagedObjectReference
+        select(ManagedObjectReference hostMor, List<ManagedObjectReference> candidates) throws Exception
+        {
+            ManagedObjectReference bestDsMor = null;
+            long bestAvailable = Long.MIN_VALUE;
+
+            for (ManagedObjectReference dsMor : candidates) {
+                long available = getAvailableBytes(dsMor);
+                if (available > bestAvailable) {
+                    bestAvailable = available;
+                    bestDsMor = dsMor;
+                }
+            }
+            return bestDsMor;
+        }
+    }
+
+    /**
+     * Rotate through the host's datastores, clone after clone
+     */
+    static class RoundRobinPlacement extends DatastorePlacement
+    {
+        private final Map<String, Integer> nextIndex = new HashMap<String, Integer>();
+
+        RoundRobinPlacement(InventorySnapshot inventory)
+        {
+            super(inventory);
+        }
+
+        @Override
+        protected ManagedObjectReference
+        select(ManagedObjectReference hostMor, List<ManagedObjectReference> candidates)
+        {
+            Integer index = nextIndex.get(hostMor.getVal());
+            int i = index == null ? 0 : index.intValue();
+            nextIndex.put(hostMor.getVal(), i + 1);
+            return candidates.get(i % candidates.size());
+        }
+    }
+
+    /**
+     * Datastore with the fewest clones in flight, ties broken by free space
+     */
+    static class LeastInflightPlacement extends DatastorePlacement
+    {
+        LeastInflightPlacement(InventorySnapshot inventory)
+        {
+            super(inventory);
+        }
+
+        @Override
+        protected ManagedObjectReference
+        select(ManagedObjectReference hostMor, List<ManagedObjectReference> candidates) throws Exception
+        {
+            ManagedObjectReference bestDsMor = null;
+            int bestInflight = Integer.MAX_VALUE;
+            long bestAvailable = Long.MIN_VALUE;
+
+            for (ManagedObjectReference dsMor : candidates) {
+                int inflight = getInflightClones(dsMor);
+                long available = getAvailableBytes(dsMor);
+                if (inflight < bestInflight || (inflight == bestInflight && available > bestAvailable)) {
+                    bestInflight = inflight;
+                    bestAvailable = available;
+                    bestDsMor = dsMor;
+                }
+            }
+            return bestDsMor;
+        }
+    }
+
+} // End of datastore placement class
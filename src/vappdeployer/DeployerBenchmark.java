@@ -0,0 +1,123 @@
+/**
+ * Orchestration benchmark - runs the deployer against the simulated vSphere backend
+ * for growing host counts, with zero and with realistic task latencies
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ *          The above copyright notice and this permission notice shall be
+ *          included in all copies or substantial portions of the Software.
+ *
+ *          THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *          EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ *          OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *          NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *          HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *          WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ *          FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ *          OTHER DEALINGS IN THE SOFTWARE.
+ */
+package vappdeployer;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Properties;
+
+// Runs full deploy/power on/power off/destroy lifecycles against SimulatedBackend and reports
+// lifecycles per second and orchestration overhead (wall time over the simulated task time)
+public class DeployerBenchmark
+{
+    private static final int[] HOST_COUNTS = new int[] { 10, 100, 1000, 10000 };
+    private static final String[] LATENCY_OPS = new String[] { SimulatedBackend.OP_CLONE,
+        SimulatedBackend.OP_POWER_ON, SimulatedBackend.OP_POWER_OFF, SimulatedBackend.OP_DESTROY,
+        SimulatedBackend.OP_INVENTORY, SimulatedBackend.OP_PROPERTY };
+    private static final long[] REALISTIC_MEDIAN_MS = new long[] { 30000, 3000, 2000, 3000, 500, 20 };
+
+    /**
+     * Usage: java -cp vAppDeployer.jar vappdeployer.DeployerBenchmark [iterations] [latency scale]
+     * latency scale shrinks the realistic task latencies, default 0.01 (30s clone becomes 300ms)
+     */
+    public static void main(String[] args) throws Exception
+    {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        double latencyScale = args.length > 1 ? Double.parseDouble(args[1]) : 0.01;
+
+        System.out.println(String.format("%-10s%-12s%-12s%-12s%-16s%-16s", "Hosts", "Latency", "Lifecycles",
+            "Wall(ms)", "Lifecycles/sec", "Overhead(ms)"));
+
+        for (int hosts : HOST_COUNTS) {
+            runOne(hosts, iterations, 0);
+            runOne(hosts, iterations, latencyScale);
+        }
+    }
+
+    /**
+     * One benchmark run, latencyScale 0 makes every simulated task complete immediately
+     */
+    private static void
+    runOne(int hosts, int iterations, double latencyScale) throws Exception
+    {
+        Properties settings = new Properties();
+        // Source vApp sits on the first host, so one extra host gives the requested number of destinations
+        settings.setProperty("hosts", String.valueOf(hosts + 1));
+
+        // Ideal lifecycle time if the deployer added nothing on top of the task latencies
+        long idealLifecycleMs = 0;
+        for (int i = 0; i < LATENCY_OPS.length; i++) {
+            long medianMs = Math.round(REALISTIC_MEDIAN_MS[i] * latencyScale);
+            settings.setProperty(LATENCY_OPS[i] + ".latency.median.ms", String.valueOf(medianMs));
+            settings.setProperty(LATENCY_OPS[i] + ".latency.sigma", "0");
+            if (i < 4) {
+                idealLifecycleMs += medianMs;
+            }
+        }
+
+        String srcvAppName = "BenchSrcvApp";
+        SimulatedBackend backend = new SimulatedBackend(settings, srcvAppName);
+        backend.login(null, null, null);
+
+        // Keep the per lifecycle logging out of the results table
+        PrintStream stdOut = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b)
+            {
+                // discard
+            }
+        }));
+
+        // Journal of the run is of no use after the benchmark
+        File journalFile = File.createTempFile("vAppDeployer-bench", ".journal");
+
+        long startTime = System.currentTimeMillis();
+        DeployvApp deployer = null;
+        try {
+            deployer = new DeployvApp(new String[] { "--backend", DeployvApp.BACKEND_SIMULATOR, "--srcvapp",
+                srcvAppName, "--iteration", String.valueOf(iterations), "--mode", DeployvApp.RUN_MODE_PIPELINED,
+                "--ready", ReadinessGate.READY_IMMEDIATE, "--journal", journalFile.getPath() });
+            deployer.setBackend(backend);
+            deployer.vAppDeploymentHandler();
+        } finally {
+            System.setOut(stdOut);
+            journalFile.delete();
+        }
+        long wallMs = System.currentTimeMillis() - startTime;
+
+        LatencyHistogram lifecycles = deployer.getMetrics().getHistograms()
+            .get(PhaseMetrics.PHASE_LIFECYCLE + "|" + PhaseMetrics.ALL_HOSTS);
+        long lifecycleCount = lifecycles != null ? lifecycles.getCount() : 0;
+        // Hosts run in parallel, so the ideal wall time is one host's lifecycles back to back
+        long overheadMs = wallMs - idealLifecycleMs * iterations;
+
+        System.out.println(String.format("%-10d%-12s%-12d%-12d%-16.1f%-16d", hosts,
+            latencyScale == 0 ? "zero" : "x" + latencyScale, lifecycleCount, wallMs,
+            lifecycleCount * 1000.0 / Math.max(1, wallMs), overheadMs));
+    }
+
+} // End of deployer benchmark class
@@ -0,0 +1,221 @@
+/**
+ * Bounded scheduler for vApp deployment lifecycles. Caps the number of lifecycles running at once
+ * (globally and per destination host) and the number of clones hitting one target datastore at once.
+ * Lifecycles run as asynchronous stages on a small event loop pool, waiting for a slot holds no thread.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ *          The above copyright notice and this permission notice shall be
+ *          included in all copies or substantial portions of the Software.
+ *
+ *          THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *          EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ *          OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *          NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *          HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *          WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ *          FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ *          OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package vappdeployer;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import com.vmware.vim25.ManagedObjectReference;
+
+public class DeploymentScheduler
+{
+    // 0 (or less) for a per-host/per-datastore limit means unlimited
+    public static final int UNLIMITED = 0;
+
+    // Event loop threads - lifecycle stages only block for single vSphere calls, never for a task or a wait
+    private static final int EVENT_LOOP_THREADS = Math.max(8, 4 * Runtime.getRuntime().availableProcessors());
+
+    private int maxConcurrent;
+    private int perHostLimit;
+    private int perDatastoreLimit;
+    private ScheduledExecutorService executor;
+    private AsyncSemaphore lifecyclePermits;
+
+    private final ConcurrentMap<String, AsyncSemaphore> hostPermits = new ConcurrentHashMap<String, AsyncSemaphore>();
+    private final ConcurrentMap<String, AsyncSemaphore> datastorePermits =
+        new ConcurrentHashMap<String, AsyncSemaphore>();
+
+    /**
+     * Constructor
+     */
+    public
+    DeploymentScheduler(int maxConcurrent, int perHostLimit, int perDatastoreLimit)
+    {
+        this.maxConcurrent = maxConcurrent;
+        this.perHostLimit = perHostLimit;
+        this.perDatastoreLimit = perDatastoreLimit;
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        ScheduledThreadPoolExecutor eventLoop = new ScheduledThreadPoolExecutor(EVENT_LOOP_THREADS,
+            new ThreadFactory() {
+                @Override
+                public Thread
+                newThread(Runnable r)
+                {
+                    return new Thread(r, "vAppDeployer-" + threadCount.incrementAndGet());
+                }
+            });
+        // Deadline timers are cancelled once their task completes, drop them right away
+        eventLoop.setRemoveOnCancelPolicy(true);
+        // Lifecycles are done by shutdown, timers still pending then have nothing left to wake up
+        eventLoop.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        executor = eventLoop;
+        lifecyclePermits = new AsyncSemaphore(maxConcurrent, executor);
+    }
+
+    /**
+     * Start a deployment lifecycle for the given destination host once a global and a host slot are free.
+     * The host slot is taken first, so a lifecycle queued behind a busy host holds no global slot idle hosts
+     * could use. Returned future completes when the lifecycle's own future does
+     */
+    public CompletableFuture<Void>
+    submit(final ManagedObjectReference hostMor, final Supplier<CompletableFuture<Void>> lifecycle)
+    {
+        final AsyncSemaphore hostSem = permitFor(hostPermits, hostMor, perHostLimit);
+        CompletableFuture<Void> hostSlot = hostSem != null ? hostSem.acquire()
+            : CompletableFuture.<Void>completedFuture(null);
+
+        return hostSlot
+            .thenCompose(new Function<Void, CompletableFuture<Void>>() {
+                @Override
+                public CompletableFuture<Void>
+                apply(Void v)
+                {
+                    return lifecyclePermits.acquire();
+                }
+            })
+            .thenComposeAsync(new Function<Void, CompletableFuture<Void>>() {
+                @Override
+                public CompletableFuture<Void>
+                apply(Void v)
+                {
+                    return lifecycle.get();
+                }
+            }, executor)
+            .whenComplete(new BiConsumer<Void, Throwable>() {
+                @Override
+                public void
+                accept(Void v, Throwable t)
+                {
+                    if (hostSem != null) {
+                        hostSem.release();
+                    }
+                    lifecyclePermits.release();
+                }
+            });
+    }
+
+    /**
+     * Future completes once a clone slot on the target datastore is available
+     */
+    public CompletableFuture<Void>
+    acquireDatastore(ManagedObjectReference dsMor)
+    {
+        AsyncSemaphore dsSem = permitFor(datastorePermits, dsMor, perDatastoreLimit);
+        return dsSem != null ? dsSem.acquire() : CompletableFuture.<Void>completedFuture(null);
+    }
+
+    /**
+     * Give back a clone slot taken through acquireDatastore
+     */
+    public void
+    releaseDatastore(ManagedObjectReference dsMor)
+    {
+        AsyncSemaphore dsSem = permitFor(datastorePermits, dsMor, perDatastoreLimit);
+
+        if (dsSem != null) {
+            dsSem.release();
+        }
+    }
+
+    /**
+     * Future completes after the delay, without holding a thread in the meantime
+     */
+    public CompletableFuture<Void>
+    delay(long delayMs)
+    {
+        final CompletableFuture<Void> delayed = new CompletableFuture<Void>();
+
+        executor.schedule(new Runnable() {
+            @Override
+            public void
+            run()
+            {
+                delayed.complete(null);
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+        return delayed;
+    }
+
+    /**
+     * Lazily create the semaphore for an object, null if there is no limit
+     */
+    private AsyncSemaphore
+    permitFor(ConcurrentMap<String, AsyncSemaphore> permitMap, ManagedObjectReference mor, int limit)
+    {
+        if (limit <= UNLIMITED) {
+            return null;
+        }
+
+        AsyncSemaphore sem = permitMap.get(mor.getVal());
+
+        if (sem == null) {
+            AsyncSemaphore newSem = new AsyncSemaphore(limit, executor);
+            sem = permitMap.putIfAbsent(mor.getVal(), newSem);
+
+            if (sem == null) {
+                sem = newSem;
+            }
+        }
+        return sem;
+    }
+
+    /**
+     * Event loop the lifecycle stages run on
+     */
+    public ScheduledExecutorService
+    getExecutor()
+    {
+        return executor;
+    }
+
+    public int
+    getMaxConcurrent()
+    {
+        return maxConcurrent;
+    }
+
+    /**
+     * Stop the event loop, callers wait for their lifecycle futures before
+     */
+    public void
+    shutdown() throws InterruptedException
+    {
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+    }
+
+} // End of deployment scheduler class
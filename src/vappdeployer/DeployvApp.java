@@ -34,46 +34,124 @@
 
 package vappdeployer;
 
-import java.net.URL;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.regex.PatternSyntaxException;
 
 import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.TaskInfo;
 import com.vmware.vim25.TaskInfoState;
 import com.vmware.vim25.VAppCloneSpec;
 import com.vmware.vim25.VirtualMachinePowerState;
-import com.vmware.vim25.mo.ComputeResource;
-import com.vmware.vim25.mo.Datacenter;
-import com.vmware.vim25.mo.Datastore;
-import com.vmware.vim25.mo.Folder;
-import com.vmware.vim25.mo.HostSystem;
-import com.vmware.vim25.mo.InventoryNavigator;
-import com.vmware.vim25.mo.ManagedEntity;
-import com.vmware.vim25.mo.ResourcePool;
-import com.vmware.vim25.mo.ServiceInstance;
-import com.vmware.vim25.mo.Task;
-import com.vmware.vim25.mo.VirtualApp;
-import com.vmware.vim25.mo.VirtualMachine;
 
 public class DeployvApp
 {
-    // VC inventory related objects
-    private static final String DC_MOR_TYPE = "Datacenter";
-    private static final String RESPOOL_MOR_TYPE = "ResourcePool";
-    private static final String HOST_MOR_TYPE = "HostSystem";
-    private static final String VIRTUAL_APP_MOR_TYPE = "VirtualApp";
+    // Run modes
+    static final String RUN_MODE_BARRIER = "barrier";
+    static final String RUN_MODE_PIPELINED = "pipelined";
+    static final String RUN_MODE_OPEN_LOOP = "openloop";
+
+    // Clone modes
+    static final String CLONE_MODE_FULL = "full";
+    static final String CLONE_MODE_LINKED = "linked";
+    static final String CLONE_MODE_COMPARE = "compare";
+
+    // Backends
+    static final String BACKEND_VSPHERE = "vsphere";
+    static final String BACKEND_SIMULATOR = "sim";
+
+    // Snapshot warm pool vApps are reverted to between rounds
+    static final String WARM_POOL_SNAPSHOT_NAME = "vAppDeployer-warm-pool";
+
+    // Lowest open loop arrival rate (per minute) that is issued, below it arrivals pause
+    private static final double MIN_ARRIVAL_RATE = 0.01;
+
+    // Back off before the first retry of a failed phase, doubled for the second and so on, up to 64 times
+    private static final long PHASE_RETRY_DELAY_MS = 5000;
+
+    // Wait before a pipeline moves on from an iteration skipped on an unhealthy or overloaded host
+    private static final long HOST_RECHECK_DELAY_MS = 30000;
 
     private String vsphereIp;
     private String userName;
     private String password;
     private String srcvappName;
     private int iteration;
+    private int maxConcurrent = 0;
+    private int perHostLimit = 1;
+    private int perDatastoreLimit = DeploymentScheduler.UNLIMITED;
+    private String runMode = RUN_MODE_BARRIER;
+    private int inflightDepth = 1;
+    private double arrivalRate = 0;
+    private long arrivalSeconds = 0;
+    private String rateProfile;
+    private String placementPolicy = DatastorePlacement.POLICY_FREE_SPACE;
+    private String cloneMode = CLONE_MODE_FULL;
+    private int fanOutSeeds = 0;
+    private int warmPoolSize = 0;
+    private boolean warmReset = false;
+    private SeedFanOut fanOut;
+    private String backendType = BACKEND_VSPHERE;
+    private String simConfigFile;
+    private int sessionPoolSize = SessionPool.DEFAULT_SIZE;
+    private int keepAliveSeconds = SessionPool.DEFAULT_KEEPALIVE_SECONDS;
     private String url;
-    private ServiceInstance si;
+    private VSphereBackend backend;
     private List<ManagedObjectReference> allDestHostsMor;
-    private VirtualApp srcvAppObject = null;
+    private String includeHosts;
+    private String excludeHosts;
+    private String includeClusters;
+    private String excludeClusters;
+    private int maxHostLoad = HostFilter.DEFAULT_MAX_LOAD_PERCENT;
+    private int hostRefreshSeconds = HostFilter.DEFAULT_REFRESH_SECONDS;
+    private HostFilter hostFilter;
+    private ManagedObjectReference srcvAppMor = null;
+    private InventorySnapshot inventory;
+    private DatastorePlacement placement;
+    private long srcvAppBytes = 0L;
+    private String readyCondition = ReadinessGate.READY_DWELL;
+    private long dwellSeconds = 10;
+    private long readyTimeoutSeconds = 300;
+    private ReadinessGate readinessGate;
+    private String concurrencyMode = AdmissionController.CONCURRENCY_FIXED;
+    private int minConcurrent = 1;
+    private AdmissionController admission;
+    private int phaseRetries = 0;
+    private String phaseDeadlines;
+    private PhaseDeadlines deadlines;
+    private int bootBatchSize = 0;
+    private long bootWindowMs = 1000;
+    private int maxBoots = 0;
+    private int maxDatastoreBoots = 0;
+    private long bootRampSeconds = 0;
+    private long bootHoldSeconds = 0;
+    private BootStormController bootController;
+    private final CloneModeStats cloneStats = new CloneModeStats();
+    private final PhaseMetrics metrics = new PhaseMetrics();
+    private String reportDir;
+    private String eventTraceFile;
+    // Name of the vCenter in a run of several, null otherwise
+    private String runLabel;
+    private int statusIntervalSeconds = EventLog.DEFAULT_STATUS_INTERVAL_SECONDS;
+    private boolean verbose = false;
+    private EventLog events;
+    private String journalFile = RunJournal.DEFAULT_FILE;
+    private boolean resume = false;
+    private RunJournal journal;
+    private final AtomicInteger compareCounter = new AtomicInteger();
+    private final AtomicInteger roundRobin = new AtomicInteger();
+    private DeploymentScheduler scheduler;
 
     /**
      * Constructors
@@ -116,6 +194,135 @@ public class DeployvApp
             } else if (cmdProps[i].equals("--iteration")) {
                 iteration = Integer.parseInt(cmdProps[i + 1]);
                 System.out.println("Iterations:" + iteration);
+            } else if (cmdProps[i].equals("--maxconcurrent")) {
+                maxConcurrent = Integer.parseInt(cmdProps[i + 1]);
+                System.out.println("Max concurrent deployments:" + maxConcurrent);
+            } else if (cmdProps[i].equals("--perhostlimit")) {
+                perHostLimit = Integer.parseInt(cmdProps[i + 1]);
+                System.out.println("Per host concurrent deployments:" + perHostLimit);
+            } else if (cmdProps[i].equals("--perdslimit")) {
+                perDatastoreLimit = Integer.parseInt(cmdProps[i + 1]);
+                System.out.println("Per datastore concurrent clones:" + perDatastoreLimit);
+            } else if (cmdProps[i].equals("--mode")) {
+                runMode = cmdProps[i + 1];
+                System.out.println("Run mode:" + runMode);
+            } else if (cmdProps[i].equals("--rate")) {
+                arrivalRate = Double.parseDouble(cmdProps[i + 1]);
+                System.out.println("Arrival rate per minute:" + arrivalRate);
+            } else if (cmdProps[i].equals("--duration")) {
+                arrivalSeconds = Long.parseLong(cmdProps[i + 1]);
+                System.out.println("Arrival duration seconds:" + arrivalSeconds);
+            } else if (cmdProps[i].equals("--rateprofile")) {
+                rateProfile = cmdProps[i + 1];
+                System.out.println("Arrival rate profile:" + rateProfile);
+            } else if (cmdProps[i].equals("--inflightdepth")) {
+                inflightDepth = Integer.parseInt(cmdProps[i + 1]);
+                System.out.println("Per host in-flight lifecycles:" + inflightDepth);
+            } else if (cmdProps[i].equals("--includehosts")) {
+                includeHosts = cmdProps[i + 1];
+                System.out.println("Include hosts:" + includeHosts);
+            } else if (cmdProps[i].equals("--excludehosts")) {
+                excludeHosts = cmdProps[i + 1];
+                System.out.println("Exclude hosts:" + excludeHosts);
+            } else if (cmdProps[i].equals("--includeclusters")) {
+                includeClusters = cmdProps[i + 1];
+                System.out.println("Include clusters:" + includeClusters);
+            } else if (cmdProps[i].equals("--excludeclusters")) {
+                excludeClusters = cmdProps[i + 1];
+                System.out.println("Exclude clusters:" + excludeClusters);
+            } else if (cmdProps[i].equals("--maxhostload")) {
+                maxHostLoad = Integer.parseInt(cmdProps[i + 1]);
+                System.out.println("Max host CPU/memory usage percent:" + maxHostLoad);
+            } else if (cmdProps[i].equals("--hostrefresh")) {
+                hostRefreshSeconds = Integer.parseInt(cmdProps[i + 1]);
+                System.out.println("Host health refresh seconds:" + hostRefreshSeconds);
+            } else if (cmdProps[i].equals("--placement")) {
+                placementPolicy = cmdProps[i + 1];
+                System.out.println("Datastore placement policy:" + placementPolicy);
+            } else if (cmdProps[i].equals("--clonemode")) {
+                cloneMode = cmdProps[i + 1];
+                System.out.println("Clone mode:" + cloneMode);
+            } else if (cmdProps[i].equals("--fanout")) {
+                fanOutSeeds = Integer.parseInt(cmdProps[i + 1]);
+                System.out.println("Fan-out seeds:" + fanOutSeeds);
+            } else if (cmdProps[i].equals("--warmpool")) {
+                warmPoolSize = Integer.parseInt(cmdProps[i + 1]);
+                System.out.println("Warm pool vApps per host:" + warmPoolSize);
+            } else if (cmdProps[i].equals("--warmreset")) {
+                warmReset = true;
+                System.out.println("Reset warm pool to snapshot between rounds: true");
+            } else if (cmdProps[i].equals("--reportdir")) {
+                reportDir = cmdProps[i + 1];
+                System.out.println("Report directory:" + reportDir);
+            } else if (cmdProps[i].equals("--label")) {
+                runLabel = cmdProps[i + 1];
+                System.out.println("vCenter label:" + runLabel);
+            } else if (cmdProps[i].equals("--eventlog")) {
+                eventTraceFile = cmdProps[i + 1];
+                System.out.println("Event trace:" + eventTraceFile);
+            } else if (cmdProps[i].equals("--status")) {
+                statusIntervalSeconds = Integer.parseInt(cmdProps[i + 1]);
+                System.out.println("Status interval seconds:" + statusIntervalSeconds);
+            } else if (cmdProps[i].equals("--verbose")) {
+                verbose = true;
+                System.out.println("Verbose lifecycle output: true");
+            } else if (cmdProps[i].equals("--journal")) {
+                journalFile = cmdProps[i + 1];
+                System.out.println("Run journal:" + journalFile);
+            } else if (cmdProps[i].equals("--resume")) {
+                resume = true;
+                System.out.println("Resume unfinished run: true");
+            } else if (cmdProps[i].equals("--backend")) {
+                backendType = cmdProps[i + 1];
+                System.out.println("Backend:" + backendType);
+            } else if (cmdProps[i].equals("--simconfig")) {
+                simConfigFile = cmdProps[i + 1];
+                System.out.println("Simulator settings:" + simConfigFile);
+            } else if (cmdProps[i].equals("--concurrency")) {
+                concurrencyMode = cmdProps[i + 1];
+                System.out.println("Concurrency control:" + concurrencyMode);
+            } else if (cmdProps[i].equals("--minconcurrent")) {
+                minConcurrent = Integer.parseInt(cmdProps[i + 1]);
+                System.out.println("Min concurrent operations:" + minConcurrent);
+            } else if (cmdProps[i].equals("--phaseretries")) {
+                phaseRetries = Integer.parseInt(cmdProps[i + 1]);
+                System.out.println("Phase retries:" + phaseRetries);
+            } else if (cmdProps[i].equals("--deadlines")) {
+                phaseDeadlines = cmdProps[i + 1];
+                System.out.println("Phase deadlines:" + phaseDeadlines);
+            } else if (cmdProps[i].equals("--bootbatch")) {
+                bootBatchSize = Integer.parseInt(cmdProps[i + 1]);
+                System.out.println("VMs per power on batch:" + bootBatchSize);
+            } else if (cmdProps[i].equals("--bootwindow")) {
+                bootWindowMs = Long.parseLong(cmdProps[i + 1]);
+                System.out.println("Power on batching window ms:" + bootWindowMs);
+            } else if (cmdProps[i].equals("--maxboots")) {
+                maxBoots = Integer.parseInt(cmdProps[i + 1]);
+                System.out.println("Max VMs booting at once:" + maxBoots);
+            } else if (cmdProps[i].equals("--maxdsboots")) {
+                maxDatastoreBoots = Integer.parseInt(cmdProps[i + 1]);
+                System.out.println("Max VMs booting at once per datastore:" + maxDatastoreBoots);
+            } else if (cmdProps[i].equals("--bootramp")) {
+                bootRampSeconds = Long.parseLong(cmdProps[i + 1]);
+                System.out.println("Boot cap ramp seconds:" + bootRampSeconds);
+            } else if (cmdProps[i].equals("--boothold")) {
+                bootHoldSeconds = Long.parseLong(cmdProps[i + 1]);
+                System.out.println("Boot hold seconds:" + bootHoldSeconds);
+            } else if (cmdProps[i].equals("--ready")) {
+                readyCondition = cmdProps[i + 1];
+                System.out.println("Readiness condition:" + readyCondition);
+            } else if (cmdProps[i].equals("--dwell")) {
+                dwellSeconds = Long.parseLong(cmdProps[i + 1]);
+                System.out.println("Dwell seconds:" + dwellSeconds);
+            } else if (cmdProps[i].equals("--readytimeout")) {
+                readyTimeoutSeconds = Long.parseLong(cmdProps[i + 1]);
+                System.out.println("Readiness timeout seconds:" + readyTimeoutSeconds);
+            } else if (cmdProps[i].equals("--sessions")) {
+                sessionPoolSize = Integer.parseInt(cmdProps[i + 1]);
+                System.out.println("vSphere sessions:" + sessionPoolSize);
+            } else if (cmdProps[i].equals("--keepalive")) {
+                keepAliveSeconds = Integer.parseInt(cmdProps[i + 1]);
+                System.out.println("Session keep-alive seconds:" + keepAliveSeconds);
             }
         }
         System.out.println("-------------------------------------------------------------------\n");
@@ -128,15 +335,41 @@ public class DeployvApp
     validateProperties()
     {
         boolean val = false;
-        if (vsphereIp != null) {
+
+        boolean openLoop = runMode.equals(RUN_MODE_OPEN_LOOP);
+
+        if (srcvappName == null || (iteration <= 0 && !openLoop)) {
+            System.err.println("Source vApp name and number of iterations have to be provided");
+        } else if (openLoop && !validArrivalProfile()) {
+            System.err.println("Open loop mode needs --rate and --duration, or a valid --rateprofile");
+        } else if (openLoop && resume) {
+            System.err.println("Open loop mode cannot be resumed, its lifecycles are not tied to iterations");
+        } else if (!ReadinessGate.isValidCondition(readyCondition)) {
+            System.err.println("Readiness condition has to be one of immediate, dwell, tools or heartbeat");
+        } else if (!AdmissionController.isValidMode(concurrencyMode)) {
+            System.err.println("Concurrency control has to be fixed or adaptive");
+        } else if (!validPhaseDeadlines()) {
+            System.err.println("Phase deadlines have to be given as <phase>=<seconds>,...");
+        } else if (!validHostFilter()) {
+            System.err.println("Host and cluster filters have to be valid regular expressions");
+        } else if (backendType.equals(BACKEND_SIMULATOR)) {
+            try {
+                System.out.println("Starting vSphere simulator");
+                backend = loginTovSphere(null);
+                val = backend != null;
+            } catch (Exception e) {
+                System.err.println("Caught an exception, while starting vSphere simulator");
+                e.printStackTrace();
+            }
+        } else if (vsphereIp != null) {
             url = "https://" + vsphereIp + "/sdk";
 
             // Login to provided server IP to determine if we are running against single ESXi
             try {
                 System.out.println("Logging into vSphere : " + vsphereIp + ", with provided credentials");
-                si = loginTovSphere(url);
+                backend = loginTovSphere(url);
 
-                if (si != null) {
+                if (backend != null) {
                     System.out.println("Succesfully logged into vSphere: " + vsphereIp);
                     val = true;
                 } else {
@@ -153,6 +386,46 @@ public class DeployvApp
         return val;
     }
 
+    private boolean
+    validArrivalProfile()
+    {
+        if (rateProfile == null) {
+            return arrivalRate > 0 && arrivalSeconds > 0;
+        }
+        try {
+            ArrivalProfile.parse(rateProfile);
+            return true;
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean
+    validPhaseDeadlines()
+    {
+        try {
+            PhaseDeadlines.parse(phaseDeadlines);
+            return true;
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean
+    validHostFilter()
+    {
+        try {
+            hostFilter = new HostFilter(includeHosts, excludeHosts, includeClusters, excludeClusters, maxHostLoad,
+                hostRefreshSeconds);
+            return true;
+        } catch (PatternSyntaxException e) {
+            System.err.println(e.getMessage());
+            return false;
+        }
+    }
+
     /**
      * Method prints out possible reasons for failed login
      */
@@ -167,18 +440,59 @@ public class DeployvApp
     }
 
     /**
-     * Login method to VC
+     * Drop the session of a validated run that is not going to be deployed
+     */
+    void
+    logout()
+    {
+        if (backend != null) {
+            backend.logout();
+            backend = null;
+        }
+    }
+
+    /**
+     * Login method to VC (or simulator), returns the logged in backend
      */
-    private
-    ServiceInstance loginTovSphere(String url)
+    private VSphereBackend
+    loginTovSphere(String url)
     {
+        // Drop earlier session, if any
+        logout();
+
         try {
-            si = new ServiceInstance(new URL(url), userName, password, true);
+            VSphereBackend newBackend;
+
+            if (backendType.equals(BACKEND_SIMULATOR)) {
+                newBackend = new SimulatedBackend(SimulatedBackend.loadSettings(simConfigFile), srcvappName);
+            } else {
+                newBackend = new VSphereApiBackend(sessionPoolSize, keepAliveSeconds);
+            }
+            newBackend.login(url, userName, password);
+            backend = newBackend;
         } catch (Exception e) {
             System.out.println("Caught exception while logging into vSphere server");
             e.printStackTrace();
         }
-        return si;
+        return backend;
+    }
+
+    /**
+     * Use the given backend (e.g. a pre-configured simulator) instead of logging in
+     */
+    void
+    setBackend(VSphereBackend backend)
+    {
+        this.backend = backend;
+    }
+
+    /**
+     * Phase metrics recorded during the run
+     */
+    PhaseMetrics
+    getMetrics()
+    {
+        return metrics;
     }
 
     /**
@@ -187,39 +501,58 @@ public class DeployvApp
     public void
     vAppDeploymentHandler() throws Exception
     {
-        // login to vcva
-        si = loginTovSphere(url);
-        assert (si != null);
-        System.out.println("Succesfully logged into VC: " + vsphereIp);
+        // Reuse the sessions logged in during validation
+        assert (backend != null);
+
+        System.out.println("Build inventory snapshot ...");
+        inventory = new InventorySnapshot(backend);
+        inventory.refresh();
 
         System.out.println("Search for specified vApp in inventory...");
-        ManagedEntity orivAppMe = retrievevApp(srcvappName);
+        srcvAppMor = inventory.findvApp(srcvappName);
 
-        if (orivAppMe != null) {
+        if (srcvAppMor != null) {
             System.out.println("Found vApp: " + srcvappName + " in inventory");
-            ManagedObjectReference orivAppMor = orivAppMe.getMOR();
-            srcvAppObject = new VirtualApp(si.getServerConnection(), orivAppMor);
-            VirtualMachine[] vms = srcvAppObject.getVMs();
-
-            if (vms.length > 0) {
-                ManagedObjectReference srcHostMor = vms[0].getRuntime().getHost();
-                HostSystem hs = new HostSystem(si.getServerConnection(), srcHostMor);
-                String srcHostName = hs.getName();
+            List<VAppVmInfo> srcVms = backend.getvAppVms(srcvAppMor);
+
+            if (srcVms.size() > 0) {
+                ManagedObjectReference srcHostMor = srcVms.get(0).getHostMor();
+                String srcHostName = inventory.getHostName(srcHostMor);
                 System.out.println("Found Source Host: " + srcHostName);
 
+                // Space each clone claims on its target datastore while in flight
+                srcvAppBytes = VAppVmInfo.totalCommittedBytes(srcVms);
+
                 System.out.println("Retrieve Hosts list from inventory ...");
-                ManagedEntity[] allHosts = retrieveHosts();
+                if (hostFilter == null) {
+                    hostFilter = new HostFilter(includeHosts, excludeHosts, includeClusters, excludeClusters,
+                        maxHostLoad, hostRefreshSeconds);
+                }
+                List<ManagedObjectReference> allHosts = inventory.getHosts();
                 allDestHostsMor = new ArrayList<ManagedObjectReference>();
 
-                if (allHosts.length > 1) {
+                if (allHosts.size() > 1) {
                     System.out.println(
                         "Found more than one host in inventory, forming target host's list for vApp deployment");
 
-                    for (ManagedEntity tempHostMe : allHosts) {
-                        if (!tempHostMe.getName().equals(srcHostName)) {
-                            allDestHostsMor.add(tempHostMe.getMOR());
+                    for (ManagedObjectReference tempHostMor : allHosts) {
+                        if (inventory.getHostName(tempHostMor).equals(srcHostName)
+                            || !hostFilter.matches(inventory, tempHostMor)) {
+                            continue;
+                        }
+                        // Hosts that are down now are left out, overloaded ones are checked again every iteration
+                        if (hostFilter.isDown(inventory, tempHostMor)) {
+                            System.out.println("Leave out host: " + inventory.getHostName(tempHostMor) + ", "
+                                + hostFilter.skipReason(inventory, tempHostMor));
+                        } else {
+                            allDestHostsMor.add(tempHostMor);
                         }
                     }
+                    System.out.println("Deploy to " + allDestHostsMor.size() + " of " + allHosts.size() + " hosts");
+
+                    if (allDestHostsMor.isEmpty()) {
+                        System.err.println("[Error] No destination host is left after host filters and health checks");
+                    }
                 } else {
                     System.out.println("There is only one host in the inventory, using the same as target host");
                     allDestHostsMor.add(srcHostMor);
@@ -233,216 +566,1314 @@ public class DeployvApp
 
         if (allDestHostsMor != null && allDestHostsMor.size() > 0) {
 
-            for (int i = 1; i <= iteration; i++) {
+            // Pipelined lifecycles hold their slots until their vApp is destroyed, give every host room for its
+            // in-flight depth so the next iteration's clone can overlap the previous one's cleanup. A host's warm
+            // pool vApps are cycled together, so every host gets room for its whole pool
+            int hostSlots = 1;
+            if (runMode.equals(RUN_MODE_PIPELINED) && warmPoolSize <= 0) {
+                hostSlots = Math.max(hostSlots, inflightDepth);
+            }
+            if (warmPoolSize > 0) {
+                hostSlots = Math.max(hostSlots, warmPoolSize);
+            }
+            if (perHostLimit > DeploymentScheduler.UNLIMITED && perHostLimit < hostSlots) {
+                perHostLimit = hostSlots;
+            }
+
+            // By default run every destination host in parallel, as before
+            if (maxConcurrent <= 0) {
+                maxConcurrent = allDestHostsMor.size() * hostSlots;
+            }
+            scheduler = new DeploymentScheduler(maxConcurrent, perHostLimit, perDatastoreLimit);
+            placement = DatastorePlacement.forPolicy(placementPolicy, inventory);
+            readinessGate = new ReadinessGate(readyCondition, dwellSeconds * 1000, readyTimeoutSeconds * 1000);
+
+            // Lifecycles report through the event log, so the console gets a status line instead of every step
+            events = new EventLog(eventTraceFile, statusIntervalSeconds, verbose, runLabel);
+            events.start();
+            backend.setEventLog(events);
+
+            // Adaptive mode admits clone/power operations between the floor and all deployment threads
+            admission = new AdmissionController(concurrencyMode, minConcurrent, maxConcurrent,
+                scheduler.getExecutor(), events);
+
+            // Every vSphere task is waited for until its phase's deadline at most
+            deadlines = new PhaseDeadlines(phaseDeadlines, backend, scheduler, events);
+
+            // Without batching or boot caps every vApp powers on its VMs in its own task, as before
+            if (bootBatchSize > 0 || maxBoots > 0 || maxDatastoreBoots > 0) {
+                bootController = new BootStormController(backend, scheduler, admission, deadlines, metrics, events,
+                    bootBatchSize, bootWindowMs, maxBoots, maxDatastoreBoots, bootRampSeconds * 1000,
+                    bootHoldSeconds * 1000);
+            }
+
+            // Clean up whatever an earlier, crashed run left behind before any new work starts
+            openJournal();
+            sweepOrphans();
+
+            // Linked clones share the source disks, only full clones read them all
+            if (fanOutSeeds > 0 && !cloneMode.equals(CLONE_MODE_LINKED)) {
+                events.notice("Seed " + fanOutSeeds + " copies of vApp: " + srcvappName + " for tree fan-out");
+                fanOut = new SeedFanOut(backend, inventory, placement, deadlines, metrics, events, journal,
+                    srcvAppMor, srcvappName, srcvAppBytes, fanOutSeeds);
+                fanOut.seed(allDestHostsMor);
+            }
+
+            if (runMode.equals(RUN_MODE_OPEN_LOOP)) {
+                runOpenLoop();
+            } else if (warmPoolSize > 0) {
+                runWarmPool();
+            } else if (runMode.equals(RUN_MODE_PIPELINED)) {
+                runPipelined();
+            } else {
+                runWithBarrier();
+            }
+
+            if (fanOut != null) {
+                fanOut.cleanup();
+            }
+            scheduler.shutdown();
+            admission.printSummary();
+
+            // Messages of the logout that follows go straight to the console
+            backend.setEventLog(null);
+            events.close();
+
+            if (journal != null) {
+                journal.close();
+            }
+            cloneStats.print();
+            hostFilter.printSummary();
+
+            if (bootController != null) {
+                bootController.printSummary();
+            }
+
+            RunReport runReport = new RunReport(metrics);
+            runReport.printSummary();
+
+            if (reportDir != null) {
                 try {
-                    System.out.println("\n***************  ITERATION - " + i + "  *************** ");
-                    List<Thread> allThreads = new ArrayList<Thread>();
-
-                    for (ManagedObjectReference tempHostMor : allDestHostsMor) {
-                        VAppDeploymentClass vappDepClassObj = new VAppDeploymentClass(tempHostMor);
-                        Thread vAppDepThread = new Thread(vappDepClassObj);
-                        vAppDepThread.start();
-                        allThreads.add(vAppDepThread);
-                        Thread.sleep(1000);
-                    }
-                    for (Thread t : allThreads) {
-                        t.join();
-                    }
+                    runReport.write(reportDir);
                 } catch (Exception e) {
-                    System.err.println("[Error] Caught exception while deploying vApps");
+                    System.err.println("[Error] Unable to write run report to: " + reportDir);
+                    e.printStackTrace();
                 }
-                System.out.println("**********************************************************************");
             }
         }
 
-        try {
-            Thread.sleep(1000 * 3);
-        } catch (Exception e) {
-            // eat out the exception
-        }
+        backend.logout();
         System.out.println("######################### Script execution completed #########################");
 
     }
 
     /**
-     * Class to handle deployment of vAPPs, per Host once
+     * Open the run journal. A fresh run starts a new journaled run, once the sweeper is done with the old one
      */
-    class VAppDeploymentClass implements Runnable
+    private void
+    openJournal()
     {
-        ManagedObjectReference destHostMor;
+        try {
+            journal = new RunJournal(journalFile);
+        } catch (IOException e) {
+            events.error(null, 0, null, "[Error] Unable to open run journal: " + journalFile + ", running without one");
+            journal = null;
+        }
+    }
 
-        VAppDeploymentClass(ManagedObjectReference hostMor)
-        {
-            destHostMor = hostMor;
+    /**
+     * Power off and destroy, in parallel, the clones of unfinished lifecycles of the journaled run. With resume,
+     * lifecycles that got past clone are left to pick up where they stopped, only half cloned vApps and fan-out
+     * seeds are swept
+     */
+    private void
+    sweepOrphans() throws Exception
+    {
+        if (journal == null) {
+            return;
         }
+        List<CompletableFuture<Void>> allSweeps = new ArrayList<CompletableFuture<Void>>();
+
+        for (RunJournal.Entry entry : journal.getUnfinished()) {
+            // Warm pools and vApps of earlier runs are not resumed, a new run clones a new pool
+            if (resume && !entry.isCarried() && !entry.getPhase().equals(LifecyclePhase.CLONE.name())
+                && !entry.getPhase().equals(RunJournal.PHASE_SEED) && entry.getIteration() >= 0) {
+                continue;
+            }
+            ManagedObjectReference hostMor = hostMor(entry.getHostVal());
+            ManagedObjectReference orphanMor = entry.getvAppName() == null ? null
+                : inventory.findvApp(entry.getvAppName());
+
+            if (orphanMor == null) {
+                // Crashed before the clone got created, or it is gone already
+                journal.record(entry.getHostVal(), entry.getIteration(), RunJournal.PHASE_SWEPT,
+                    entry.getvAppName(), null);
+                continue;
+            }
+            events.notice("Sweep leftover vApp: " + entry.getvAppName());
+            allSweeps.add(scheduler.submit(hostMor, new VAppDeploymentClass(hostMor, entry.getIteration(),
+                LifecyclePhase.POWER_OFF, entry.getvAppName(), orphanMor, LifecycleKind.SWEEP)));
+        }
+
+        if (!allSweeps.isEmpty()) {
+            events.notice("Sweeping " + allSweeps.size() + " leftover vApp(s) of the journaled run ...");
 
-        @Override
-        public void
-        run() {
             try {
+                CompletableFuture.allOf(allSweeps.toArray(new CompletableFuture<?>[allSweeps.size()])).join();
+            } catch (Exception e) {
+                events.error(null, 0, null, "[Error] Caught exception while sweeping leftover vApps");
+            }
+        }
 
-                HostSystem ihs = new HostSystem(si.getServerConnection(), destHostMor);
-                String hostName = ihs.getName();
-                System.out.println("vAPP Clone/Deploy operation is about to start ...");
-                System.out.println("~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~");
-                System.out.println("Host : " + hostName);
-                System.out.println("~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~");
+        if (!resume) {
+            journal.startRun(srcvappName, iteration);
+        }
+    }
 
-                VAppCloneSpec vappCloneSpec = new VAppCloneSpec();
-                vappCloneSpec.setHost(destHostMor);
+    /**
+     * Lifecycle to run for the host and iteration - a new one, one resumed from the journal, or null if the journal
+     * says it is done already
+     */
+    private VAppDeploymentClass
+    newLifecycle(ManagedObjectReference hostMor, int i)
+    {
+        RunJournal.Entry entry = (resume && journal != null) ? journal.get(hostMor.getVal(), i) : null;
 
-                Datastore targetDs = null;
-                HostSystem tempIhs = new HostSystem(si.getServerConnection(), destHostMor);
+        if (entry == null || entry.isSwept()) {
+            return new VAppDeploymentClass(hostMor, i);
+        }
+        if (entry.isFinished()) {
+            events.notice("Iteration " + i + " on host: " + hostMor.getVal() + " is done already, skip it");
+            return null;
+        }
 
-                for (Datastore tempDs : tempIhs.getDatastores()) {
+        try {
+            ManagedObjectReference resumeMor = entry.getvAppName() == null ? null
+                : inventory.findvApp(entry.getvAppName());
+
+            if (resumeMor != null) {
+                events.notice("Resume vApp: " + entry.getvAppName() + " at " + entry.getPhase() + " phase");
+                return new VAppDeploymentClass(hostMor, i, LifecyclePhase.valueOf(entry.getPhase()),
+                    entry.getvAppName(), resumeMor, LifecycleKind.FULL);
+            }
+        } catch (Exception e) {
+            events.error(null, 0, null, "[Error] Could not look up vApp: " + entry.getvAppName() + " to resume");
+        }
+        return new VAppDeploymentClass(hostMor, i);
+    }
 
-                    if (tempDs.getSummary().isAccessible()) {
-                        targetDs = tempDs;
-                        break;
+    /**
+     * Whether a new lifecycle can start on the host, as per the host filter's health and load checks on the latest
+     * snapshot. Lifecycles resumed from the journal always go ahead, to finish what they started
+     */
+    private boolean
+    hostAvailable(ManagedObjectReference hostMor, int i)
+    {
+        if (resume && journal != null && journal.get(hostMor.getVal(), i) != null) {
+            return true;
+        }
+        try {
+            String skipReason = hostFilter.skipReason(inventory, hostMor);
+
+            if (skipReason != null) {
+                events.info("[" + inventory.getHostName(hostMor) + "] Skip iteration " + i + ", " + skipReason);
+                hostFilter.countSkipped();
+                return false;
+            }
+        } catch (Exception e) {
+            events.error(null, 0, null, "[Error] Could not check health of host: " + hostMor.getVal());
+        }
+        return true;
+    }
+
+    /**
+     * Host MOR of the journaled MOR value
+     */
+    private ManagedObjectReference
+    hostMor(String hostVal)
+    {
+        for (ManagedObjectReference tempHostMor : allDestHostsMor) {
+            if (tempHostMor.getVal().equals(hostVal)) {
+                return tempHostMor;
+            }
+        }
+        ManagedObjectReference hostMor = new ManagedObjectReference();
+        hostMor.setType("HostSystem");
+        hostMor.setVal(hostVal);
+        return hostMor;
+    }
+
+    /**
+     * Run iterations in lock step - every host finishes iteration N before any host starts iteration N+1
+     */
+    private void
+    runWithBarrier()
+    {
+        for (int i = 1; i <= iteration; i++) {
+            try {
+                events.notice("\n***************  ITERATION - " + i + "  *************** ");
+
+                // Pick up datastore capacity/accessibility changes made by the previous iteration
+                // as well as host health and load
+                if (i > 1) {
+                    inventory.refresh();
+                    hostFilter.refreshed();
+                }
+                List<CompletableFuture<Void>> allDeployments = new ArrayList<CompletableFuture<Void>>();
+
+                for (ManagedObjectReference tempHostMor : allDestHostsMor) {
+                    if (!hostAvailable(tempHostMor, i)) {
+                        continue;
                     }
+                    VAppDeploymentClass vappDepClassObj = newLifecycle(tempHostMor, i);
+
+                    if (vappDepClassObj != null) {
+                        allDeployments.add(scheduler.submit(tempHostMor, vappDepClassObj));
+                    }
+                }
+                CompletableFuture.allOf(allDeployments.toArray(new CompletableFuture<?>[allDeployments.size()]))
+                    .join();
+            } catch (Exception e) {
+                events.error(null, 0, null, "[Error] Caught exception while deploying vApps");
+            }
+            events.notice("**********************************************************************");
+        }
+    }
+
+    /**
+     * Run iterations back to back on each host, without waiting for the other hosts
+     */
+    private void
+    runPipelined() throws Exception
+    {
+        events.notice("Pipelined run, up to " + inflightDepth + " in-flight lifecycle(s) per host");
+
+        List<CompletableFuture<Void>> allPipelines = new ArrayList<CompletableFuture<Void>>();
+
+        for (ManagedObjectReference tempHostMor : allDestHostsMor) {
+            allPipelines.add(new HostPipeline(tempHostMor).get());
+        }
+        try {
+            CompletableFuture.allOf(allPipelines.toArray(new CompletableFuture<?>[allPipelines.size()])).join();
+        } catch (Exception e) {
+            events.error(null, 0, null, "[Error] Caught exception while deploying vApps");
+        }
+        events.notice("**********************************************************************");
+    }
+
+    /**
+     * Open loop run - start lifecycles at the profile's arrival rate, weighted round robin over the destination
+     * hosts, whether or not earlier ones have completed. Lifecycle latency counts from the intended start time, so
+     * time spent queued behind the concurrency limits is part of it
+     */
+    private void
+    runOpenLoop()
+    {
+        final ArrivalProfile profile = rateProfile != null ? ArrivalProfile.parse(rateProfile)
+            : ArrivalProfile.constant(arrivalRate, arrivalSeconds);
+        events.notice("Open loop run, " + String.format("%.0f", profile.getExpectedArrivals())
+            + " lifecycle(s) over " + profile.getDurationMs() / 1000 + " seconds");
+
+        final List<CompletableFuture<Void>> allLifecycles = new ArrayList<CompletableFuture<Void>>();
+        final CompletableFuture<Void> arrivalsDone = new CompletableFuture<Void>();
+        final long runStartTime = System.currentTimeMillis();
+
+        scheduleArrival(profile, runStartTime, 0.0, 1, allLifecycles, arrivalsDone);
+        arrivalsDone.join();
+
+        List<CompletableFuture<Void>> startedLifecycles;
+        synchronized (allLifecycles) {
+            startedLifecycles = new ArrayList<CompletableFuture<Void>>(allLifecycles);
+        }
+        events.notice("All " + startedLifecycles.size() + " arrivals issued, wait for lifecycles in flight ...");
+        joinAll(startedLifecycles);
+
+        long arrivalMs = Math.max(1L, profile.getDurationMs());
+        events.notice(String.format("Open loop: %d lifecycle(s) issued in %d s, %.1f per minute (target %.1f), "
+            + "all done after %d s", startedLifecycles.size(), arrivalMs / 1000,
+            startedLifecycles.size() * 60000.0 / arrivalMs, profile.getExpectedArrivals() * 60000.0 / arrivalMs,
+            (System.currentTimeMillis() - runStartTime) / 1000));
+        events.notice("**********************************************************************");
+    }
+
+    /**
+     * Issue the arrival intended at the offset from the run start, then schedule the next one after the interval
+     * the rate at that time asks for. Intended times are computed, never taken from when the previous one ran,
+     * so a late event loop does not lower the rate
+     */
+    private void
+    scheduleArrival(final ArrivalProfile profile, final long runStartTime, final double offsetMs, final int arrivalNo,
+        final List<CompletableFuture<Void>> allLifecycles, final CompletableFuture<Void> arrivalsDone)
+    {
+        final double ratePerMinute = profile.rateAt(offsetMs);
+
+        if (ratePerMinute < 0) {
+            arrivalsDone.complete(null);
+            return;
+        }
+
+        // Nothing to issue while the rate is (close to) zero, look again a second later
+        if (ratePerMinute < MIN_ARRIVAL_RATE) {
+            scheduler.delay(1000).thenRunAsync(new Runnable() {
+                @Override
+                public void
+                run()
+                {
+                    scheduleArrival(profile, runStartTime, offsetMs + 1000, arrivalNo, allLifecycles, arrivalsDone);
                 }
-                vappCloneSpec.setLocation(targetDs.getMOR());
+            }, scheduler.getExecutor());
+            return;
+        }
 
-                ResourcePool targetResPool = null;
-                ComputeResource hostResource = new ComputeResource(si.getServerConnection(), destHostMor);
-                ManagedEntity[] allRespools = new InventoryNavigator(si.getRootFolder())
-                    .searchManagedEntities(RESPOOL_MOR_TYPE);
+        final long intendedStartTime = runStartTime + (long) offsetMs;
+        scheduler.delay(Math.max(0L, intendedStartTime - System.currentTimeMillis())).thenRunAsync(new Runnable() {
+            @Override
+            public void
+            run()
+            {
+                ManagedObjectReference hostMor = nextArrivalHost();
 
-                for (int i = 0; i < allRespools.length; i++) {
-                    ResourcePool tempResPool = (ResourcePool) allRespools[i];
+                if (hostMor != null) {
+                    VAppDeploymentClass lifecycle = new VAppDeploymentClass(hostMor, arrivalNo);
+                    lifecycle.intendedStartTime = intendedStartTime;
 
-                    if (tempResPool.getOwner().getName().equals(hostResource.getName())) {
-                        targetResPool = tempResPool;
-                        break;
+                    synchronized (allLifecycles) {
+                        allLifecycles.add(scheduler.submit(hostMor, lifecycle));
                     }
+                } else {
+                    events.error(null, arrivalNo, null,
+                        "[Error] No destination host can take arrival " + arrivalNo + ", skip it");
+                    hostFilter.countSkipped();
                 }
+                scheduleArrival(profile, runStartTime, offsetMs + 60000.0 / ratePerMinute, arrivalNo + 1,
+                    allLifecycles, arrivalsDone);
+            }
+        }, scheduler.getExecutor());
+    }
+
+    /**
+     * Destination host of the next arrival - weighted round robin over the healthy hosts by load headroom, with
+     * host health refreshed every refresh interval
+     */
+    private ManagedObjectReference
+    nextArrivalHost()
+    {
+        try {
+            hostFilter.refreshIfDue(inventory);
+            return hostFilter.next(inventory, allDestHostsMor);
+        } catch (Exception e) {
+            events.error(null, 0, null, "[Error] Could not check destination host health, use plain round robin");
+            return allDestHostsMor.get(roundRobin.getAndIncrement() % allDestHostsMor.size());
+        }
+    }
+
+    /**
+     * Warm pool run - clone warmPoolSize vApps per host once, power cycle them for every iteration (in lock step or
+     * back to back per host, as per run mode), optionally reverting them to their snapshot between rounds, and
+     * destroy them at the end. The hosts' pool vApps are cycled together, as one deployment of the host
+     */
+    private void
+    runWarmPool()
+    {
+        events.notice("Warm pool run, " + warmPoolSize + " vApp(s) per host"
+            + (warmReset ? ", reverted to snapshot between rounds" : ""));
+
+        final Map<String, List<VAppDeploymentClass>> pool = new HashMap<String, List<VAppDeploymentClass>>();
+        Map<String, List<VAppDeploymentClass>> creates = new HashMap<String, List<VAppDeploymentClass>>();
+
+        for (ManagedObjectReference tempHostMor : allDestHostsMor) {
+            List<VAppDeploymentClass> hostCreates = new ArrayList<VAppDeploymentClass>();
 
-                ManagedEntity tempMgdEntityObj = tempIhs.getParent();
+            for (int slot = 1; slot <= warmPoolSize; slot++) {
+                VAppDeploymentClass create = new VAppDeploymentClass(tempHostMor, 0, LifecyclePhase.CLONE, null, null,
+                    LifecycleKind.WARM_CREATE);
+                create.journalIteration = -slot;
+                hostCreates.add(create);
+            }
+            creates.put(tempHostMor.getVal(), hostCreates);
+        }
+        events.notice("\n***************  WARM POOL CLONE  *************** ");
+        runHostGroups(creates);
 
-                while (!tempMgdEntityObj.getMOR().getType().equals(DC_MOR_TYPE)) {
-                    tempMgdEntityObj = tempMgdEntityObj.getParent();
+        for (Map.Entry<String, List<VAppDeploymentClass>> entry : creates.entrySet()) {
+            List<VAppDeploymentClass> members = new ArrayList<VAppDeploymentClass>();
+
+            for (VAppDeploymentClass create : entry.getValue()) {
+                if (create.pooled) {
+                    members.add(create);
                 }
+            }
+            pool.put(entry.getKey(), members);
+        }
 
-                Folder vmFolder = ((Datacenter) tempMgdEntityObj).getVmFolder();
-                vappCloneSpec.setVmFolder(vmFolder.getMOR());
+        if (runMode.equals(RUN_MODE_PIPELINED)) {
+            List<CompletableFuture<Void>> allHostRounds = new ArrayList<CompletableFuture<Void>>();
 
-                String timeStamp = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(Calendar.getInstance().getTime());
-                String newvAppName = srcvappName + timeStamp + hostName;
-                Task taskWhole = srcvAppObject.cloneVApp_Task(newvAppName, targetResPool.getMOR(), vappCloneSpec);
+            for (ManagedObjectReference tempHostMor : allDestHostsMor) {
+                allHostRounds.add(warmRounds(pool.get(tempHostMor.getVal()), 1));
+            }
+            joinAll(allHostRounds);
+        } else {
+            for (int i = 1; i <= iteration; i++) {
+                events.notice("\n***************  ITERATION - " + i + "  *************** ");
+                Map<String, List<VAppDeploymentClass>> rounds = new HashMap<String, List<VAppDeploymentClass>>();
 
-                VirtualApp newvAppObject = null;
-                System.out.println("Monitor vApp: " + newvAppName + " deployment task ...");
+                for (Map.Entry<String, List<VAppDeploymentClass>> entry : pool.entrySet()) {
+                    rounds.put(entry.getKey(), warmCycles(entry.getValue(), i));
+                }
+                runHostGroups(rounds);
+            }
+        }
 
-                if (taskTracker(taskWhole, newvAppName, "Deploy task")) {
-                    ManagedEntity newvAppMe = retrievevApp(newvAppName);
+        Map<String, List<VAppDeploymentClass>> teardowns = new HashMap<String, List<VAppDeploymentClass>>();
 
-                    if (newvAppMe != null) {
-                        System.out.println("vApp: " + newvAppName + " deployment suceeded");
-                        newvAppObject = new VirtualApp(si.getServerConnection(), newvAppMe.getMOR());
+        for (Map.Entry<String, List<VAppDeploymentClass>> entry : pool.entrySet()) {
+            List<VAppDeploymentClass> hostTeardowns = new ArrayList<VAppDeploymentClass>();
 
-                        System.out.println("Poweron All VMs from vApp: " + newvAppName);
-                        Datacenter dcObj = new Datacenter(si.getServerConnection(),
-                            ((Datacenter) tempMgdEntityObj).getMOR());
-                        Task listOfPoweronVmTasks = dcObj.powerOnMultiVM_Task(newvAppObject.getVMs());
+            for (VAppDeploymentClass member : entry.getValue()) {
+                VAppDeploymentClass teardown = new VAppDeploymentClass(member.destHostMor, iteration,
+                    LifecyclePhase.POWER_OFF, member.newvAppName, member.newvAppMor, LifecycleKind.TEARDOWN);
+                teardown.journalIteration = member.journalIteration;
+                hostTeardowns.add(teardown);
+            }
+            teardowns.put(entry.getKey(), hostTeardowns);
+        }
+        events.notice("\n***************  WARM POOL DESTROY  *************** ");
+        runHostGroups(teardowns);
+        events.notice("**********************************************************************");
+    }
 
-                        // Monitor all VMs poweron task
-                        if (taskTracker(listOfPoweronVmTasks, newvAppName, "PowerOn VM")) {
-                            System.out
-                                .println("All VMs from vAPP: " + newvAppName + " have been poweredOn successfully");
-                        } else {
-                            System.err.println("Not All VMs from vApp: " + newvAppName + " could be powered on");
-                        }
-                    } else {
-                        System.err.println("vApp: " + newvAppName + " deployment task failed");
-                    }
-                } else {
-                    System.err.println("Could not find deployed vApp: " + newvAppName + " in inventory");
+    /**
+     * Power cycle lifecycles of the host's pool vApps for the round
+     */
+    private List<VAppDeploymentClass>
+    warmCycles(List<VAppDeploymentClass> members, int round)
+    {
+        List<VAppDeploymentClass> cycles = new ArrayList<VAppDeploymentClass>();
+
+        for (VAppDeploymentClass member : members) {
+            VAppDeploymentClass cycle = new VAppDeploymentClass(member.destHostMor, round,
+                (warmReset && round > 1) ? LifecyclePhase.RESET : LifecyclePhase.POWER_ON, member.newvAppName,
+                member.newvAppMor, LifecycleKind.WARM_CYCLE);
+            cycle.journalIteration = member.journalIteration;
+            cycles.add(cycle);
+        }
+        return cycles;
+    }
+
+    /**
+     * Run the host's remaining rounds back to back
+     */
+    private CompletableFuture<Void>
+    warmRounds(final List<VAppDeploymentClass> members, final int round)
+    {
+        if (round > iteration) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return startAll(warmCycles(members, round)).thenComposeAsync(new Function<Void, CompletableFuture<Void>>() {
+            @Override
+            public CompletableFuture<Void>
+            apply(Void v)
+            {
+                return warmRounds(members, round + 1);
+            }
+        }, scheduler.getExecutor());
+    }
+
+    /**
+     * Run every host's group of lifecycles and wait for all of them
+     */
+    private void
+    runHostGroups(Map<String, List<VAppDeploymentClass>> hostGroups)
+    {
+        List<CompletableFuture<Void>> allGroups = new ArrayList<CompletableFuture<Void>>();
+
+        for (ManagedObjectReference tempHostMor : allDestHostsMor) {
+            List<VAppDeploymentClass> group = hostGroups.get(tempHostMor.getVal());
+
+            if (group == null || group.isEmpty()) {
+                continue;
+            }
+            allGroups.add(startAll(group));
+        }
+        joinAll(allGroups);
+    }
+
+    /**
+     * Start the lifecycles, each one once the scheduler has a global and a host slot for it
+     */
+    private CompletableFuture<Void>
+    startAll(List<VAppDeploymentClass> lifecycles)
+    {
+        List<CompletableFuture<Void>> allDone = new ArrayList<CompletableFuture<Void>>();
+
+        for (VAppDeploymentClass lifecycle : lifecycles) {
+            allDone.add(scheduler.submit(lifecycle.destHostMor, lifecycle));
+        }
+        return CompletableFuture.allOf(allDone.toArray(new CompletableFuture<?>[allDone.size()]));
+    }
+
+    private void
+    joinAll(List<CompletableFuture<Void>> futures)
+    {
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).join();
+        } catch (Exception e) {
+            events.error(null, 0, null, "[Error] Caught exception while deploying vApps");
+        }
+    }
+
+    /**
+     * Future already completed with the given exception
+     */
+    static <T> CompletableFuture<T>
+    failedFuture(Throwable t)
+    {
+        CompletableFuture<T> failed = new CompletableFuture<T>();
+        failed.completeExceptionally(t);
+        return failed;
+    }
+
+    /**
+     * Phases of a vApp deployment lifecycle
+     */
+    enum LifecyclePhase
+    {
+        CLONE, SNAPSHOT, RESET, POWER_ON, READY, POWER_OFF, DESTROY, DONE
+    }
+
+    /**
+     * What a lifecycle is run for - a full clone to destroy lifecycle, creating, power cycling or tearing down a
+     * warm pool vApp, or sweeping a leftover vApp of an earlier run
+     */
+    enum LifecycleKind
+    {
+        FULL, WARM_CREATE, WARM_CYCLE, TEARDOWN, SWEEP
+    }
+
+    /**
+     * Class to handle deployment of vAPPs, per Host once. The lifecycle runs as a state machine of asynchronous
+     * phases on the scheduler's event loop - no thread is held while a task runs or a wait elapses
+     */
+    class VAppDeploymentClass implements Supplier<CompletableFuture<Void>>
+    {
+        ManagedObjectReference destHostMor;
+        int iterationNo;
+        String hostName;
+        String newvAppName;
+        ManagedObjectReference newvAppMor = null;
+        List<ManagedObjectReference> poweredOnVms = new ArrayList<ManagedObjectReference>();
+        boolean destroyed = false;
+        // Datastore the vApp was cloned onto, null for resumed lifecycles
+        ManagedObjectReference vAppDsMor = null;
+        long lifecycleStartTime;
+        volatile LifecyclePhase phase = LifecyclePhase.CLONE;
+        LifecyclePhase startPhase = LifecyclePhase.CLONE;
+        boolean lifecycleSucceeded = false;
+
+        // Open loop runs - when the lifecycle should have started, 0 when it starts right away
+        long intendedStartTime = 0L;
+
+        // Only full lifecycles and warm pool power cycles are counted as lifecycles
+        LifecycleKind kind = LifecycleKind.FULL;
+
+        // Journal key of the lifecycle, warm pool vApps are journaled as iteration -<pool slot> of their host
+        int journalIteration;
+        boolean pooled = false;
+
+        // Completes once the vApp is deployed (or failed to), and once the whole lifecycle is done
+        final CompletableFuture<Void> deployed = new CompletableFuture<Void>();
+        final CompletableFuture<Void> done = new CompletableFuture<Void>();
+
+        VAppDeploymentClass(ManagedObjectReference hostMor, int iterationNo)
+        {
+            destHostMor = hostMor;
+            this.iterationNo = iterationNo;
+            this.journalIteration = iterationNo;
+
+            try {
+                hostName = inventory.getHostName(destHostMor);
+            } catch (Exception e) {
+                hostName = destHostMor.getVal();
+            }
+        }
+
+        /**
+         * Lifecycle of the given kind, starting at the given phase. vApp name and MOR are those of an already
+         * cloned vApp, null if the lifecycle clones it
+         */
+        VAppDeploymentClass(ManagedObjectReference hostMor, int iterationNo, LifecyclePhase startPhase,
+            String vAppName, ManagedObjectReference vAppMor, LifecycleKind kind)
+        {
+            this(hostMor, iterationNo);
+            this.startPhase = startPhase;
+            this.newvAppName = vAppName;
+            this.newvAppMor = vAppMor;
+            this.kind = kind;
+        }
+
+        /**
+         * Start the lifecycle, returned future completes once it is done
+         */
+        @Override
+        public CompletableFuture<Void>
+        get()
+        {
+            lifecycleStartTime = System.currentTimeMillis();
+
+            // Latency of an open loop lifecycle includes the time it waited to start
+            if (intendedStartTime > 0) {
+                metrics.record(PhaseMetrics.PHASE_START_DELAY, hostName, iterationNo, intendedStartTime, true);
+                lifecycleStartTime = intendedStartTime;
+            }
+
+            if (startPhase == LifecyclePhase.READY) {
+                // Resumed while waiting for the guests, wait for those that are on
+                try {
+                    poweredOnVms = VAppVmInfo.vmMors(backend.getvAppVms(newvAppMor),
+                        VirtualMachinePowerState.poweredOn);
+                } catch (Exception e) {
+                    reportError("[Error] Could not read power state of vApp: " + newvAppName);
                 }
+            }
+            advance(startPhase);
+            return done;
+        }
+
+        /**
+         * Failures go to the event log, which prints them to the console without interleaving
+         */
+        private void
+        reportError(String message)
+        {
+            events.error(hostName, iterationNo, newvAppName, message);
+        }
 
-                System.out.println("Begin cleanup tasks ...");
-                Thread.sleep(1000 * 10);
+        /**
+         * Journal the lifecycle's current phase and whatever is known about its vApp
+         */
+        private void
+        journalPhase(String journalPhase)
+        {
+            if (journal != null) {
+                journal.record(destHostMor.getVal(), journalIteration, journalPhase, newvAppName,
+                    newvAppMor == null ? null : newvAppMor.getVal());
+            }
+        }
 
-                System.out.println("Power off all poweredOn VMs, if any");
-                List<Task> listOfPoweroffVmTasks = new ArrayList<Task>();
+        /**
+         * Run a phase, with retries, then move on to the phase its outcome routes to
+         */
+        private void
+        advance(LifecyclePhase nextPhase)
+        {
+            phase = nextPhase;
 
-                for (VirtualMachine tempVm : newvAppObject.getVMs()) {
+            if (phase != LifecyclePhase.CLONE && phase != LifecyclePhase.POWER_ON) {
+                deployed.complete(null);
+            }
 
-                    if (tempVm.getRuntime().getPowerState().equals(VirtualMachinePowerState.poweredOn)) {
-                        Task poweroffVmTask = tempVm.powerOffVM_Task();
-                        listOfPoweroffVmTasks.add(poweroffVmTask);
-                    }
+            if (phase == LifecyclePhase.DONE) {
+                // Warm pool vApps stay unfinished in the journal until they are torn down, and so does a vApp
+                // that could not be destroyed, for the next run to sweep
+                boolean leftBehind = newvAppMor != null && !destroyed
+                    && (kind == LifecycleKind.SWEEP || kind == LifecycleKind.FULL || kind == LifecycleKind.TEARDOWN);
+
+                if (leftBehind) {
+                    reportError("vApp: " + newvAppName + " is left behind, the next run sweeps it");
+                } else if (kind == LifecycleKind.SWEEP) {
+                    journalPhase(RunJournal.PHASE_SWEPT);
+                } else if (kind == LifecycleKind.FULL || kind == LifecycleKind.TEARDOWN) {
+                    journalPhase(RunJournal.PHASE_DONE);
+                }
+                if (kind == LifecycleKind.FULL || kind == LifecycleKind.WARM_CYCLE) {
+                    metrics.record(PhaseMetrics.PHASE_LIFECYCLE, hostName, iterationNo, lifecycleStartTime,
+                        lifecycleSucceeded);
+                    events.lifecycleEnd(hostName, iterationNo, newvAppName, lifecycleSucceeded,
+                        System.currentTimeMillis() - lifecycleStartTime);
+                }
+                done.complete(null);
+                return;
+            }
+            // Clone is journaled by the clone phase itself, once the new vApp's name is known
+            if (phase != LifecyclePhase.CLONE) {
+                journalPhase(phase.name());
+            }
 
-                    // Monitor all VMs poweroff task
-                    if (taskTracker(listOfPoweroffVmTasks, newvAppName, "PowerOff VM")) {
-                        System.out.println("All VMs from vAPP: " + newvAppName + " have been poweredOff successfully");
-                    } else {
-                        System.err.println("Not All VMs from vApp: " + newvAppName + " could be powered off");
-                    }
+            final LifecyclePhase runningPhase = phase;
+            final long phaseStartTime = System.currentTimeMillis();
+            events.phaseStart(hostName, iterationNo, newvAppName, runningPhase.name().toLowerCase());
+
+            runWithRetries(runningPhase, 0).whenCompleteAsync(new BiConsumer<Boolean, Throwable>() {
+                @Override
+                public void
+                accept(Boolean succeeded, Throwable t)
+                {
+                    boolean phaseSucceeded = t == null && succeeded;
+                    events.phaseEnd(hostName, iterationNo, newvAppName, runningPhase.name().toLowerCase(),
+                        phaseSucceeded, System.currentTimeMillis() - phaseStartTime);
+                    advance(route(runningPhase, phaseSucceeded));
                 }
-                System.out.println("Destory the vAPP");
-                Thread.sleep(1000 * 10);
+            }, scheduler.getExecutor());
+        }
 
-                if (taskTracker(newvAppObject.destroy_Task(), newvAppName, "Destroy vApp")) {
-                    System.out.println("vApp: " + newvAppName + " destroyed successfully");
-                } else {
-                    System.err.println("vApp: " + newvAppName + " could not be destroyed");
+        /**
+         * Error routing - which phase follows a phase that succeeded or failed. Whatever got deployed is always
+         * powered off and destroyed again, except warm pool vApps which are only destroyed at the end of the run
+         */
+        private LifecyclePhase
+        route(LifecyclePhase fromPhase, boolean succeeded)
+        {
+            switch (fromPhase) {
+            case CLONE:
+                if (succeeded && kind == LifecycleKind.WARM_CREATE) {
+                    pooled = !warmReset;
+                    return warmReset ? LifecyclePhase.SNAPSHOT : LifecyclePhase.DONE;
+                } else if (succeeded) {
+                    return LifecyclePhase.POWER_ON;
                 }
+                return newvAppMor != null ? LifecyclePhase.DESTROY : LifecyclePhase.DONE;
+            case SNAPSHOT:
+                // A pool vApp that cannot be reset is of no use
+                pooled = succeeded;
+                return succeeded ? LifecyclePhase.DONE : LifecyclePhase.DESTROY;
+            case RESET:
+                // Skip the round, the vApp is not in its snapshot state
+                return succeeded ? LifecyclePhase.POWER_ON : LifecyclePhase.DONE;
+            case POWER_ON:
+                return succeeded ? LifecyclePhase.READY : LifecyclePhase.POWER_OFF;
+            case READY:
+                return LifecyclePhase.POWER_OFF;
+            case POWER_OFF:
+                return kind == LifecycleKind.WARM_CYCLE ? LifecyclePhase.DONE : LifecyclePhase.DESTROY;
+            default:
+                return LifecyclePhase.DONE;
+            }
+        }
+
+        /**
+         * Run the phase, retrying a failed attempt (including one whose task passed its deadline) up to phaseRetries
+         * times with growing back off. Readiness is not retried, its timeout is the retry, and neither is a clone
+         * that left a vApp behind - it is destroyed instead
+         */
+        private CompletableFuture<Boolean>
+        runWithRetries(final LifecyclePhase retryPhase, final int attempt)
+        {
+            CompletableFuture<Boolean> outcome;
 
+            try {
+                outcome = runPhase(retryPhase);
             } catch (Exception e) {
-                System.err.println("[Error] Caught exception");
-                e.printStackTrace();
+                outcome = failedFuture(e);
             }
 
-        } // End of run method
+            return outcome.handle(new BiFunction<Boolean, Throwable, Boolean>() {
+                @Override
+                public Boolean
+                apply(Boolean succeeded, Throwable t)
+                {
+                    if (t != null) {
+                        reportError("[Error] " + retryPhase + " phase of vApp: " + newvAppName
+                            + " on host: " + hostName + " caught exception: " + t);
+                        return Boolean.FALSE;
+                    }
+                    return succeeded;
+                }
+            }).thenCompose(new Function<Boolean, CompletableFuture<Boolean>>() {
+                @Override
+                public CompletableFuture<Boolean>
+                apply(Boolean succeeded)
+                {
+                    if (succeeded || attempt >= phaseRetries || retryPhase == LifecyclePhase.READY
+                        || (retryPhase == LifecyclePhase.CLONE && newvAppMor != null)) {
+                        return CompletableFuture.completedFuture(succeeded);
+                    }
+                    events.info("Retry " + retryPhase + " phase of vApp: " + newvAppName + " on host: "
+                        + hostName + " (" + (attempt + 1) + "/" + phaseRetries + ")");
+
+                    return scheduler.delay(PHASE_RETRY_DELAY_MS << Math.min(attempt, 6)).thenComposeAsync(
+                        new Function<Void, CompletableFuture<Boolean>>() {
+                            @Override
+                            public CompletableFuture<Boolean>
+                            apply(Void v)
+                            {
+                                return runWithRetries(retryPhase, attempt + 1);
+                            }
+                        }, scheduler.getExecutor());
+                }
+            });
+        }
+
+        private CompletableFuture<Boolean>
+        runPhase(LifecyclePhase runPhase) throws Exception
+        {
+            switch (runPhase) {
+            case CLONE:
+                return clonePhase();
+            case SNAPSHOT:
+                return snapshotPhase(false);
+            case RESET:
+                return snapshotPhase(true);
+            case POWER_ON:
+                return powerOnPhase();
+            case READY:
+                return readyPhase();
+            case POWER_OFF:
+                return powerOffPhase();
+            case DESTROY:
+                return destroyPhase();
+            default:
+                return CompletableFuture.completedFuture(Boolean.TRUE);
+            }
+        }
 
         /**
-         * Monitor Task progress and return final state for list of tasks
+         * Clone the vApp on to destination host
          */
-        private boolean
-        taskTracker(List<Task> listOfPoweronVmTasks, String vappName, String operation) throws Exception
+        private CompletableFuture<Boolean>
+        clonePhase() throws Exception
         {
-            boolean allTasksSucceded = false;
-            List<Boolean> taskStatusList = new ArrayList<Boolean>();
+            events.info("vAPP Clone/Deploy operation is about to start ...");
+            events.info("~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~");
+            events.info("Host : " + hostName);
+            events.info("~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~");
+
+            final VAppCloneSpec vappCloneSpec = new VAppCloneSpec();
+            vappCloneSpec.setHost(destHostMor);
+
+            // Look ups that can fail come before placement, whose capacity claim only the clone's outcome releases
+            final ManagedObjectReference targetResPoolMor = inventory.getResourcePool(destHostMor);
+            final ManagedObjectReference targetFolderMor = inventory.getVmFolder(destHostMor);
+            vappCloneSpec.setVmFolder(targetFolderMor);
+
+            final ManagedObjectReference targetDsMor = placement.place(destHostMor, srcvAppBytes);
+            if (targetDsMor == null) {
+                throw new IllegalStateException("Could not find any accessible datastore on host: " + hostName);
+            }
+            vappCloneSpec.setLocation(targetDsMor);
+            vAppDsMor = targetDsMor;
+
+            String timeStamp = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(Calendar.getInstance().getTime());
+            newvAppName = srcvappName + timeStamp + hostName;
+
+            // Journal the name before the clone task exists, so a crash during clone leaves a findable orphan
+            journalPhase(LifecyclePhase.CLONE.name());
+
+            final String lifecycleCloneMode = nextCloneMode();
+            final long cloneStartTime = System.currentTimeMillis();
+
+            // Admission to vCenter first, then hold a clone slot on the target datastore for the duration of the
+            // clone task
+            return admission.acquire()
+                .thenCompose(new Function<Void, CompletableFuture<Void>>() {
+                    @Override
+                    public CompletableFuture<Void>
+                    apply(Void v)
+                    {
+                        return scheduler.acquireDatastore(targetDsMor);
+                    }
+                })
+                .thenComposeAsync(new Function<Void, CompletableFuture<TaskInfo>>() {
+                    @Override
+                    public CompletableFuture<TaskInfo>
+                    apply(Void v)
+                    {
+                        try {
+                            if (lifecycleCloneMode.equals(CLONE_MODE_LINKED)) {
+                                events.info("Monitor vApp: " + newvAppName + " linked clone deployment ...");
+                                return trackTask(backend.linkedClonevApp(srcvAppMor, newvAppName, targetResPoolMor,
+                                    targetFolderMor, destHostMor, targetDsMor), newvAppName, "Linked clone");
+                            }
+                            // Tree fan-out reads from the host's seed instead of the source vApp
+                            ManagedObjectReference cloneSrcMor = fanOut != null ? fanOut.sourceFor(destHostMor)
+                                : srcvAppMor;
+                            TaskHandle taskWhole = backend.clonevApp(cloneSrcMor, newvAppName, targetResPoolMor,
+                                vappCloneSpec);
+                            events.info("Monitor vApp: " + newvAppName + " deployment task ...");
+                            return trackTask(taskWhole, newvAppName, "Deploy task");
+                        } catch (Exception e) {
+                            return failedFuture(e);
+                        }
+                    }
+                }, scheduler.getExecutor())
+                .handle(new BiFunction<TaskInfo, Throwable, Boolean>() {
+                    @Override
+                    public Boolean
+                    apply(TaskInfo cloneTaskInfo, Throwable t)
+                    {
+                        scheduler.releaseDatastore(targetDsMor);
+                        admission.release();
+                        placement.release(targetDsMor, srcvAppBytes);
+
+                        boolean cloneSucceeded = t == null && cloneTaskInfo.getState().equals(TaskInfoState.success);
+                        cloneStats.record(lifecycleCloneMode, System.currentTimeMillis() - cloneStartTime,
+                            cloneSucceeded);
+                        metrics.record(PhaseMetrics.PHASE_CLONE, hostName, iterationNo, cloneStartTime,
+                            cloneSucceeded);
+
+                        if (!cloneSucceeded) {
+                            reportError("vApp: " + newvAppName + " deployment task failed");
+                            findPartialvApp();
+                            return Boolean.FALSE;
+                        }
+
+                        // Clone task result is the new vApp, no need to search the inventory for it
+                        newvAppMor = (ManagedObjectReference) cloneTaskInfo.getResult();
+                        if (newvAppMor == null) {
+                            reportError("Could not find deployed vApp: " + newvAppName
+                                + " in clone task result");
+                            return Boolean.FALSE;
+                        }
+                        events.info("vApp: " + newvAppName + " deployment suceeded");
+                        inventory.addvApp(newvAppName, newvAppMor);
+                        return Boolean.TRUE;
+                    }
+                });
+        }
+
+        /**
+         * A clone that failed or was cancelled past its deadline may have created the vApp anyway, pick it up so
+         * cleanup destroys it
+         */
+        private void
+        findPartialvApp()
+        {
+            try {
+                newvAppMor = inventory.findvApp(newvAppName);
+
+                if (newvAppMor != null) {
+                    reportError("vApp: " + newvAppName + " of the failed clone exists, destroy it");
+                }
+            } catch (Exception e) {
+                reportError("[Error] Could not look up vApp: " + newvAppName + " of the failed clone");
+            }
+        }
 
-            for (Task tempTaskMor : listOfPoweronVmTasks) {
-                Boolean tempTaskStatus = taskTracker(tempTaskMor, vappName, operation);
-                taskStatusList.add(tempTaskStatus);
+        /**
+         * Power on all VMs of the deployed vApp in one multi-VM task, or hand them to the power on controller to go
+         * out in batches with the VMs of other vApps
+         */
+        private CompletableFuture<Boolean>
+        powerOnPhase() throws Exception
+        {
+            events.info("Poweron All VMs from vApp: " + newvAppName);
+            final long powerOnStartTime = System.currentTimeMillis();
+            final ManagedObjectReference dcMor = inventory.getDatacenter(destHostMor);
+            final List<ManagedObjectReference> poweredOffVms = VAppVmInfo.vmMors(backend.getvAppVms(newvAppMor),
+                VirtualMachinePowerState.poweredOff);
+
+            if (bootController != null) {
+                return bootController.powerOn(dcMor, vAppDsMor, hostName, iterationNo, poweredOffVms)
+                    .thenApply(new Function<Boolean, Boolean>() {
+                        @Override
+                        public Boolean
+                        apply(Boolean succeeded)
+                        {
+                            return poweredOn(poweredOffVms, powerOnStartTime, succeeded);
+                        }
+                    });
             }
 
-            if (taskStatusList.contains(Boolean.FALSE)) {
-                allTasksSucceded = false;
+            return admission.acquire()
+                .thenComposeAsync(new Function<Void, CompletableFuture<Boolean>>() {
+                    @Override
+                    public CompletableFuture<Boolean>
+                    apply(Void v)
+                    {
+                        try {
+                            List<TaskHandle> listOfPoweronVmTasks = new ArrayList<TaskHandle>();
+                            listOfPoweronVmTasks.add(backend.powerOnMultiVM(dcMor, poweredOffVms));
+
+                            // Monitor all VMs poweron task
+                            return taskTracker(listOfPoweronVmTasks, newvAppName, "PowerOn VM");
+                        } catch (Exception e) {
+                            return failedFuture(e);
+                        }
+                    }
+                }, scheduler.getExecutor())
+                .handle(new BiFunction<Boolean, Throwable, Boolean>() {
+                    @Override
+                    public Boolean
+                    apply(Boolean powerOnSucceeded, Throwable t)
+                    {
+                        admission.release();
+                        return poweredOn(poweredOffVms, powerOnStartTime, t == null && powerOnSucceeded);
+                    }
+                });
+        }
+
+        private Boolean
+        poweredOn(List<ManagedObjectReference> poweredOffVms, long powerOnStartTime, boolean succeeded)
+        {
+            metrics.record(PhaseMetrics.PHASE_POWER_ON, hostName, iterationNo, powerOnStartTime, succeeded);
+
+            if (succeeded) {
+                poweredOnVms = poweredOffVms;
+                events.info("All VMs from vAPP: " + newvAppName + " have been poweredOn successfully");
             } else {
-                allTasksSucceded = true;
+                reportError("Not All VMs from vApp: " + newvAppName + " could be powered on");
             }
-
-            return allTasksSucceded;
+            return succeeded;
         }
 
         /**
-         * Monitor Task progress and return final state
+         * Snapshot the VMs of a new warm pool vApp, or revert them to that snapshot before the next round
          */
-        private boolean
-        taskTracker(Task taskMor, String vappName, String operation) throws Exception
+        private CompletableFuture<Boolean>
+        snapshotPhase(final boolean revert) throws Exception
         {
-            boolean isTaskSuccess = false;
+            events.info((revert ? "Revert VMs of vApp: " : "Snapshot VMs of vApp: ") + newvAppName);
+            final long snapshotStartTime = System.currentTimeMillis();
+            final List<ManagedObjectReference> vmMors = new ArrayList<ManagedObjectReference>();
 
-            TaskInfoState taskState = taskMor.getTaskInfo().getState();
+            for (VAppVmInfo vmInfo : backend.getvAppVms(newvAppMor)) {
+                vmMors.add(vmInfo.getVmMor());
+            }
 
-            while (!(taskState.equals(TaskInfoState.success))) {
+            return admission.acquire()
+                .thenComposeAsync(new Function<Void, CompletableFuture<Boolean>>() {
+                    @Override
+                    public CompletableFuture<Boolean>
+                    apply(Void v)
+                    {
+                        try {
+                            return taskTracker(revert ? backend.revertVMs(vmMors, WARM_POOL_SNAPSHOT_NAME)
+                                : backend.snapshotVMs(vmMors, WARM_POOL_SNAPSHOT_NAME), newvAppName,
+                                revert ? "Revert VM" : "Snapshot VM");
+                        } catch (Exception e) {
+                            return failedFuture(e);
+                        }
+                    }
+                }, scheduler.getExecutor())
+                .handle(new BiFunction<Boolean, Throwable, Boolean>() {
+                    @Override
+                    public Boolean
+                    apply(Boolean snapshotSucceeded, Throwable t)
+                    {
+                        admission.release();
+                        boolean succeeded = t == null && snapshotSucceeded;
+                        metrics.record(revert ? PhaseMetrics.PHASE_RESET : PhaseMetrics.PHASE_SNAPSHOT, hostName,
+                            iterationNo, snapshotStartTime, succeeded);
+
+                        if (!succeeded) {
+                            reportError("Not All VMs from vApp: " + newvAppName + " could be "
+                                + (revert ? "reverted" : "snapshot"));
+                        }
+                        return succeeded;
+                    }
+                });
+        }
 
-                if ((taskState.equals(TaskInfoState.error))) {
-                    System.err.println("[" + vappName + "-" + operation +"] Task errored out");
-                    break;
-                } else {
-                    System.out.println("[" + vappName + "-" + operation +"] Task is still running");
-                    Thread.sleep(2000);
+        /**
+         * Gate cleanup on the powered on guests being ready, instead of a fixed wait
+         */
+        private CompletableFuture<Boolean>
+        readyPhase() throws Exception
+        {
+            events.info("Wait for vApp: " + newvAppName + " to be ready (" + readinessGate.getCondition() + ")");
+            final long readyStartTime = System.currentTimeMillis();
+
+            return readinessGate.await(backend, poweredOnVms, scheduler).thenApply(new Function<Boolean, Boolean>() {
+                @Override
+                public Boolean
+                apply(Boolean ready)
+                {
+                    metrics.record(PhaseMetrics.PHASE_READY, hostName, iterationNo, readyStartTime, ready);
+
+                    if (!ready) {
+                        reportError("vApp: " + newvAppName + " did not get ready within "
+                            + readyTimeoutSeconds + " seconds");
+                    }
+                    return ready;
                 }
-                taskState = taskMor.getTaskInfo().getState();
+            });
+        }
+
+        /**
+         * Clone mode of this lifecycle, compare mode alternates between full and linked clones
+         */
+        private String
+        nextCloneMode()
+        {
+            if (cloneMode.equals(CLONE_MODE_COMPARE)) {
+                return (compareCounter.getAndIncrement() % 2 == 0) ? CLONE_MODE_FULL : CLONE_MODE_LINKED;
+            }
+            return cloneMode;
+        }
+
+        /**
+         * Power off the VMs of deployed vApp
+         */
+        private CompletableFuture<Boolean>
+        powerOffPhase() throws Exception
+        {
+            events.info("Begin cleanup tasks ...");
+            events.info("Power off all poweredOn VMs, if any");
+            final long powerOffStartTime = System.currentTimeMillis();
+
+            // Power states of all VMs in one property fetch, then a single batch of power off tasks
+            final List<ManagedObjectReference> runningVms = VAppVmInfo.vmMors(backend.getvAppVms(newvAppMor),
+                VirtualMachinePowerState.poweredOn);
+
+            if (runningVms.isEmpty()) {
+                metrics.record(PhaseMetrics.PHASE_POWER_OFF, hostName, iterationNo, powerOffStartTime, true);
+                return CompletableFuture.completedFuture(Boolean.TRUE);
+            }
+
+            return admission.acquire()
+                .thenComposeAsync(new Function<Void, CompletableFuture<Boolean>>() {
+                    @Override
+                    public CompletableFuture<Boolean>
+                    apply(Void v)
+                    {
+                        try {
+                            List<TaskHandle> listOfPoweroffVmTasks = backend.powerOffVMs(newvAppMor, runningVms);
+
+                            // Monitor all VMs poweroff task
+                            return taskTracker(listOfPoweroffVmTasks, newvAppName, "PowerOff VM");
+                        } catch (Exception e) {
+                            return failedFuture(e);
+                        }
+                    }
+                }, scheduler.getExecutor())
+                .handle(new BiFunction<Boolean, Throwable, Boolean>() {
+                    @Override
+                    public Boolean
+                    apply(Boolean powerOffSucceeded, Throwable t)
+                    {
+                        admission.release();
+                        boolean succeeded = t == null && powerOffSucceeded;
+                        metrics.record(PhaseMetrics.PHASE_POWER_OFF, hostName, iterationNo, powerOffStartTime,
+                            succeeded);
+
+                        if (kind == LifecycleKind.WARM_CYCLE) {
+                            lifecycleSucceeded = succeeded && !poweredOnVms.isEmpty();
+                        }
+
+                        if (succeeded) {
+                            events.info("All VMs from vAPP: " + newvAppName
+                                + " have been poweredOff successfully");
+                        } else {
+                            reportError("Not All VMs from vApp: " + newvAppName + " could be powered off");
+                        }
+                        return succeeded;
+                    }
+                });
+        }
+
+        /**
+         * Destroy the deployed vApp, power off tasks have completed so there is nothing left to wait for
+         */
+        private CompletableFuture<Boolean>
+        destroyPhase() throws Exception
+        {
+            events.info("Destory the vAPP");
+            final long destroyStartTime = System.currentTimeMillis();
+
+            return trackTask(backend.destroy(newvAppMor), newvAppName, "Destroy vApp")
+                .thenApply(new Function<TaskInfo, Boolean>() {
+                    @Override
+                    public Boolean
+                    apply(TaskInfo destroyTaskInfo)
+                    {
+                        boolean destroySucceeded = destroyTaskInfo.getState().equals(TaskInfoState.success);
+                        metrics.record(PhaseMetrics.PHASE_DESTROY, hostName, iterationNo, destroyStartTime,
+                            destroySucceeded);
+
+                        if (destroySucceeded) {
+                            events.info("vApp: " + newvAppName + " destroyed successfully");
+                            inventory.removevApp(newvAppName);
+                            destroyed = true;
+                        } else {
+                            reportError("vApp: " + newvAppName + " could not be destroyed");
+                        }
+                        lifecycleSucceeded = destroySucceeded;
+                        return destroySucceeded;
+                    }
+                });
+        }
+
+        /**
+         * Monitor Task progress, future completes with whether all tasks in the list succeeded
+         */
+        private CompletableFuture<Boolean>
+        taskTracker(List<TaskHandle> listOfTasks, final String vappName, final String operation)
+        {
+            final long waitStartTime = System.currentTimeMillis();
+            final List<CompletableFuture<TaskInfo>> taskFutureList = new ArrayList<CompletableFuture<TaskInfo>>();
+
+            for (TaskHandle tempTask : listOfTasks) {
+                taskFutureList.add(deadlines.bound(tempTask, deadlinePhase()));
             }
 
-            if (taskState.equals(TaskInfoState.success)) {
-                System.out.println("[" + vappName + "-" + operation +"] Task Completed");
+            return CompletableFuture.allOf(taskFutureList.toArray(new CompletableFuture<?>[taskFutureList.size()]))
+                .thenApply(new Function<Void, Boolean>() {
+                    @Override
+                    public Boolean
+                    apply(Void v)
+                    {
+                        boolean allTasksSucceded = true;
+
+                        for (CompletableFuture<TaskInfo> tempTaskFuture : taskFutureList) {
+                            TaskInfo taskInfo = tempTaskFuture.join();
+                            admission.onTaskComplete(operation, System.currentTimeMillis() - waitStartTime,
+                                taskInfo);
+
+                            if (!taskResult(taskInfo, vappName, operation)) {
+                                allTasksSucceded = false;
+                            }
+                        }
+                        metrics.record(PhaseMetrics.taskWaitPhase(operation), hostName, iterationNo, waitStartTime,
+                            allTasksSucceded);
+                        return allTasksSucceded;
+                    }
+                });
+        }
+
+        /**
+         * Deadline of tasks of the running phase, named as in PhaseMetrics (POWER_ON -> poweron)
+         */
+        private String
+        deadlinePhase()
+        {
+            return phase.name().toLowerCase().replace("_", "");
+        }
+
+        /**
+         * Monitor Task progress, future completes with its final TaskInfo (state, error and result), or fails once
+         * the task passes its phase's deadline
+         */
+        private CompletableFuture<TaskInfo>
+        trackTask(TaskHandle taskMor, final String vappName, final String operation)
+        {
+            final long waitStartTime = System.currentTimeMillis();
+
+            return deadlines.bound(taskMor, deadlinePhase()).thenApply(new Function<TaskInfo, TaskInfo>() {
+                @Override
+                public TaskInfo
+                apply(TaskInfo taskInfo)
+                {
+                    admission.onTaskComplete(operation, System.currentTimeMillis() - waitStartTime, taskInfo);
+                    metrics.record(PhaseMetrics.taskWaitPhase(operation), hostName, iterationNo, waitStartTime,
+                        taskResult(taskInfo, vappName, operation));
+                    return taskInfo;
+                }
+            });
+        }
+
+        /**
+         * Report final state of a completed task
+         */
+        private boolean
+        taskResult(TaskInfo taskInfo, String vappName, String operation)
+        {
+            boolean isTaskSuccess = false;
+
+            if (taskInfo.getState().equals(TaskInfoState.success)) {
+                events.info("[" + vappName + "-" + operation +"] Task Completed");
                 isTaskSuccess = true;
+            } else {
+                reportError("[" + vappName + "-" + operation +"] Task errored out");
             }
 
             return isTaskSuccess;
@@ -451,48 +1882,109 @@ public class DeployvApp
     } // End of vAPP deployment class
 
     /**
-     * All hosts
+     * Class to run all iterations for one host back to back, the next iteration's clone starts once the previous
+     * vApp is deployed when in-flight depth is more than 1, otherwise once it is destroyed. The pipeline itself holds
+     * no scheduler slot, each of its lifecycles goes through the scheduler's global and host limits
      */
-    private ManagedEntity[]
-    retrieveHosts()
+    class HostPipeline implements Supplier<CompletableFuture<Void>>
     {
-        // get first datacenters in the environment.
-        InventoryNavigator navigator = new InventoryNavigator(si.getRootFolder());
-        ManagedEntity[] hosts = null;
+        ManagedObjectReference destHostMor;
+        AsyncSemaphore inflightPermits;
+        final List<CompletableFuture<Void>> lifecycles = new ArrayList<CompletableFuture<Void>>();
+        final CompletableFuture<Void> pipelineDone = new CompletableFuture<Void>();
 
-        try {
-            hosts = navigator.searchManagedEntities(HOST_MOR_TYPE);
-        } catch (Exception e) {
-            System.err.println("[Error] Unable to retrive Hosts from inventory");
-            e.printStackTrace();
+        HostPipeline(ManagedObjectReference hostMor)
+        {
+            this.destHostMor = hostMor;
+            this.inflightPermits = new AsyncSemaphore(Math.max(inflightDepth, 1), scheduler.getExecutor());
         }
-        return hosts;
-    }
 
-    /**
-     * Search for specified vAPP and return its ManagedEntity
-     */
-    private ManagedEntity
-    retrievevApp(String vAppName)
-    {
-        // get first datacenters in the environment.
-        InventoryNavigator navigator = new InventoryNavigator(si.getRootFolder());
-        ManagedEntity vAppMe = null;
+        @Override
+        public CompletableFuture<Void>
+        get()
+        {
+            startIteration(1);
+            return pipelineDone;
+        }
 
-        try {
-            ManagedEntity[] vAppMeArray = navigator.searchManagedEntities(VIRTUAL_APP_MOR_TYPE);
+        private void
+        startIteration(final int i)
+        {
+            if (i > iteration) {
+                // Wait for outstanding cleanups of this host
+                CompletableFuture.allOf(lifecycles.toArray(new CompletableFuture<?>[lifecycles.size()]))
+                    .whenComplete(new BiConsumer<Void, Throwable>() {
+                        @Override
+                        public void
+                        accept(Void v, Throwable t)
+                        {
+                            pipelineDone.complete(null);
+                        }
+                    });
+                return;
+            }
+
+            // Host gone unhealthy or overloaded, skip the iteration once it had time to recover
+            if (!pipelineHostAvailable(i)) {
+                scheduler.delay(HOST_RECHECK_DELAY_MS).thenRunAsync(new Runnable() {
+                    @Override
+                    public void
+                    run()
+                    {
+                        startIteration(i + 1);
+                    }
+                }, scheduler.getExecutor());
+                return;
+            }
 
-            for (ManagedEntity tempvApp : vAppMeArray) {
-                if (tempvApp.getName().equals(vAppName)) {
-                    vAppMe = tempvApp;
-                    break;
+            final VAppDeploymentClass lifecycle = newLifecycle(destHostMor, i);
+
+            if (lifecycle == null) {
+                startIteration(i + 1);
+                return;
+            }
+
+            inflightPermits.acquire().thenRunAsync(new Runnable() {
+                @Override
+                public void
+                run()
+                {
+                    events.info("[" + lifecycle.hostName + "] ITERATION - " + i);
+
+                    lifecycles.add(scheduler.submit(destHostMor, lifecycle)
+                        .whenComplete(new BiConsumer<Void, Throwable>() {
+                            @Override
+                            public void
+                            accept(Void v, Throwable t)
+                            {
+                                inflightPermits.release();
+                            }
+                        }));
+
+                    // Power off/destroy of iteration N overlaps the clone of iteration N+1
+                    lifecycle.deployed.thenRun(new Runnable() {
+                        @Override
+                        public void
+                        run()
+                        {
+                            startIteration(i + 1);
+                        }
+                    });
                 }
+            }, scheduler.getExecutor());
+        }
+
+        private boolean
+        pipelineHostAvailable(int i)
+        {
+            try {
+                hostFilter.refreshIfDue(inventory);
+            } catch (Exception e) {
+                events.error(null, 0, null, "[Error] Could not refresh host health, use the last known");
             }
-        } catch (Exception e) {
-            System.err.println("[Error] Unable to retreive specified vApp from inventory");
-            e.printStackTrace();
+            return hostAvailable(destHostMor, i);
         }
-        return vAppMe;
-    }
 
-} // End of main class
\ No newline at end of file
+    } // End of host pipeline class
+
+} // End of main class
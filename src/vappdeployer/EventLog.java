@@ -0,0 +1,461 @@
+/**
+ * Asynchronous structured event log - lifecycle workers publish small events into a lock-free queue, a single
+ * writer thread turns them into a JSONL trace file, a periodic one line console status and, on request, verbose lines.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ *          The above copyright notice and this permission notice shall be
+ *          included in all copies or substantial portions of the Software.
+ *
+ *          THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *          EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ *          OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *          NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *          HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *          WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ *          FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ *          OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package vappdeployer;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+public class EventLog
+{
+    public static final int DEFAULT_STATUS_INTERVAL_SECONDS = 10;
+
+    // Event types
+    static final String EVENT_PHASE_START = "phase_start";
+    static final String EVENT_PHASE_END = "phase_end";
+    static final String EVENT_LIFECYCLE_END = "lifecycle_end";
+    static final String EVENT_INFO = "info";
+    static final String EVENT_NOTICE = "notice";
+    static final String EVENT_ERROR = "error";
+
+    // How often the writer drains the queue
+    private static final long DRAIN_INTERVAL_MS = 100;
+
+    private final ConcurrentLinkedQueue<Event> queue = new ConcurrentLinkedQueue<Event>();
+    private final String traceFile;
+    private final long statusIntervalMs;
+    private final boolean verbose;
+    private final String consolePrefix;
+    private Writer trace;
+    private Thread writerThread;
+    private volatile boolean running = false;
+
+    // Aggregate state, only touched by the writer thread
+    private final long startTime = System.currentTimeMillis();
+    private final Map<String, Integer> inflightPhases = new TreeMap<String, Integer>();
+    private long lifecyclesDone = 0L;
+    private long lifecyclesFailed = 0L;
+    private long errors = 0L;
+    private long lastStatusTime = startTime;
+
+    // On a terminal the status line is redrawn in place, the length of the one on screen, 0 if none
+    private final boolean redrawStatus;
+    private int statusShownLength = 0;
+
+    /**
+     * One published event, fields not known to the publisher are null
+     */
+    static class Event
+    {
+        final long time = System.currentTimeMillis();
+        final String type;
+        final String host;
+        final int iteration;
+        final String vAppName;
+        final String phase;
+        final boolean succeeded;
+        final long durationMs;
+        final String message;
+
+        Event(String type, String host, int iteration, String vAppName, String phase, boolean succeeded,
+            long durationMs, String message)
+        {
+            this.type = type;
+            this.host = host;
+            this.iteration = iteration;
+            this.vAppName = vAppName;
+            this.phase = phase;
+            this.succeeded = succeeded;
+            this.durationMs = durationMs;
+            this.message = message;
+        }
+    }
+
+    /**
+     * Constructor, traceFile may be null for console status only. A status interval of 0 disables the status line,
+     * which is redrawn in place when the console is a terminal. With a label (runs of several vCenters sharing the
+     * console) every console line starts with it and the status line is not redrawn
+     */
+    public
+    EventLog(String traceFile, int statusIntervalSeconds, boolean verbose, String label)
+    {
+        this.traceFile = traceFile;
+        this.statusIntervalMs = TimeUnit.SECONDS.toMillis(statusIntervalSeconds);
+        this.verbose = verbose;
+        this.consolePrefix = label == null ? "" : "[" + label + "] ";
+        this.redrawStatus = label == null && System.console() != null;
+    }
+
+    /**
+     * Open the trace file and start the writer thread
+     */
+    public void
+    start()
+    {
+        if (traceFile != null) {
+            try {
+                trace = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(traceFile), "UTF-8"));
+            } catch (IOException e) {
+                System.err.println("[Error] Unable to open event trace: " + traceFile + ", tracing disabled");
+            }
+        }
+
+        running = true;
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void
+            run()
+            {
+                writerLoop();
+            }
+        }, "vAppDeployer-event-log");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    public boolean
+    isVerbose()
+    {
+        return verbose;
+    }
+
+    public void
+    phaseStart(String host, int iteration, String vAppName, String phase)
+    {
+        queue.add(new Event(EVENT_PHASE_START, host, iteration, vAppName, phase, true, 0L, null));
+    }
+
+    public void
+    phaseEnd(String host, int iteration, String vAppName, String phase, boolean succeeded, long durationMs)
+    {
+        queue.add(new Event(EVENT_PHASE_END, host, iteration, vAppName, phase, succeeded, durationMs, null));
+    }
+
+    public void
+    lifecycleEnd(String host, int iteration, String vAppName, boolean succeeded, long durationMs)
+    {
+        queue.add(new Event(EVENT_LIFECYCLE_END, host, iteration, vAppName, null, succeeded, durationMs, null));
+    }
+
+    /**
+     * Progress message, dropped unless verbose
+     */
+    public void
+    info(String message)
+    {
+        if (verbose) {
+            queue.add(new Event(EVENT_INFO, null, 0, null, null, true, 0L, message));
+        }
+    }
+
+    /**
+     * Message always printed to the console, verbose or not
+     */
+    public void
+    notice(String message)
+    {
+        queue.add(new Event(EVENT_NOTICE, null, 0, null, null, true, 0L, message));
+    }
+
+    /**
+     * Failure message, always printed to the console
+     */
+    public void
+    error(String host, int iteration, String vAppName, String message)
+    {
+        queue.add(new Event(EVENT_ERROR, host, iteration, vAppName, null, false, 0L, message));
+    }
+
+    /**
+     * Notice through the event log, straight to the console while there is none, before the run or after it
+     */
+    static void
+    noticeOrPrint(EventLog events, String message)
+    {
+        if (events != null) {
+            events.notice(message);
+        } else {
+            System.out.println(message);
+        }
+    }
+
+    /**
+     * Error through the event log, straight to the console while there is none, before the run or after it
+     */
+    static void
+    errorOrPrint(EventLog events, String message)
+    {
+        if (events != null) {
+            events.error(null, 0, null, message);
+        } else {
+            System.err.println(message);
+        }
+    }
+
+    private void
+    writerLoop()
+    {
+        while (running) {
+            drain();
+
+            if (statusIntervalMs > 0 && System.currentTimeMillis() - lastStatusTime >= statusIntervalMs) {
+                printStatus();
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(DRAIN_INTERVAL_MS));
+        }
+    }
+
+    private void
+    drain()
+    {
+        Event event;
+        boolean written = false;
+
+        while ((event = queue.poll()) != null) {
+            apply(event);
+            written |= writeTrace(event);
+        }
+
+        if (written) {
+            try {
+                trace.flush();
+            } catch (IOException e) {
+                traceFailed();
+            }
+        }
+    }
+
+    private void
+    apply(Event event)
+    {
+        if (event.type.equals(EVENT_PHASE_START)) {
+            Integer inflight = inflightPhases.get(event.phase);
+            inflightPhases.put(event.phase, inflight == null ? 1 : inflight + 1);
+        } else if (event.type.equals(EVENT_PHASE_END)) {
+            Integer inflight = inflightPhases.get(event.phase);
+            inflightPhases.put(event.phase, inflight == null ? 0 : Math.max(0, inflight - 1));
+        } else if (event.type.equals(EVENT_LIFECYCLE_END)) {
+            lifecyclesDone++;
+            if (!event.succeeded) {
+                lifecyclesFailed++;
+            }
+        } else if (event.type.equals(EVENT_INFO) || event.type.equals(EVENT_NOTICE)) {
+            clearStatus();
+            System.out.println(prefixed(event.message));
+        } else if (event.type.equals(EVENT_ERROR)) {
+            errors++;
+            clearStatus();
+            System.err.println(prefixed(event.message));
+        }
+    }
+
+    private boolean
+    writeTrace(Event event)
+    {
+        if (trace == null) {
+            return false;
+        }
+        StringBuilder line = new StringBuilder(160);
+        line.append("{\"time\":").append(event.time).append(",\"event\":\"").append(event.type).append('"');
+
+        if (event.host != null) {
+            line.append(",\"host\":").append(quote(event.host)).append(",\"iteration\":").append(event.iteration);
+        }
+        if (event.vAppName != null) {
+            line.append(",\"vapp\":").append(quote(event.vAppName));
+        }
+        if (event.phase != null) {
+            line.append(",\"phase\":").append(quote(event.phase));
+        }
+        if (event.type.equals(EVENT_PHASE_END) || event.type.equals(EVENT_LIFECYCLE_END)) {
+            line.append(",\"succeeded\":").append(event.succeeded).append(",\"durationMs\":").append(event.durationMs);
+        }
+        if (event.message != null) {
+            line.append(",\"message\":").append(quote(event.message));
+        }
+        line.append("}\n");
+
+        try {
+            trace.write(line.toString());
+        } catch (IOException e) {
+            traceFailed();
+            return false;
+        }
+        return true;
+    }
+
+    private void
+    traceFailed()
+    {
+        clearStatus();
+        System.err.println("[Error] Unable to write event trace: " + traceFile + ", tracing disabled");
+
+        try {
+            trace.close();
+        } catch (IOException e) {
+            // Closing a broken trace
+        }
+        trace = null;
+    }
+
+    private static String
+    quote(String value)
+    {
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    /**
+     * One line aggregate - phases in flight, lifecycles done and failed, errors
+     */
+    private void
+    printStatus()
+    {
+        long now = System.currentTimeMillis();
+        lastStatusTime = now;
+        long elapsedSeconds = (now - startTime) / 1000;
+
+        StringBuilder status = new StringBuilder(120).append(consolePrefix);
+        status.append(String.format("[Status] %02d:%02d:%02d | in flight:", elapsedSeconds / 3600,
+            (elapsedSeconds / 60) % 60, elapsedSeconds % 60));
+        int inflightTotal = 0;
+
+        for (Map.Entry<String, Integer> entry : inflightPhases.entrySet()) {
+            if (entry.getValue() > 0) {
+                status.append(' ').append(entry.getKey()).append(' ').append(entry.getValue());
+                inflightTotal += entry.getValue();
+            }
+        }
+        if (inflightTotal == 0) {
+            status.append(" none");
+        }
+        status.append(" | lifecycles done ").append(lifecyclesDone).append(", failed ").append(lifecyclesFailed)
+            .append(" | errors ").append(errors);
+
+        if (!redrawStatus) {
+            System.out.println(status);
+            return;
+        }
+        int shownLength = status.length();
+
+        // Blank out the rest of a longer earlier line
+        while (status.length() < statusShownLength) {
+            status.append(' ');
+        }
+        System.out.print("\r" + status);
+        System.out.flush();
+        statusShownLength = shownLength;
+    }
+
+    /**
+     * Console line with the label, after the blank lines a message starts with
+     */
+    private String
+    prefixed(String message)
+    {
+        int start = 0;
+
+        while (start < message.length() && message.charAt(start) == '\n') {
+            start++;
+        }
+        return message.substring(0, start) + consolePrefix + message.substring(start);
+    }
+
+    /**
+     * Blank out the status line redrawn in place, so a message printed next starts on a clean line
+     */
+    private void
+    clearStatus()
+    {
+        if (statusShownLength == 0) {
+            return;
+        }
+        StringBuilder blank = new StringBuilder(statusShownLength + 2).append('\r');
+
+        for (int i = 0; i < statusShownLength; i++) {
+            blank.append(' ');
+        }
+        System.out.print(blank.append('\r'));
+        System.out.flush();
+        statusShownLength = 0;
+    }
+
+    /**
+     * Stop the writer once everything published so far is written, with a last status line
+     */
+    public void
+    close()
+    {
+        running = false;
+
+        if (writerThread != null) {
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        drain();
+
+        if (statusIntervalMs > 0) {
+            printStatus();
+
+            // Leave the last status line on screen
+            if (statusShownLength > 0) {
+                System.out.println();
+                statusShownLength = 0;
+            }
+        }
+
+        if (trace != null) {
+            try {
+                trace.close();
+            } catch (IOException e) {
+                System.err.println("[Error] Unable to close event trace: " + traceFile);
+            }
+        }
+    }
+
+} // End of event log class
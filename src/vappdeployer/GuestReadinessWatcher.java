@@ -0,0 +1,388 @@
+/**
+ * Watches guest tools / heartbeat status of powered on VMs through a single PropertyCollector
+ * long-poll, used to gate the next lifecycle phase on guest readiness
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ *          The above copyright notice and this permission notice shall be
+ *          included in all copies or substantial portions of the Software.
+ *
+ *          THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *          EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ *          OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *          NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *          HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *          WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ *          FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ *          OTHER DEALINGS IN THE SOFTWARE.
+ */
+package vappdeployer;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.vmware.vim25.ManagedEntityStatus;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.ObjectUpdate;
+import com.vmware.vim25.ObjectUpdateKind;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertyFilterUpdate;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.SelectionSpec;
+import com.vmware.vim25.TraversalSpec;
+import com.vmware.vim25.UpdateSet;
+import com.vmware.vim25.VimPortType;
+import com.vmware.vim25.VirtualMachineToolsRunningStatus;
+import com.vmware.vim25.WaitOptions;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.PropertyFilter;
+import com.vmware.vim25.mo.ServiceInstance;
+
+public class GuestReadinessWatcher implements Runnable
+{
+    // VM properties the filter reports on
+    private static final String VM_MOR_TYPE = "VirtualMachine";
+    private static final String LIST_VIEW_MOR_TYPE = "ListView";
+    private static final String PROP_TOOLS_RUNNING = "guest.toolsRunningStatus";
+    private static final String PROP_HEARTBEAT = "guestHeartbeatStatus";
+
+    // Max seconds a single WaitForUpdatesEx call stays parked on the server
+    private static final int MAX_WAIT_SECONDS = 30;
+
+    // Session, collector, filter and view are replaced when the session expires
+    private volatile ServiceInstance si;
+    private volatile VimPortType vimService;
+    private volatile PropertyCollector watcherPc;
+    private volatile PropertyFilter vmFilter;
+    private volatile ManagedObjectReference vmListViewMor;
+    private final SessionPool sessionPool;
+    private boolean ownSession = false;
+    private volatile EventLog events;
+    private Thread watcherThread;
+    private volatile boolean running = false;
+
+    // VM MOR value -> condition it waits for and the readiness request it belongs to
+    private final ConcurrentMap<String, String> vmConditions = new ConcurrentHashMap<String, String>();
+    private final ConcurrentMap<String, ReadinessRequest> vmRequests =
+        new ConcurrentHashMap<String, ReadinessRequest>();
+
+    /**
+     * VMs of one wait, future completes once the last of them is ready
+     */
+    private static class ReadinessRequest
+    {
+        final Set<String> pendingVms = new HashSet<String>();
+        final CompletableFuture<Boolean> readyFuture = new CompletableFuture<Boolean>();
+    }
+
+    /**
+     * Constructor, the session pool logs the watcher in again once its session expired
+     */
+    public
+    GuestReadinessWatcher(ServiceInstance si, SessionPool sessionPool)
+    {
+        this.si = si;
+        this.vimService = si.getServerConnection().getVimService();
+        this.sessionPool = sessionPool;
+    }
+
+    /**
+     * Report through the event log from now on, null prints to the console
+     */
+    public void
+    setEventLog(EventLog events)
+    {
+        this.events = events;
+    }
+
+    /**
+     * Create dedicated PropertyCollector, the VM ListView, the filter over it and start watcher thread
+     */
+    public synchronized void
+    start() throws Exception
+    {
+        if (running) {
+            return;
+        }
+        createFilter();
+
+        running = true;
+        watcherThread = new Thread(this, "GuestReadinessWatcher");
+        watcherThread.setDaemon(true);
+        watcherThread.start();
+    }
+
+    private void
+    createFilter() throws Exception
+    {
+        watcherPc = si.getPropertyCollector().createPropertyCollector();
+        vmListViewMor = vimService.createListView(si.getServiceContent().getViewManager(),
+            new ManagedObjectReference[0]);
+
+        TraversalSpec viewTs = new TraversalSpec();
+        viewTs.setName("traverseVmListView");
+        viewTs.setType(LIST_VIEW_MOR_TYPE);
+        viewTs.setPath("view");
+        viewTs.setSkip(Boolean.FALSE);
+
+        ObjectSpec viewOs = new ObjectSpec();
+        viewOs.setObj(vmListViewMor);
+        viewOs.setSkip(Boolean.TRUE);
+        viewOs.setSelectSet(new SelectionSpec[] { viewTs });
+
+        PropertySpec vmPs = new PropertySpec();
+        vmPs.setType(VM_MOR_TYPE);
+        vmPs.setAll(Boolean.FALSE);
+        vmPs.setPathSet(new String[] { PROP_TOOLS_RUNNING, PROP_HEARTBEAT });
+
+        PropertyFilterSpec pfs = new PropertyFilterSpec();
+        pfs.setObjectSet(new ObjectSpec[] { viewOs });
+        pfs.setPropSet(new PropertySpec[] { vmPs });
+        vmFilter = watcherPc.createFilter(pfs, true);
+    }
+
+    /**
+     * Log the watcher in on a new session of its own and put every VM still waited for into the new view, which
+     * reports their current guest status
+     */
+    private synchronized void
+    relogin() throws Exception
+    {
+        ServiceInstance expiredSi = si;
+        si = sessionPool.newSession();
+        vimService = si.getServerConnection().getVimService();
+        createFilter();
+
+        if (ownSession) {
+            try {
+                expiredSi.getServerConnection().logout();
+            } catch (Exception e) {
+                // session already gone
+            }
+        }
+        ownSession = true;
+
+        List<ManagedObjectReference> vmMors = new ArrayList<ManagedObjectReference>();
+        for (String vmKey : vmConditions.keySet()) {
+            ManagedObjectReference vmMor = new ManagedObjectReference();
+            vmMor.setType(VM_MOR_TYPE);
+            vmMor.setVal(vmKey);
+            vmMors.add(vmMor);
+        }
+
+        if (!vmMors.isEmpty()) {
+            vimService.modifyListView(vmListViewMor, vmMors.toArray(new ManagedObjectReference[vmMors.size()]), null);
+        }
+    }
+
+    /**
+     * Register VMs with the watcher, returned future completes once every VM meets the condition
+     * (ReadinessGate.READY_TOOLS or READY_HEARTBEAT)
+     */
+    public CompletableFuture<Boolean>
+    watch(List<ManagedObjectReference> vmMors, String condition) throws Exception
+    {
+        ReadinessRequest request = new ReadinessRequest();
+
+        if (vmMors.isEmpty()) {
+            request.readyFuture.complete(Boolean.TRUE);
+            return request.readyFuture;
+        }
+
+        synchronized (request) {
+            for (ManagedObjectReference vmMor : vmMors) {
+                request.pendingVms.add(vmMor.getVal());
+                vmConditions.put(vmMor.getVal(), condition);
+                vmRequests.put(vmMor.getVal(), request);
+            }
+        }
+
+        // Newly added objects are reported with their current state, so an already ready guest is not missed
+        try {
+            vimService.modifyListView(vmListViewMor, vmMors.toArray(new ManagedObjectReference[vmMors.size()]), null);
+        } catch (Exception e) {
+            // Not in the view, no update would ever complete the request
+            for (ManagedObjectReference vmMor : vmMors) {
+                if (vmRequests.remove(vmMor.getVal(), request)) {
+                    vmConditions.remove(vmMor.getVal());
+                }
+            }
+            request.readyFuture.completeExceptionally(e);
+            throw e;
+        }
+        return request.readyFuture;
+    }
+
+    /**
+     * Stop watching the VMs, e.g. after the caller gave up waiting for them
+     */
+    public void
+    unwatch(List<ManagedObjectReference> vmMors)
+    {
+        for (ManagedObjectReference vmMor : vmMors) {
+            vmConditions.remove(vmMor.getVal());
+            vmRequests.remove(vmMor.getVal());
+        }
+
+        try {
+            vimService.modifyListView(vmListViewMor, null,
+                vmMors.toArray(new ManagedObjectReference[vmMors.size()]));
+        } catch (Exception e) {
+            // VMs may be gone already
+        }
+    }
+
+    /**
+     * Watcher loop - wait for guest status updates of all registered VMs
+     */
+    @Override
+    public void
+    run()
+    {
+        String version = "";
+        WaitOptions waitOpts = new WaitOptions();
+        waitOpts.setMaxWaitSeconds(MAX_WAIT_SECONDS);
+
+        while (running) {
+            try {
+                UpdateSet updateSet = watcherPc.waitForUpdatesEx(version, waitOpts);
+
+                // null UpdateSet means maxWaitSeconds elapsed without any change
+                if (updateSet == null) {
+                    continue;
+                }
+                version = updateSet.getVersion();
+
+                if (updateSet.getFilterSet() != null) {
+                    for (PropertyFilterUpdate filterUpdate : updateSet.getFilterSet()) {
+                        if (filterUpdate.getObjectSet() != null) {
+                            for (ObjectUpdate objUpdate : filterUpdate.getObjectSet()) {
+                                handleObjectUpdate(objUpdate);
+                            }
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                if (running && SessionPool.isSessionExpired(e)) {
+                    EventLog.errorOrPrint(events, "[Error] Guest readiness watcher session expired, logging in again");
+                    try {
+                        relogin();
+                    } catch (Exception loginEx) {
+                        EventLog.errorOrPrint(events, "[Error] Could not log guest readiness watcher in again: "
+                            + loginEx.getMessage());
+                    }
+                }
+                if (running) {
+                    EventLog.errorOrPrint(events,
+                        "[Error] Guest readiness watcher caught exception, re-syncing all watched VMs");
+                    version = "";
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException ie) {
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Check one VM's guest status against its condition, completing its request once all VMs are ready
+     */
+    private void
+    handleObjectUpdate(ObjectUpdate objUpdate)
+    {
+        String vmKey = objUpdate.getObj().getVal();
+        String condition = vmConditions.get(vmKey);
+
+        if (objUpdate.getKind().equals(ObjectUpdateKind.leave) || condition == null
+            || objUpdate.getChangeSet() == null) {
+            return;
+        }
+
+        boolean ready = false;
+
+        for (PropertyChange change : objUpdate.getChangeSet()) {
+            if (condition.equals(ReadinessGate.READY_TOOLS) && change.getName().equals(PROP_TOOLS_RUNNING)) {
+                ready = VirtualMachineToolsRunningStatus.guestToolsRunning.toString().equals(change.getVal());
+            } else if (condition.equals(ReadinessGate.READY_HEARTBEAT) && change.getName().equals(PROP_HEARTBEAT)) {
+                ready = ManagedEntityStatus.green.equals(change.getVal());
+            }
+        }
+
+        if (!ready) {
+            return;
+        }
+
+        vmConditions.remove(vmKey);
+        ReadinessRequest request = vmRequests.remove(vmKey);
+
+        try {
+            vimService.modifyListView(vmListViewMor, null, new ManagedObjectReference[] { objUpdate.getObj() });
+        } catch (Exception e) {
+            // eat out the exception, VM stays in the view but is no longer tracked
+        }
+
+        if (request != null) {
+            synchronized (request) {
+                request.pendingVms.remove(vmKey);
+                if (request.pendingVms.isEmpty()) {
+                    request.readyFuture.complete(Boolean.TRUE);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop watcher thread, fail outstanding futures and destroy server side collector and view
+     */
+    public synchronized void
+    shutdown()
+    {
+        if (!running) {
+            return;
+        }
+        running = false;
+
+        for (ReadinessRequest request : vmRequests.values()) {
+            request.readyFuture.completeExceptionally(
+                new IllegalStateException("Guest readiness watcher has been shut down"));
+        }
+        vmRequests.clear();
+        vmConditions.clear();
+
+        try {
+            watcherPc.cancelWaitForUpdates();
+        } catch (Exception e) {
+            // eat out the exception
+        }
+        try {
+            vmFilter.destroyPropertyFilter();
+            vimService.destroyView(vmListViewMor);
+            watcherPc.destroyPropertyCollector();
+        } catch (Exception e) {
+            EventLog.errorOrPrint(events, "[Error] Unable to cleanup guest readiness watcher objects on server");
+        }
+        if (ownSession) {
+            try {
+                si.getServerConnection().logout();
+            } catch (Exception e) {
+                // session already gone
+            }
+        }
+    }
+
+} // End of guest readiness watcher class
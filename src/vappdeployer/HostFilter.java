@@ -0,0 +1,229 @@
+/**
+ * Destination host selection - include/exclude filters on host and cluster names, and health/load checks on the
+ * inventory snapshot so disconnected, maintenance mode and overloaded hosts are skipped and busy hosts get fewer
+ * deployments.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ *          The above copyright notice and this permission notice shall be
+ *          included in all copies or substantial portions of the Software.
+ *
+ *          THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *          EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ *          OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *          NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *          HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *          WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ *          FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ *          OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package vappdeployer;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import com.vmware.vim25.ManagedObjectReference;
+
+public class HostFilter
+{
+    // Hosts with CPU or memory usage above this (percent) are skipped until they are below it again
+    static final int DEFAULT_MAX_LOAD_PERCENT = 90;
+    // Host health is re-read at most this often when there is no iteration boundary to refresh at
+    static final int DEFAULT_REFRESH_SECONDS = 60;
+
+    private final Pattern includeHosts;
+    private final Pattern excludeHosts;
+    private final Pattern includeClusters;
+    private final Pattern excludeClusters;
+    private final int maxLoadPercent;
+    private final long refreshIntervalMs;
+
+    private final AtomicLong lastRefreshTime = new AtomicLong(System.currentTimeMillis());
+    private final AtomicInteger skipped = new AtomicInteger();
+
+    // Host MOR value -> current weight of the smooth weighted round robin
+    private final Map<String, Double> currentWeights = new HashMap<String, Double>();
+
+    /**
+     * Constructor, name patterns are regular expressions matched against the whole name, null for no filter
+     */
+    HostFilter(String includeHosts, String excludeHosts, String includeClusters, String excludeClusters,
+        int maxLoadPercent, int refreshSeconds)
+    {
+        this.includeHosts = compile(includeHosts);
+        this.excludeHosts = compile(excludeHosts);
+        this.includeClusters = compile(includeClusters);
+        this.excludeClusters = compile(excludeClusters);
+        this.maxLoadPercent = maxLoadPercent;
+        this.refreshIntervalMs = refreshSeconds * 1000L;
+    }
+
+    private static Pattern
+    compile(String regex)
+    {
+        return regex == null ? null : Pattern.compile(regex);
+    }
+
+    private static boolean
+    included(Pattern include, Pattern exclude, String name)
+    {
+        if (name == null) {
+            return include == null;
+        }
+        return (include == null || include.matcher(name).matches())
+            && (exclude == null || !exclude.matcher(name).matches());
+    }
+
+    /**
+     * Whether the host passes the host and cluster name filters
+     */
+    public boolean
+    matches(InventorySnapshot inventory, ManagedObjectReference hostMor) throws Exception
+    {
+        return included(includeHosts, excludeHosts, inventory.getHostName(hostMor))
+            && included(includeClusters, excludeClusters, inventory.getHostCluster(hostMor));
+    }
+
+    /**
+     * Why the host cannot be deployed to for now - disconnected, in maintenance mode or overloaded - as of the
+     * last inventory refresh, null if it can. Hosts without health data are deployed to
+     */
+    public String
+    skipReason(InventorySnapshot inventory, ManagedObjectReference hostMor) throws Exception
+    {
+        HostHealth health = inventory.getHostHealth(hostMor);
+
+        if (health == null) {
+            return null;
+        }
+        if (!health.isConnected()) {
+            return "host is not connected";
+        }
+        if (health.isInMaintenance()) {
+            return "host is in maintenance mode";
+        }
+        if (health.getLoadPercent() > maxLoadPercent) {
+            return "host is overloaded, CPU " + health.getCpuUsagePercent() + "%, memory "
+                + health.getMemoryUsagePercent() + "% (limit " + maxLoadPercent + "%)";
+        }
+        return null;
+    }
+
+    /**
+     * Whether the host is disconnected or in maintenance mode
+     */
+    public boolean
+    isDown(InventorySnapshot inventory, ManagedObjectReference hostMor) throws Exception
+    {
+        HostHealth health = inventory.getHostHealth(hostMor);
+        return health != null && (!health.isConnected() || health.isInMaintenance());
+    }
+
+    /**
+     * Share of deployments the host gets relative to an idle host - its load headroom below the limit, 0 when it is
+     * skipped
+     */
+    public double
+    weight(InventorySnapshot inventory, ManagedObjectReference hostMor) throws Exception
+    {
+        if (skipReason(inventory, hostMor) != null) {
+            return 0;
+        }
+        HostHealth health = inventory.getHostHealth(hostMor);
+
+        if (health == null || maxLoadPercent <= 0) {
+            return 1;
+        }
+        // Keep a small share for hosts right at the limit, they are not skipped yet
+        return Math.max(0.05, (double) (maxLoadPercent - health.getLoadPercent()) / maxLoadPercent);
+    }
+
+    /**
+     * Next host for a deployment, smooth weighted round robin over the hosts by weight, so hosts with more headroom
+     * get proportionally more deployments and a busy host's deployments are spread out. Null if no host can be
+     * deployed to
+     */
+    public synchronized ManagedObjectReference
+    next(InventorySnapshot inventory, List<ManagedObjectReference> hosts) throws Exception
+    {
+        ManagedObjectReference bestMor = null;
+        double bestWeight = 0;
+        double totalWeight = 0;
+
+        for (ManagedObjectReference hostMor : hosts) {
+            double hostWeight = weight(inventory, hostMor);
+
+            if (hostWeight <= 0) {
+                continue;
+            }
+            Double current = currentWeights.get(hostMor.getVal());
+            double newWeight = (current == null ? 0 : current) + hostWeight;
+            currentWeights.put(hostMor.getVal(), newWeight);
+            totalWeight += hostWeight;
+
+            if (bestMor == null || newWeight > bestWeight) {
+                bestMor = hostMor;
+                bestWeight = newWeight;
+            }
+        }
+
+        if (bestMor != null) {
+            currentWeights.put(bestMor.getVal(), bestWeight - totalWeight);
+        }
+        return bestMor;
+    }
+
+    /**
+     * Refresh the inventory snapshot if the refresh interval has passed since the last one. Only one caller
+     * refreshes, the others go on with the snapshot they have
+     */
+    public void
+    refreshIfDue(InventorySnapshot inventory) throws Exception
+    {
+        long lastTime = lastRefreshTime.get();
+        long now = System.currentTimeMillis();
+
+        if (now - lastTime >= refreshIntervalMs && lastRefreshTime.compareAndSet(lastTime, now)) {
+            inventory.refresh();
+        }
+    }
+
+    /**
+     * Note an inventory refresh made elsewhere, e.g. at an iteration boundary
+     */
+    public void
+    refreshed()
+    {
+        lastRefreshTime.set(System.currentTimeMillis());
+    }
+
+    /**
+     * Count a deployment skipped because of the host's health or load
+     */
+    public void
+    countSkipped()
+    {
+        skipped.incrementAndGet();
+    }
+
+    public void
+    printSummary()
+    {
+        if (skipped.get() > 0) {
+            System.out.println("Host filter skipped " + skipped.get()
+                + " deployment(s) on disconnected, maintenance mode or overloaded hosts");
+        }
+    }
+
+} // End of host filter class
@@ -0,0 +1,85 @@
+/**
+ * Runtime state and load of a host - connection state, maintenance mode and CPU/memory usage from quickStats,
+ * fetched with the rest of the inventory in one bulk property collector call.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ *          The above copyright notice and this permission notice shall be
+ *          included in all copies or substantial portions of the Software.
+ *
+ *          THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *          EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ *          OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *          NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *          HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *          WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ *          FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ *          OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package vappdeployer;
+
+public class HostHealth
+{
+    private boolean connected;
+    private boolean inMaintenance;
+    private int cpuUsagePercent;
+    private int memoryUsagePercent;
+
+    HostHealth(boolean connected, boolean inMaintenance, int cpuUsagePercent, int memoryUsagePercent)
+    {
+        this.connected = connected;
+        this.inMaintenance = inMaintenance;
+        this.cpuUsagePercent = cpuUsagePercent;
+        this.memoryUsagePercent = memoryUsagePercent;
+    }
+
+    public boolean
+    isConnected()
+    {
+        return connected;
+    }
+
+    public boolean
+    isInMaintenance()
+    {
+        return inMaintenance;
+    }
+
+    public int
+    getCpuUsagePercent()
+    {
+        return cpuUsagePercent;
+    }
+
+    public int
+    getMemoryUsagePercent()
+    {
+        return memoryUsagePercent;
+    }
+
+    /**
+     * Higher of CPU and memory usage
+     */
+    public int
+    getLoadPercent()
+    {
+        return Math.max(cpuUsagePercent, memoryUsagePercent);
+    }
+
+    /**
+     * Usage in percent of the capacity, 0 when the capacity is not known
+     */
+    static int
+    usagePercent(long used, long capacity)
+    {
+        return capacity > 0 ? (int) Math.min(100L, used * 100 / capacity) : 0;
+    }
+
+} // End of host health class
@@ -0,0 +1,53 @@
+/**
+ * Plain inventory data as loaded by a backend, indexed by InventorySnapshot. All maps are keyed by
+ * MOR value, as ManagedObjectReference does not implement equals/hashCode.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ *          The above copyright notice and this permission notice shall be
+ *          included in all copies or substantial portions of the Software.
+ *
+ *          THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *          EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ *          OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *          NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *          HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *          WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ *          FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ *          OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package vappdeployer;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.vmware.vim25.DatastoreSummary;
+import com.vmware.vim25.ManagedObjectReference;
+
+public class InventoryData
+{
+    final Map<String, ManagedObjectReference> hosts = new HashMap<String, ManagedObjectReference>();
+    final Map<String, String> hostNames = new HashMap<String, String>();
+    final Map<String, ManagedObjectReference> hostResPools = new HashMap<String, ManagedObjectReference>();
+    final Map<String, ManagedObjectReference> hostDatacenters = new HashMap<String, ManagedObjectReference>();
+    final Map<String, ManagedObjectReference> dcVmFolders = new HashMap<String, ManagedObjectReference>();
+    final Map<String, List<ManagedObjectReference>> hostDatastores =
+        new HashMap<String, List<ManagedObjectReference>>();
+    final Map<String, DatastoreSummary> dsSummaries = new HashMap<String, DatastoreSummary>();
+
+    // Host health/load and the name of the (cluster) compute resource each host belongs to
+    final Map<String, HostHealth> hostHealth = new HashMap<String, HostHealth>();
+    final Map<String, String> hostClusters = new HashMap<String, String>();
+
+    // vApps are keyed by name
+    final Map<String, ManagedObjectReference> vApps = new HashMap<String, ManagedObjectReference>();
+
+} // End of inventory data class
@@ -0,0 +1,213 @@
+/**
+ * In-memory snapshot of the vSphere inventory used by the deployer, loaded in bulk through the backend
+ * (a handful of RetrieveProperties calls against vCenter). Indexes host -> resource pool, host ->
+ * datacenter/vmFolder, host -> accessible datastores and vApp name -> MOR, so deployment workers do not
+ * walk the live inventory.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ *          The above copyright notice and this permission notice shall be
+ *          included in all copies or substantial portions of the Software.
+ *
+ *          THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *          EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ *          OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *          NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *          HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *          WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ *          FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ *          OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package vappdeployer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.vmware.vim25.DatastoreSummary;
+import com.vmware.vim25.ManagedObjectReference;
+
+public class InventorySnapshot
+{
+    private VSphereBackend backend;
+    private volatile InventoryData data;
+
+    // Replaced as a whole by a refresh, so concurrent lookups never see it half filled
+    private volatile Map<String, ManagedObjectReference> vAppMap =
+        new ConcurrentHashMap<String, ManagedObjectReference>();
+
+    /**
+     * Constructor
+     */
+    public
+    InventorySnapshot(VSphereBackend backend)
+    {
+        this.backend = backend;
+    }
+
+    /**
+     * Rebuild all indexes from the live inventory
+     */
+    public synchronized void
+    refresh() throws Exception
+    {
+        InventoryData newData = backend.loadInventory();
+        vAppMap = new ConcurrentHashMap<String, ManagedObjectReference>(newData.vApps);
+        data = newData;
+    }
+
+    /**
+     * Take the snapshot on first use
+     */
+    private InventoryData
+    ensureFresh() throws Exception
+    {
+        if (data == null) {
+            synchronized (this) {
+                if (data == null) {
+                    refresh();
+                }
+            }
+        }
+        return data;
+    }
+
+    /**
+     * All hosts in inventory
+     */
+    public List<ManagedObjectReference>
+    getHosts() throws Exception
+    {
+        return new ArrayList<ManagedObjectReference>(ensureFresh().hosts.values());
+    }
+
+    public String
+    getHostName(ManagedObjectReference hostMor) throws Exception
+    {
+        return ensureFresh().hostNames.get(hostMor.getVal());
+    }
+
+    /**
+     * Name of the host's cluster, for standalone hosts the name of their compute resource
+     */
+    public String
+    getHostCluster(ManagedObjectReference hostMor) throws Exception
+    {
+        return ensureFresh().hostClusters.get(hostMor.getVal());
+    }
+
+    /**
+     * Runtime state and load of the host as of the last refresh, null if not known
+     */
+    public HostHealth
+    getHostHealth(ManagedObjectReference hostMor) throws Exception
+    {
+        return ensureFresh().hostHealth.get(hostMor.getVal());
+    }
+
+    /**
+     * Root resource pool of the host's (cluster) compute resource
+     */
+    public ManagedObjectReference
+    getResourcePool(ManagedObjectReference hostMor) throws Exception
+    {
+        return ensureFresh().hostResPools.get(hostMor.getVal());
+    }
+
+    public ManagedObjectReference
+    getDatacenter(ManagedObjectReference hostMor) throws Exception
+    {
+        return ensureFresh().hostDatacenters.get(hostMor.getVal());
+    }
+
+    public ManagedObjectReference
+    getVmFolder(ManagedObjectReference hostMor) throws Exception
+    {
+        InventoryData currentData = ensureFresh();
+        ManagedObjectReference dcMor = currentData.hostDatacenters.get(hostMor.getVal());
+        return dcMor == null ? null : currentData.dcVmFolders.get(dcMor.getVal());
+    }
+
+    /**
+     * Datastores mounted on the host, which were accessible when the snapshot was taken
+     */
+    public List<ManagedObjectReference>
+    getAccessibleDatastores(ManagedObjectReference hostMor) throws Exception
+    {
+        InventoryData currentData = ensureFresh();
+        List<ManagedObjectReference> accessibleDs = new ArrayList<ManagedObjectReference>();
+        List<ManagedObjectReference> allDs = currentData.hostDatastores.get(hostMor.getVal());
+
+        if (allDs != null) {
+            for (ManagedObjectReference dsMor : allDs) {
+                DatastoreSummary dsSummary = currentData.dsSummaries.get(dsMor.getVal());
+                if (dsSummary != null && dsSummary.isAccessible()) {
+                    accessibleDs.add(dsMor);
+                }
+            }
+        }
+        return accessibleDs;
+    }
+
+    /**
+     * Cached datastore summary
+     */
+    public DatastoreSummary
+    getDatastoreSummary(ManagedObjectReference dsMor) throws Exception
+    {
+        return ensureFresh().dsSummaries.get(dsMor.getVal());
+    }
+
+    /**
+     * Search for specified vApp by name, null if it is not in inventory. A miss re-reads the names of all
+     * vApps in one bulk call, in case the vApp was created after the snapshot was taken
+     */
+    public ManagedObjectReference
+    findvApp(String vAppName) throws Exception
+    {
+        ensureFresh();
+        ManagedObjectReference vAppMor = vAppMap.get(vAppName);
+
+        if (vAppMor == null) {
+            refreshvApps();
+            vAppMor = vAppMap.get(vAppName);
+        }
+        return vAppMor;
+    }
+
+    /**
+     * Rebuild only the vApp name index
+     */
+    public void
+    refreshvApps() throws Exception
+    {
+        vAppMap.putAll(backend.loadvApps());
+    }
+
+    /**
+     * Record a vApp created by the deployer, without a full refresh
+     */
+    public void
+    addvApp(String vAppName, ManagedObjectReference vAppMor)
+    {
+        vAppMap.put(vAppName, vAppMor);
+    }
+
+    /**
+     * Forget a vApp destroyed by the deployer
+     */
+    public void
+    removevApp(String vAppName)
+    {
+        vAppMap.remove(vAppName);
+    }
+
+} // End of inventory snapshot class
@@ -0,0 +1,130 @@
+/**
+ * Low overhead latency histogram with log scaled buckets (about 5% relative precision). Recording is
+ * lock free, so it can be called from every deployment thread.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ *          The above copyright notice and this permission notice shall be
+ *          included in all copies or substantial portions of the Software.
+ *
+ *          THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *          EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ *          OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *          NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *          HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *          WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ *          FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ *          OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package vappdeployer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class LatencyHistogram
+{
+    // Bucket i holds values in (GROWTH^(i-1), GROWTH^i] milliseconds, bucket 0 holds values up to 1 ms
+    private static final double GROWTH = 1.05;
+    private static final double LOG_GROWTH = Math.log(GROWTH);
+    private static final int BUCKET_COUNT = 400;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sumMs = new AtomicLong();
+    private final AtomicLong maxMs = new AtomicLong();
+
+    /**
+     * Record one latency value
+     */
+    public void
+    record(long durationMs)
+    {
+        buckets.incrementAndGet(bucketIndex(durationMs));
+        count.incrementAndGet();
+        sumMs.addAndGet(durationMs);
+
+        long currentMax = maxMs.get();
+        while (durationMs > currentMax && !maxMs.compareAndSet(currentMax, durationMs)) {
+            currentMax = maxMs.get();
+        }
+    }
+
+    /**
+     * Add all values recorded by another histogram
+     */
+    public void
+    merge(LatencyHistogram other)
+    {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets.addAndGet(i, other.buckets.get(i));
+        }
+        count.addAndGet(other.getCount());
+        sumMs.addAndGet(other.getSumMs());
+
+        long otherMax = other.getMaxMs();
+        long currentMax = maxMs.get();
+        while (otherMax > currentMax && !maxMs.compareAndSet(currentMax, otherMax)) {
+            currentMax = maxMs.get();
+        }
+    }
+
+    private static int
+    bucketIndex(long durationMs)
+    {
+        if (durationMs <= 1) {
+            return 0;
+        }
+        int index = (int) Math.ceil(Math.log(durationMs) / LOG_GROWTH);
+        return Math.min(index, BUCKET_COUNT - 1);
+    }
+
+    /**
+     * Value at the given percentile (0-100), as upper bound of its bucket but never above the max seen
+     */
+    public long
+    getPercentile(double percentile)
+    {
+        long total = count.get();
+
+        if (total == 0) {
+            return 0L;
+        }
+
+        long rank = (long) Math.ceil(percentile / 100.0 * total);
+        long seen = 0L;
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += buckets.get(i);
+            if (seen >= Math.max(rank, 1L)) {
+                return Math.min((long) Math.ceil(Math.pow(GROWTH, i)), maxMs.get());
+            }
+        }
+        return maxMs.get();
+    }
+
+    public long
+    getCount()
+    {
+        return count.get();
+    }
+
+    public long
+    getSumMs()
+    {
+        return sumMs.get();
+    }
+
+    public long
+    getMaxMs()
+    {
+        return maxMs.get();
+    }
+
+} // End of latency histogram class
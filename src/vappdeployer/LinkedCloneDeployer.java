@@ -0,0 +1,365 @@
+/**
+ * Linked clone deployment of the source vApp. VAppCloneSpec has no delta disk option, so an empty vApp
+ * is created on the destination host and each source VM is linked-cloned (child delta disks on top of a
+ * base snapshot) into it. Base snapshots are created on the source vApp's VMs once, if not present yet.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ *          The above copyright notice and this permission notice shall be
+ *          included in all copies or substantial portions of the Software.
+ *
+ *          THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *          EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ *          OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *          NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *          HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *          WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ *          FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ *          OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package vappdeployer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ResourceConfigSpec;
+import com.vmware.vim25.TaskInfo;
+import com.vmware.vim25.TaskInfoState;
+import com.vmware.vim25.VAppConfigSpec;
+import com.vmware.vim25.VirtualMachineCloneSpec;
+import com.vmware.vim25.VirtualMachineRelocateDiskMoveOptions;
+import com.vmware.vim25.VirtualMachineRelocateSpec;
+import com.vmware.vim25.VirtualMachineSnapshotInfo;
+import com.vmware.vim25.VirtualMachineSnapshotTree;
+import com.vmware.vim25.mo.Folder;
+import com.vmware.vim25.mo.ResourcePool;
+import com.vmware.vim25.mo.ServerConnection;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.Task;
+import com.vmware.vim25.mo.VirtualApp;
+import com.vmware.vim25.mo.VirtualMachine;
+
+public class LinkedCloneDeployer
+{
+    // Name of the snapshot linked clones are based on
+    static final String BASE_SNAPSHOT_NAME = "vAppDeployer-linked-clone-base";
+
+    private SessionPool sessionPool;
+    private ManagedObjectReference srcvAppMor;
+    private TaskCompletionWatcher taskWatcher;
+    private Executor callbackExecutor;
+    private volatile EventLog events;
+
+    // Source vApp resource settings, source VMs, their names and base snapshots, all in the same order
+    private ResourceConfigSpec srcResSpec;
+    private List<ManagedObjectReference> srcVms = new ArrayList<ManagedObjectReference>();
+    private List<String> srcVmNames = new ArrayList<String>();
+    private List<ManagedObjectReference> baseSnapshots = new ArrayList<ManagedObjectReference>();
+
+    // Completes once the lists above are filled, shared by all linked clones of the source vApp
+    private CompletableFuture<Void> basePrepared;
+
+    /**
+     * Constructor
+     */
+    public
+    LinkedCloneDeployer(SessionPool sessionPool, ManagedObjectReference srcvAppMor, TaskCompletionWatcher taskWatcher,
+        Executor callbackExecutor)
+    {
+        this.sessionPool = sessionPool;
+        this.srcvAppMor = srcvAppMor;
+        this.taskWatcher = taskWatcher;
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * Report through the event log from now on, null prints to the console
+     */
+    public void
+    setEventLog(EventLog events)
+    {
+        this.events = events;
+    }
+
+    /**
+     * Look up base snapshot on every source VM, creating it where it does not exist yet. The first caller starts the
+     * preparation, everyone gets the same future; a failed preparation is started again by the next caller
+     */
+    public synchronized CompletableFuture<Void>
+    prepareBaseSnapshots()
+    {
+        if (basePrepared == null || basePrepared.isCompletedExceptionally()) {
+            SessionPool.SessionCall<List<CompletableFuture<ManagedObjectReference>>> readSource =
+                new SessionPool.SessionCall<List<CompletableFuture<ManagedObjectReference>>>() {
+                    @Override
+                    public List<CompletableFuture<ManagedObjectReference>> call(ServiceInstance si) throws Exception
+                    {
+                        return prepareBaseSnapshots(new VirtualApp(si.getServerConnection(), srcvAppMor));
+                    }
+                };
+            basePrepared = sessionPool.submit(readSource)
+                .thenCompose(new Function<List<CompletableFuture<ManagedObjectReference>>, CompletableFuture<Void>>() {
+                    @Override
+                    public CompletableFuture<Void>
+                    apply(List<CompletableFuture<ManagedObjectReference>> snapshotFutures)
+                    {
+                        return snapshotsTaken(snapshotFutures);
+                    }
+                });
+        }
+        return basePrepared;
+    }
+
+    private CompletableFuture<Void>
+    snapshotsTaken(final List<CompletableFuture<ManagedObjectReference>> snapshotFutures)
+    {
+        return CompletableFuture.allOf(snapshotFutures.toArray(new CompletableFuture<?>[snapshotFutures.size()]))
+            .thenRun(new Runnable() {
+                @Override
+                public void
+                run()
+                {
+                    for (CompletableFuture<ManagedObjectReference> snapshotFuture : snapshotFutures) {
+                        baseSnapshots.add(snapshotFuture.join());
+                    }
+                }
+            });
+    }
+
+    /**
+     * Read the source VMs and submit snapshot tasks of the ones without a base snapshot, returned futures complete
+     * with the base snapshot of each VM in order
+     */
+    private List<CompletableFuture<ManagedObjectReference>>
+    prepareBaseSnapshots(VirtualApp srcvAppObject) throws Exception
+    {
+        List<CompletableFuture<ManagedObjectReference>> snapshotFutures =
+            new ArrayList<CompletableFuture<ManagedObjectReference>>();
+
+        srcResSpec = srcvAppObject.getConfig();
+        srcVms.clear();
+        srcVmNames.clear();
+        baseSnapshots.clear();
+
+        for (VirtualMachine srcVm : srcvAppObject.getVMs()) {
+            final String srcVmName = srcVm.getName();
+            ManagedObjectReference snapshotMor = findSnapshot(srcVm.getSnapshot(), BASE_SNAPSHOT_NAME);
+
+            if (snapshotMor == null) {
+                EventLog.noticeOrPrint(events, "Create linked clone base snapshot on VM: " + srcVmName);
+                snapshotFutures.add(taskWatcher.watch(
+                    srcVm.createSnapshot_Task(BASE_SNAPSHOT_NAME, "Base for vAppDeployer linked clones", false, false))
+                    .thenApply(new Function<TaskInfo, ManagedObjectReference>() {
+                        @Override
+                        public ManagedObjectReference
+                        apply(TaskInfo snapshotTaskInfo)
+                        {
+                            if (!snapshotTaskInfo.getState().equals(TaskInfoState.success)) {
+                                throw new IllegalStateException("Could not create base snapshot on VM: " + srcVmName);
+                            }
+                            return (ManagedObjectReference) snapshotTaskInfo.getResult();
+                        }
+                    }));
+            } else {
+                snapshotFutures.add(CompletableFuture.completedFuture(snapshotMor));
+            }
+
+            srcVms.add(srcVm.getMOR());
+            srcVmNames.add(srcVmName);
+        }
+        return snapshotFutures;
+    }
+
+    /**
+     * Create the new vApp on destination host and linked-clone every source VM into it, adding the clone tasks to
+     * cloneTaskMors as they are submitted. Returned future completes with the new vApp, or with null if it could
+     * not be deployed completely, in which case whatever was created is destroyed again
+     */
+    public CompletableFuture<ManagedObjectReference>
+    deploy(final String newvAppName, final ManagedObjectReference resPoolMor, final ManagedObjectReference vmFolderMor,
+        final ManagedObjectReference hostMor, final ManagedObjectReference dsMor,
+        final List<ManagedObjectReference> cloneTaskMors)
+    {
+        // Hold a pooled session only while submitting, not while the clones run
+        final SessionPool.SessionCall<ClonesSubmitted> submitClones = new SessionPool.SessionCall<ClonesSubmitted>() {
+            @Override
+            public ClonesSubmitted call(ServiceInstance si) throws Exception
+            {
+                return submitClones(si.getServerConnection(), newvAppName, resPoolMor, vmFolderMor, hostMor, dsMor,
+                    cloneTaskMors);
+            }
+        };
+
+        return prepareBaseSnapshots()
+            .thenCompose(new Function<Void, CompletableFuture<ClonesSubmitted>>() {
+                @Override
+                public CompletableFuture<ClonesSubmitted>
+                apply(Void v)
+                {
+                    return sessionPool.submit(submitClones);
+                }
+            })
+            .thenCompose(new Function<ClonesSubmitted, CompletableFuture<ManagedObjectReference>>() {
+                @Override
+                public CompletableFuture<ManagedObjectReference>
+                apply(ClonesSubmitted clones)
+                {
+                    return clonesDone(newvAppName, clones);
+                }
+            });
+    }
+
+    private ClonesSubmitted
+    submitClones(ServerConnection conn, String newvAppName, ManagedObjectReference resPoolMor,
+        ManagedObjectReference vmFolderMor, ManagedObjectReference hostMor, ManagedObjectReference dsMor,
+        List<ManagedObjectReference> cloneTaskMors) throws Exception
+    {
+        // Same resource settings as the source vApp
+        ResourceConfigSpec resSpec = new ResourceConfigSpec();
+        resSpec.setCpuAllocation(srcResSpec.getCpuAllocation());
+        resSpec.setMemoryAllocation(srcResSpec.getMemoryAllocation());
+
+        Folder vmFolder = new Folder(conn, vmFolderMor);
+        VirtualApp newvAppObject = new ResourcePool(conn, resPoolMor).createVApp(newvAppName, resSpec,
+            new VAppConfigSpec(), vmFolder);
+        ClonesSubmitted clones = new ClonesSubmitted(newvAppObject.getMOR());
+
+        for (int i = 0; i < srcVms.size(); i++) {
+            VirtualMachineRelocateSpec relocateSpec = new VirtualMachineRelocateSpec();
+            relocateSpec.setPool(newvAppObject.getMOR());
+            relocateSpec.setHost(hostMor);
+            relocateSpec.setDatastore(dsMor);
+            relocateSpec.setDiskMoveType(
+                VirtualMachineRelocateDiskMoveOptions.createNewChildDiskBacking.toString());
+
+            VirtualMachineCloneSpec vmCloneSpec = new VirtualMachineCloneSpec();
+            vmCloneSpec.setLocation(relocateSpec);
+            vmCloneSpec.setSnapshot(baseSnapshots.get(i));
+            vmCloneSpec.setPowerOn(false);
+            vmCloneSpec.setTemplate(false);
+
+            Task cloneTask = new VirtualMachine(conn, srcVms.get(i)).cloneVM_Task(vmFolder,
+                newvAppName + "-" + srcVmNames.get(i), vmCloneSpec);
+            cloneTaskMors.add(cloneTask.getMOR());
+            clones.cloneFutures.add(taskWatcher.watch(cloneTask));
+        }
+        return clones;
+    }
+
+    /**
+     * Future completes with the new vApp once all its clones succeeded, otherwise with null once it is destroyed
+     */
+    private CompletableFuture<ManagedObjectReference>
+    clonesDone(final String newvAppName, final ClonesSubmitted clones)
+    {
+        // Clones complete on the task watcher thread, the destroy of a partly cloned vApp runs on the executor
+        List<CompletableFuture<TaskInfo>> cloneFutures = clones.cloneFutures;
+
+        return CompletableFuture.allOf(cloneFutures.toArray(new CompletableFuture<?>[cloneFutures.size()]))
+            .thenComposeAsync(new Function<Void, CompletableFuture<ManagedObjectReference>>() {
+                @Override
+                public CompletableFuture<ManagedObjectReference>
+                apply(Void v)
+                {
+                    for (CompletableFuture<TaskInfo> cloneFuture : clones.cloneFutures) {
+                        if (!cloneFuture.join().getState().equals(TaskInfoState.success)) {
+                            return destroyPartialvApp(newvAppName, clones.newvAppMor);
+                        }
+                    }
+                    return CompletableFuture.completedFuture(clones.newvAppMor);
+                }
+            }, callbackExecutor);
+    }
+
+    /**
+     * Destroy a vApp that could not be linked cloned completely, future completes with null once it is gone
+     */
+    private CompletableFuture<ManagedObjectReference>
+    destroyPartialvApp(final String newvAppName, final ManagedObjectReference newvAppMor)
+    {
+        EventLog.errorOrPrint(events, "Not all VMs of vApp: " + newvAppName + " could be linked cloned, destroying it");
+
+        return sessionPool.submit(new SessionPool.SessionCall<CompletableFuture<TaskInfo>>() {
+            @Override
+            public CompletableFuture<TaskInfo> call(ServiceInstance si) throws Exception
+            {
+                return taskWatcher.watch(new VirtualApp(si.getServerConnection(), newvAppMor).destroy_Task());
+            }
+        }).thenCompose(new Function<CompletableFuture<TaskInfo>, CompletableFuture<TaskInfo>>() {
+            @Override
+            public CompletableFuture<TaskInfo>
+            apply(CompletableFuture<TaskInfo> destroyFuture)
+            {
+                return destroyFuture;
+            }
+        }).handle(new BiFunction<TaskInfo, Throwable, ManagedObjectReference>() {
+            @Override
+            public ManagedObjectReference
+            apply(TaskInfo destroyTaskInfo, Throwable t)
+            {
+                if (t != null) {
+                    EventLog.errorOrPrint(events, "[Error] Unable to destroy vApp: " + newvAppName);
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Depth first search of snapshot tree by name
+     */
+    static ManagedObjectReference
+    findSnapshot(VirtualMachineSnapshotInfo snapshotInfo, String snapshotName)
+    {
+        if (snapshotInfo == null) {
+            return null;
+        }
+        return findSnapshot(snapshotInfo.getRootSnapshotList(), snapshotName);
+    }
+
+    private static ManagedObjectReference
+    findSnapshot(VirtualMachineSnapshotTree[] snapshotTrees, String snapshotName)
+    {
+        if (snapshotTrees == null) {
+            return null;
+        }
+
+        for (VirtualMachineSnapshotTree tree : snapshotTrees) {
+            if (tree.getName().equals(snapshotName)) {
+                return tree.getSnapshot();
+            }
+            ManagedObjectReference childMor = findSnapshot(tree.getChildSnapshotList(), snapshotName);
+            if (childMor != null) {
+                return childMor;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * New vApp and the clone tasks of its VMs, as submitted
+     */
+    private static class ClonesSubmitted
+    {
+        final ManagedObjectReference newvAppMor;
+        final List<CompletableFuture<TaskInfo>> cloneFutures = new ArrayList<CompletableFuture<TaskInfo>>();
+
+        ClonesSubmitted(ManagedObjectReference newvAppMor)
+        {
+            this.newvAppMor = newvAppMor;
+        }
+    }
+
+} // End of linked clone deployer class
@@ -0,0 +1,167 @@
+/**
+ * Per phase deadlines of vSphere tasks - a task still running past its phase's deadline is cancelled and its wait
+ * fails, so one stuck clone or destroy cannot hold up its lifecycle and with it the run.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ *          The above copyright notice and this permission notice shall be
+ *          included in all copies or substantial portions of the Software.
+ *
+ *          THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *          EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ *          OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *          NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *          HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *          WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ *          FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ *          OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package vappdeployer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
+import com.vmware.vim25.TaskInfo;
+
+public class PhaseDeadlines
+{
+    // Deadlines (seconds) of phases not given on the command line, 0 for none
+    static final String DEFAULT_DEADLINES = "seed=7200,clone=7200,snapshot=900,reset=900,poweron=900,poweroff=900,"
+        + "destroy=900";
+
+    private final Map<String, Long> deadlineMs;
+    private final VSphereBackend backend;
+    private final DeploymentScheduler scheduler;
+    private final EventLog events;
+
+    /**
+     * Constructor, deadlines are comma separated <phase>=<seconds> on top of the defaults, may be null
+     */
+    public
+    PhaseDeadlines(String deadlines, VSphereBackend backend, DeploymentScheduler scheduler, EventLog events)
+    {
+        this.deadlineMs = parse(deadlines);
+        this.backend = backend;
+        this.scheduler = scheduler;
+        this.events = events;
+    }
+
+    /**
+     * Deadlines in ms by phase name (as in PhaseMetrics), throws IllegalArgumentException for a malformed one
+     */
+    static Map<String, Long>
+    parse(String deadlines)
+    {
+        Map<String, Long> parsed = new HashMap<String, Long>();
+        parseInto(parsed, DEFAULT_DEADLINES);
+
+        if (deadlines != null) {
+            parseInto(parsed, deadlines);
+        }
+        return parsed;
+    }
+
+    /**
+     * Parse deadlines into the map, the defaults come first and so name every phase that can have one
+     */
+    private static void
+    parseInto(Map<String, Long> parsed, String spec)
+    {
+        boolean knownPhasesOnly = !parsed.isEmpty();
+
+        for (String entry : spec.split(",")) {
+            String[] phaseSeconds = entry.trim().split("=");
+
+            if (phaseSeconds.length != 2) {
+                throw new IllegalArgumentException("Invalid phase deadline: " + entry + ", expected <phase>=<seconds>");
+            }
+            String phase = phaseSeconds[0].trim();
+
+            if (knownPhasesOnly && !parsed.containsKey(phase)) {
+                throw new IllegalArgumentException("Unknown phase in deadline: " + entry + ", expected one of "
+                    + parsed.keySet());
+            }
+            try {
+                parsed.put(phase, Long.parseLong(phaseSeconds[1].trim()) * 1000);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid phase deadline: " + entry + ", expected <phase>=<seconds>");
+            }
+        }
+    }
+
+    /**
+     * Deadline of the phase in ms, 0 for none
+     */
+    public long
+    getDeadlineMs(String phase)
+    {
+        Long phaseDeadlineMs = deadlineMs.get(phase);
+        return phaseDeadlineMs == null ? 0 : phaseDeadlineMs;
+    }
+
+    /**
+     * Completion of the task, bounded by the phase's deadline. Past it the task is cancelled (best effort, a task
+     * past the point where vCenter can roll it back runs to completion) and the future fails with a
+     * TimeoutException right away, without waiting for the cancel to go through
+     */
+    public CompletableFuture<TaskInfo>
+    bound(final TaskHandle task, final String phase)
+    {
+        final long phaseDeadlineMs = getDeadlineMs(phase);
+
+        if (phaseDeadlineMs <= 0) {
+            return task.getCompletion();
+        }
+        final CompletableFuture<TaskInfo> bounded = new CompletableFuture<TaskInfo>();
+
+        final ScheduledFuture<?> deadlineTimer = scheduler.getExecutor().schedule(new Runnable() {
+            @Override
+            public void
+            run()
+            {
+                // Fail the phase first, whatever goes wrong with the cancel must not leave it waiting
+                if (!bounded.completeExceptionally(new TimeoutException(phase + " task: " + task.describe()
+                    + " did not complete within " + phaseDeadlineMs / 1000 + " s"))) {
+                    return;
+                }
+                events.error(null, 0, null, "[Error] " + phase + " task: " + task.describe() + " passed its "
+                    + phaseDeadlineMs / 1000 + " s deadline, cancel it");
+                try {
+                    backend.cancelTask(task);
+                } catch (Exception e) {
+                    events.error(null, 0, null, "[Error] Could not cancel task: " + task.describe() + ", " + e);
+                }
+            }
+        }, phaseDeadlineMs, TimeUnit.MILLISECONDS);
+
+        task.getCompletion().whenComplete(new BiConsumer<TaskInfo, Throwable>() {
+            @Override
+            public void
+            accept(TaskInfo taskInfo, Throwable t)
+            {
+                deadlineTimer.cancel(false);
+
+                if (t != null) {
+                    bounded.completeExceptionally(t);
+                } else {
+                    bounded.complete(taskInfo);
+                }
+            }
+        });
+
+        return bounded;
+    }
+
+} // End of phase deadlines class
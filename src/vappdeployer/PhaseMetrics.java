@@ -0,0 +1,161 @@
+/**
+ * Per phase latency metrics of the deployment lifecycles - one histogram per phase and host (plus one
+ * per phase across all hosts) and the raw samples, for the end of run report.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ *          The above copyright notice and this permission notice shall be
+ *          included in all copies or substantial portions of the Software.
+ *
+ *          THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *          EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ *          OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *          NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *          HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *          WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ *          FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ *          OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package vappdeployer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+public class PhaseMetrics
+{
+    // Lifecycle phases
+    public static final String PHASE_SEED = "seed";
+    public static final String PHASE_CLONE = "clone";
+    public static final String PHASE_SNAPSHOT = "snapshot";
+    public static final String PHASE_RESET = "reset";
+    public static final String PHASE_POWER_ON = "poweron";
+    public static final String PHASE_READY = "ready";
+    public static final String PHASE_POWER_OFF = "poweroff";
+    public static final String PHASE_DESTROY = "destroy";
+    public static final String PHASE_LIFECYCLE = "lifecycle";
+
+    // Open loop runs - how late a lifecycle started, against the time the arrival rate asked for
+    public static final String PHASE_START_DELAY = "startdelay";
+
+    // Power on controller - time a vApp's VMs waited for room to boot, and latency of each batch by its size
+    public static final String PHASE_BOOT_WAIT = "bootwait";
+    public static final String PHASE_BOOT_BATCH = "bootbatch";
+
+    // Prefix of phases recording time spent waiting on vSphere tasks, per operation
+    public static final String TASK_WAIT_PREFIX = "taskwait_";
+
+    // Host name used for the per phase histograms across all hosts
+    public static final String ALL_HOSTS = "_all";
+
+    // "phase|host" -> histogram, sorted so reports come out grouped by phase
+    private final ConcurrentMap<String, LatencyHistogram> histograms =
+        new ConcurrentSkipListMap<String, LatencyHistogram>();
+    private final ConcurrentLinkedQueue<Sample> samples = new ConcurrentLinkedQueue<Sample>();
+
+    /**
+     * One recorded phase execution
+     */
+    public static class Sample
+    {
+        final String phase;
+        final String host;
+        final int iteration;
+        final long startTime;
+        final long durationMs;
+        final boolean succeeded;
+
+        Sample(String phase, String host, int iteration, long startTime, long durationMs, boolean succeeded)
+        {
+            this.phase = phase;
+            this.host = host;
+            this.iteration = iteration;
+            this.startTime = startTime;
+            this.durationMs = durationMs;
+            this.succeeded = succeeded;
+        }
+    }
+
+    /**
+     * Record a phase which started at startTime (epoch ms) and ended now
+     */
+    public void
+    record(String phase, String host, int iteration, long startTime, boolean succeeded)
+    {
+        long durationMs = System.currentTimeMillis() - startTime;
+        histogramFor(phase, host).record(durationMs);
+        histogramFor(phase, ALL_HOSTS).record(durationMs);
+        samples.add(new Sample(phase, host, iteration, startTime, durationMs, succeeded));
+    }
+
+    /**
+     * Add everything recorded by another run, its hosts prefixed with the given label (e.g. its vCenter) so
+     * hosts of different runs do not mix
+     */
+    public void
+    merge(PhaseMetrics other, String hostPrefix)
+    {
+        for (Map.Entry<String, LatencyHistogram> entry : other.getHistograms().entrySet()) {
+            String[] phaseHost = entry.getKey().split("\\|", 2);
+            String host = phaseHost[1].equals(ALL_HOSTS) ? ALL_HOSTS : hostPrefix + "/" + phaseHost[1];
+            histogramFor(phaseHost[0], host).merge(entry.getValue());
+        }
+
+        for (Sample sample : other.getSamples()) {
+            samples.add(new Sample(sample.phase, hostPrefix + "/" + sample.host, sample.iteration, sample.startTime,
+                sample.durationMs, sample.succeeded));
+        }
+    }
+
+    /**
+     * Phase name for waiting on tasks of the given operation, e.g. "PowerOn VM" -> taskwait_poweron_vm
+     */
+    public static String
+    taskWaitPhase(String operation)
+    {
+        return TASK_WAIT_PREFIX + operation.toLowerCase().replaceAll("[^a-z0-9]+", "_");
+    }
+
+    private LatencyHistogram
+    histogramFor(String phase, String host)
+    {
+        String key = phase + "|" + host;
+        LatencyHistogram histogram = histograms.get(key);
+
+        if (histogram == null) {
+            LatencyHistogram newHistogram = new LatencyHistogram();
+            histogram = histograms.putIfAbsent(key, newHistogram);
+
+            if (histogram == null) {
+                histogram = newHistogram;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * All histograms, keyed by "phase|host"
+     */
+    public Map<String, LatencyHistogram>
+    getHistograms()
+    {
+        return histograms;
+    }
+
+    public List<Sample>
+    getSamples()
+    {
+        return new ArrayList<Sample>(samples);
+    }
+
+} // End of phase metrics class
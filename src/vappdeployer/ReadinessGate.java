@@ -0,0 +1,132 @@
+/**
+ * Readiness condition a lifecycle waits for between power on and cleanup - immediate, minimum dwell
+ * time or guest tools / heartbeat reported by vSphere, bounded by a timeout
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ *          The above copyright notice and this permission notice shall be
+ *          included in all copies or substantial portions of the Software.
+ *
+ *          THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *          EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ *          OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *          NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *          HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *          WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ *          FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ *          OTHER DEALINGS IN THE SOFTWARE.
+ */
+package vappdeployer;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import com.vmware.vim25.ManagedObjectReference;
+
+public class ReadinessGate
+{
+    // Readiness conditions
+    static final String READY_IMMEDIATE = "immediate";
+    static final String READY_DWELL = "dwell";
+    static final String READY_TOOLS = "tools";
+    static final String READY_HEARTBEAT = "heartbeat";
+
+    private final String condition;
+    private final long dwellMs;
+    private final long timeoutMs;
+
+    /**
+     * Constructor, dwellMs is only used by the dwell condition
+     */
+    public
+    ReadinessGate(String condition, long dwellMs, long timeoutMs)
+    {
+        if (!isValidCondition(condition)) {
+            throw new IllegalArgumentException("Unknown readiness condition: " + condition);
+        }
+        this.condition = condition;
+        this.dwellMs = dwellMs;
+        this.timeoutMs = timeoutMs;
+    }
+
+    static boolean
+    isValidCondition(String condition)
+    {
+        return condition.equals(READY_IMMEDIATE) || condition.equals(READY_DWELL) || condition.equals(READY_TOOLS)
+            || condition.equals(READY_HEARTBEAT);
+    }
+
+    /**
+     * Future completes once the powered on VMs are ready, with false if they did not get ready within the
+     * timeout. Dwell and timeout are scheduled on the deployment scheduler, no thread waits for them
+     */
+    public CompletableFuture<Boolean>
+    await(final VSphereBackend backend, final List<ManagedObjectReference> vmMors, DeploymentScheduler scheduler)
+        throws Exception
+    {
+        if (condition.equals(READY_IMMEDIATE) || vmMors.isEmpty()) {
+            return CompletableFuture.completedFuture(Boolean.TRUE);
+        }
+
+        if (condition.equals(READY_DWELL)) {
+            return scheduler.delay(dwellMs).thenApply(new Function<Void, Boolean>() {
+                @Override
+                public Boolean
+                apply(Void v)
+                {
+                    return Boolean.TRUE;
+                }
+            });
+        }
+
+        final CompletableFuture<Boolean> readyResult = new CompletableFuture<Boolean>();
+
+        backend.watchGuestReady(vmMors, condition).whenComplete(new BiConsumer<Boolean, Throwable>() {
+            @Override
+            public void
+            accept(Boolean ready, Throwable t)
+            {
+                readyResult.complete(t == null && ready);
+            }
+        });
+
+        final ScheduledFuture<?> timeoutTimer = scheduler.getExecutor().schedule(new Runnable() {
+            @Override
+            public void
+            run()
+            {
+                if (readyResult.complete(Boolean.FALSE)) {
+                    backend.unwatchGuestReady(vmMors);
+                }
+            }
+        }, timeoutMs, TimeUnit.MILLISECONDS);
+
+        // Guests got ready in time, drop the timer so it does not hold the event loop until the timeout
+        readyResult.whenComplete(new BiConsumer<Boolean, Throwable>() {
+            @Override
+            public void
+            accept(Boolean ready, Throwable t)
+            {
+                timeoutTimer.cancel(false);
+            }
+        });
+        return readyResult;
+    }
+
+    public String
+    getCondition()
+    {
+        return condition;
+    }
+
+} // End of readiness gate class
@@ -1,82 +1,138 @@
-/**
- * Utility Class to Deploy/Clone vAPP in a threaded fashion, from source host to all destination
- * hosts in inventory for specified number iterations. It does the following operations,
- * - clone the vAPP on to each of the destination host
- * - Power on VMs in vAPP (in a threaded fashion) using PowerOnMultiVM_Task API
- * - Power off VMs in vAPP
- * - Destroy the vAPP
- *
- * Copyright (c) 2017
- *
- * Permission is hereby granted, free of charge, to any person
- * obtaining a copy of this software and associated documentation files
- * (the "Software"), to deal in the Software without restriction,
- * including without limitation the rights to use, copy, modify, merge,
- * publish, distribute, sublicense, and/or sell copies of the Software,
- * and to permit persons to whom the Software is furnished to do so,
- * subject to the following conditions:
- *
- * @author Gururaja Hegdal (ghegdal@vmware.com)
- * @version 1.0
- *
- *          The above copyright notice and this permission notice shall be
- *          included in all copies or substantial portions of the Software.
- *
- *          THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
- *          EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
- *          OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
- *          NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
- *          HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
- *          WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
- *          FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
- *          OTHER DEALINGS IN THE SOFTWARE.
- */
-
-package vappdeployer;
-
-// Entry point into the vApp deployer tool
-public class RunApp
-{
-    /**
-     * Usage method - how to use/invoke the script, reveals the options supported through this script
-     */
-    public static void usagevAppDeployScript()
-    {
-        System.out.println(
-            "Usage: java -jar vAppDeployer.jar --vsphereip <VC IP> --username <uname> --password <pwd> --srcvapp <SourcevAppName> --iteration <no of loops>");
-        System.out.println(
-            "\"java -jar vAppDeployer.jar --vsphereip 10.4.5.6 --username admin --password dummyPwd --srcvapp MyvApp --iteration 5\"");
-    }
-
-    /**
-     * Main entry point
-     *
-     * @throws Exception
-     */
-    public static void main(String[] args)
-    {
-
-        System.out.println(
-            "######################### Parallel vApp Deployer Script execution STARTED #########################");
-
-        try {
-            // Read command line arguments
-            if (args.length > 0 && args.length >= 10) {
-                DeployvApp vAppClassObj = new DeployvApp(args);
-                if (vAppClassObj.validateProperties()) {
-                    vAppClassObj.vAppDeploymentHandler();
-                } else {
-                    usagevAppDeployScript();
-                }
-            } else {
-                usagevAppDeployScript();
-            }
-
-            Thread.sleep(1000 * 2);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        System.out.println(
-            "######################### Parallel vApp Deployer Script execution completed #########################");
-    }
+/**
+ * Utility Class to Deploy/Clone vAPP in a threaded fashion, from source host to all destination
+ * hosts in inventory for specified number iterations. It does the following operations,
+ * - clone the vAPP on to each of the destination host
+ * - Power on VMs in vAPP (in a threaded fashion) using PowerOnMultiVM_Task API
+ * - Power off VMs in vAPP
+ * - Destroy the vAPP
+ *
+ * Copyright (c) 2017
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ *          The above copyright notice and this permission notice shall be
+ *          included in all copies or substantial portions of the Software.
+ *
+ *          THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *          EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ *          OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *          NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *          HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *          WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ *          FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ *          OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package vappdeployer;
+
+// Entry point into the vApp deployer tool
+public class RunApp
+{
+    /**
+     * Usage method - how to use/invoke the script, reveals the options supported through this script
+     */
+    public static void usagevAppDeployScript()
+    {
+        System.out.println(
+            "Usage: java -jar vAppDeployer.jar --vsphereip <VC IP> --username <uname> --password <pwd> --srcvapp <SourcevAppName> --iteration <no of loops>");
+        System.out.println(
+            "Optional: --maxconcurrent <max parallel deployments, default all hosts> --perhostlimit <per host, default 1> "
+                + "--perdslimit <parallel clones per datastore, default unlimited>");
+        System.out.println(
+            "Optional: --mode <barrier|pipelined|openloop, default barrier> --inflightdepth <per host in-flight "
+                + "lifecycles in pipelined mode, default 1>");
+        System.out.println(
+            "Optional: --rate <openloop lifecycles per minute> --duration <openloop seconds> --rateprofile "
+                + "<openloop steps/ramps, e.g. 10-60@300,60@600>");
+        System.out.println(
+            "Optional: --includehosts <regex> --excludehosts <regex> --includeclusters <regex> --excludeclusters "
+                + "<regex>");
+        System.out.println(
+            "Optional: --maxhostload <max host CPU/memory usage percent, default 90> --hostrefresh <pipelined/openloop "
+                + "host health refresh seconds, default 60>");
+        System.out.println("Optional: --placement <freespace|roundrobin|leastinflight, default freespace>");
+        System.out.println(
+            "Optional: --clonemode <full|linked|compare, default full> --fanout <seed copies, default 0>");
+        System.out.println(
+            "Optional: --warmpool <vApps per host cloned once, power cycled every iteration, default 0> --warmreset");
+        System.out.println("Optional: --reportdir <directory for JSON/CSV/Prometheus run report>");
+        System.out.println(
+            "Optional: --backend <vsphere|sim, default vsphere, sim needs no --vsphereip/--username/--password> "
+                + "--simconfig <simulator settings file>");
+        System.out.println(
+            "Optional: --concurrency <fixed|adaptive, default fixed> --minconcurrent <adaptive floor, default 1>");
+        System.out.println(
+            "Optional: --ready <immediate|dwell|tools|heartbeat, default dwell> --dwell <seconds, default 10> "
+                + "--readytimeout <seconds, default 300>");
+        System.out.println(
+            "Optional: --bootbatch <VMs per power on task, default 0 one per vApp> --bootwindow <batching ms, "
+                + "default 1000>");
+        System.out.println(
+            "Optional: --maxboots <VMs booting at once> --maxdsboots <per datastore> --bootramp <seconds> --boothold "
+                + "<seconds>");
+        System.out.println("Optional: --phaseretries <retries of a failed lifecycle phase, default 0>");
+        System.out.println(
+            "Optional: --deadlines <phase=seconds,... task deadlines, default seed=7200,clone=7200, others 900>");
+        System.out.println(
+            "Optional: --eventlog <JSONL event trace file> --status <console status seconds, default 10> --verbose");
+        System.out.println("Optional: --journal <run journal file, default vAppDeployer.journal> --resume");
+        System.out.println(
+            "Optional: --sessions <pooled vSphere sessions, default 4> --keepalive <session keep-alive seconds, "
+                + "0 disables, default 300>");
+        System.out.println(
+            "Optional: --vcenters <file with the arguments of one vCenter per line, run all of them in parallel>");
+        System.out.println(
+            "\"java -jar vAppDeployer.jar --vsphereip 10.4.5.6 --username admin --password dummyPwd --srcvapp MyvApp --iteration 5\"");
+    }
+
+    /**
+     * Main entry point
+     *
+     * @throws Exception
+     */
+    public static void main(String[] args)
+    {
+
+        System.out.println(
+            "######################### Parallel vApp Deployer Script execution STARTED #########################");
+
+        try {
+            String vCentersFile = null;
+
+            for (int i = 0; i + 1 < args.length; i++) {
+                if (args[i].equals("--vcenters")) {
+                    vCentersFile = args[i + 1];
+                }
+            }
+
+            // Read command line arguments
+            if (vCentersFile != null) {
+                if (!new VCenterFanOut(vCentersFile, args).run()) {
+                    usagevAppDeployScript();
+                }
+            } else if (args.length > 0 && args.length >= 4) {
+                DeployvApp vAppClassObj = new DeployvApp(args);
+                if (vAppClassObj.validateProperties()) {
+                    vAppClassObj.vAppDeploymentHandler();
+                } else {
+                    usagevAppDeployScript();
+                }
+            } else {
+                usagevAppDeployScript();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        System.out.println(
+            "######################### Parallel vApp Deployer Script execution completed #########################");
+    }
 }
\ No newline at end of file
@@ -0,0 +1,307 @@
+/**
+ * Append-only run journal - every lifecycle phase transition and the vApp it created, flushed line by
+ * line so a rerun after a crash knows which lifecycles were left unfinished and which clones they left behind.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ *          The above copyright notice and this permission notice shall be
+ *          included in all copies or substantial portions of the Software.
+ *
+ *          THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *          EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ *          OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *          NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *          HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *          WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ *          FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ *          OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package vappdeployer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class RunJournal
+{
+    public static final String DEFAULT_FILE = "vAppDeployer.journal";
+
+    // Journal line kinds, fields are tab separated
+    private static final String LINE_RUN = "run";
+    private static final String LINE_PHASE = "phase";
+    private static final String LINE_ORPHAN = "orphan";
+
+    // Phase recorded once a lifecycle is complete, or once the sweeper cleaned up after it
+    public static final String PHASE_DONE = "DONE";
+    public static final String PHASE_SWEPT = "SWEPT";
+
+    // Phase of a tree fan-out seed copy of the source vApp, journaled as iteration 0 of its host
+    public static final String PHASE_SEED = "SEED";
+
+    private final File file;
+    private PrintWriter out;
+
+    // "host#iteration" -> latest state of every lifecycle of the current run
+    private final Map<String, Entry> lifecycles = new LinkedHashMap<String, Entry>();
+
+    // vApp name -> lifecycle of an earlier run whose vApp is not swept yet, carried from run to run until it is
+    private final Map<String, Entry> orphans = new LinkedHashMap<String, Entry>();
+
+    /**
+     * Latest journaled state of one lifecycle
+     */
+    public static class Entry
+    {
+        final String hostVal;
+        final int iteration;
+        String phase;
+        String vAppName;
+        String vAppMorVal;
+        boolean carried = false;
+
+        Entry(String hostVal, int iteration)
+        {
+            this.hostVal = hostVal;
+            this.iteration = iteration;
+        }
+
+        public String
+        getHostVal()
+        {
+            return hostVal;
+        }
+
+        public int
+        getIteration()
+        {
+            return iteration;
+        }
+
+        public String
+        getPhase()
+        {
+            return phase;
+        }
+
+        public String
+        getvAppName()
+        {
+            return vAppName;
+        }
+
+        public String
+        getvAppMorVal()
+        {
+            return vAppMorVal;
+        }
+
+        public boolean
+        isFinished()
+        {
+            return PHASE_DONE.equals(phase);
+        }
+
+        public boolean
+        isSwept()
+        {
+            return PHASE_SWEPT.equals(phase);
+        }
+
+        /**
+         * Whether the lifecycle belongs to a run before the journaled one, its vApp is swept and never resumed
+         */
+        public boolean
+        isCarried()
+        {
+            return carried;
+        }
+    }
+
+    /**
+     * Constructor, replays an existing journal file and opens it for appending
+     */
+    public
+    RunJournal(String fileName) throws IOException
+    {
+        this.file = new File(fileName);
+
+        if (file.exists()) {
+            replay();
+        }
+        out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+    }
+
+    private void
+    replay() throws IOException
+    {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+
+        try {
+            String line;
+
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+
+                if (fields[0].equals(LINE_RUN)) {
+                    // Lifecycles of earlier runs have been swept already, or were carried over as orphans
+                    lifecycles.clear();
+                } else if (fields[0].equals(LINE_PHASE) && fields.length == 7) {
+                    try {
+                        apply(fields[2], Integer.parseInt(fields[3]), fields[4], fields[5], fields[6]);
+                    } catch (NumberFormatException e) {
+                        // Torn last line of a crashed run
+                    }
+                } else if (fields[0].equals(LINE_ORPHAN) && fields.length == 7) {
+                    try {
+                        carry(fields[2], Integer.parseInt(fields[3]), fields[4], fields[5], fields[6]);
+                    } catch (NumberFormatException e) {
+                        // Torn last line of a crashed run
+                    }
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private Entry
+    apply(String hostVal, int iteration, String phase, String vAppName, String vAppMorVal)
+    {
+        Entry orphan = vAppName == null ? null : orphans.get(vAppName);
+
+        if (orphan != null) {
+            // Sweep of a vApp carried over from an earlier run, vApp names are unique per run
+            orphan.phase = phase;
+
+            if (orphan.isSwept() || orphan.isFinished()) {
+                orphans.remove(vAppName);
+            }
+            return orphan;
+        }
+        String key = hostVal + "#" + iteration;
+        Entry entry = lifecycles.get(key);
+
+        if (entry == null) {
+            entry = new Entry(hostVal, iteration);
+            lifecycles.put(key, entry);
+        }
+        entry.phase = phase;
+
+        if (vAppName != null && !vAppName.isEmpty()) {
+            entry.vAppName = vAppName;
+        }
+        if (vAppMorVal != null && !vAppMorVal.isEmpty()) {
+            entry.vAppMorVal = vAppMorVal;
+        }
+        return entry;
+    }
+
+    private void
+    carry(String hostVal, int iteration, String phase, String vAppName, String vAppMorVal)
+    {
+        Entry orphan = new Entry(hostVal, iteration);
+        orphan.phase = phase;
+        orphan.vAppName = vAppName;
+        orphan.vAppMorVal = vAppMorVal.isEmpty() ? null : vAppMorVal;
+        orphan.carried = true;
+        orphans.put(vAppName, orphan);
+    }
+
+    /**
+     * Lifecycles of the journaled run that never got to done, nor were swept, and the vApps of earlier runs that
+     * are not swept yet
+     */
+    public synchronized List<Entry>
+    getUnfinished()
+    {
+        List<Entry> unfinished = new ArrayList<Entry>(orphans.values());
+
+        for (Entry entry : lifecycles.values()) {
+            if (!entry.isFinished() && !entry.isSwept()) {
+                unfinished.add(entry);
+            }
+        }
+        return unfinished;
+    }
+
+    /**
+     * Journaled state of the lifecycle, null if it never started
+     */
+    public synchronized Entry
+    get(String hostVal, int iteration)
+    {
+        return lifecycles.get(hostVal + "#" + iteration);
+    }
+
+    /**
+     * Start a new run. The lifecycles journaled so far are forgotten on the next replay, except those that left a
+     * vApp the sweeper could not destroy, which are carried into the new run as orphans
+     */
+    public synchronized void
+    startRun(String srcvAppName, int iterations)
+    {
+        List<Entry> carried = new ArrayList<Entry>();
+
+        for (Entry entry : lifecycles.values()) {
+            if (!entry.isFinished() && !entry.isSwept() && entry.vAppName != null) {
+                carried.add(entry);
+            }
+        }
+        lifecycles.clear();
+        writeLine(LINE_RUN + "\t" + System.currentTimeMillis() + "\t" + srcvAppName + "\t" + iterations);
+
+        for (Entry entry : carried) {
+            String vAppMorVal = entry.vAppMorVal == null ? "" : entry.vAppMorVal;
+
+            carry(entry.hostVal, entry.iteration, entry.phase, entry.vAppName, vAppMorVal);
+            writeLine(LINE_ORPHAN + "\t" + System.currentTimeMillis() + "\t" + entry.hostVal + "\t" + entry.iteration
+                + "\t" + entry.phase + "\t" + entry.vAppName + "\t" + vAppMorVal);
+        }
+    }
+
+    /**
+     * Journal a lifecycle phase transition, vApp name and MOR once they are known
+     */
+    public synchronized void
+    record(String hostVal, int iteration, String phase, String vAppName, String vAppMorVal)
+    {
+        apply(hostVal, iteration, phase, vAppName, vAppMorVal);
+        writeLine(LINE_PHASE + "\t" + System.currentTimeMillis() + "\t" + hostVal + "\t" + iteration + "\t" + phase
+            + "\t" + (vAppName == null ? "" : vAppName) + "\t" + (vAppMorVal == null ? "" : vAppMorVal));
+    }
+
+    private void
+    writeLine(String line)
+    {
+        // Flushed per line, a JVM crash loses at most the line being written
+        out.println(line);
+        out.flush();
+
+        if (out.checkError()) {
+            System.err.println("[Error] Unable to write run journal: " + file.getAbsolutePath());
+        }
+    }
+
+    public synchronized void
+    close()
+    {
+        out.close();
+    }
+
+} // End of run journal class
@@ -0,0 +1,207 @@
+/**
+ * End of run report of the phase metrics - console summary, JSON and CSV files and a Prometheus
+ * text format snapshot.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ *          The above copyright notice and this permission notice shall be
+ *          included in all copies or substantial portions of the Software.
+ *
+ *          THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *          EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ *          OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *          NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *          HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *          WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ *          FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ *          OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package vappdeployer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.Map;
+
+public class RunReport
+{
+    // Report file names
+    private static final String JSON_FILE = "vAppDeployer-report.json";
+    private static final String CSV_FILE = "vAppDeployer-samples.csv";
+    private static final String PROMETHEUS_FILE = "vAppDeployer-metrics.prom";
+
+    private static final double[] PERCENTILES = new double[] { 50, 90, 99 };
+
+    private PhaseMetrics metrics;
+
+    /**
+     * Constructor
+     */
+    public
+    RunReport(PhaseMetrics metrics)
+    {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Print p50/p90/p99/max of every phase across all hosts
+     */
+    public void
+    printSummary()
+    {
+        System.out.println("------------------------------ Phase latencies ------------------------------");
+        System.out.println(String.format("%-26s %7s %10s %10s %10s %10s", "Phase", "Count", "p50 (s)", "p90 (s)",
+            "p99 (s)", "Max (s)"));
+
+        for (Map.Entry<String, LatencyHistogram> entry : metrics.getHistograms().entrySet()) {
+            String[] phaseHost = entry.getKey().split("\\|", 2);
+
+            if (phaseHost[1].equals(PhaseMetrics.ALL_HOSTS)) {
+                LatencyHistogram h = entry.getValue();
+                System.out.println(String.format(Locale.ROOT, "%-26s %7d %10.1f %10.1f %10.1f %10.1f", phaseHost[0],
+                    h.getCount(), h.getPercentile(50) / 1000.0, h.getPercentile(90) / 1000.0,
+                    h.getPercentile(99) / 1000.0, h.getMaxMs() / 1000.0));
+            }
+        }
+        System.out.println("-----------------------------------------------------------------------------");
+    }
+
+    /**
+     * Write JSON report, CSV samples and Prometheus snapshot into the given directory
+     */
+    public void
+    write(String reportDir) throws IOException
+    {
+        File dir = new File(reportDir);
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create report directory: " + reportDir);
+        }
+
+        writeJson(new File(dir, JSON_FILE));
+        writeCsv(new File(dir, CSV_FILE));
+        writePrometheus(new File(dir, PROMETHEUS_FILE));
+        System.out.println("Run report written to: " + dir.getAbsolutePath());
+    }
+
+    private void
+    writeJson(File file) throws IOException
+    {
+        PrintWriter out = openWriter(file);
+
+        try {
+            out.println("{");
+            out.println("  \"generated\": " + System.currentTimeMillis() + ",");
+            out.println("  \"histograms\": [");
+            boolean first = true;
+
+            for (Map.Entry<String, LatencyHistogram> entry : metrics.getHistograms().entrySet()) {
+                String[] phaseHost = entry.getKey().split("\\|", 2);
+                LatencyHistogram h = entry.getValue();
+
+                if (!first) {
+                    out.println(",");
+                }
+                first = false;
+                out.print("    {\"phase\": \"" + jsonEscape(phaseHost[0]) + "\", \"host\": \"" + jsonEscape(phaseHost[1])
+                    + "\", \"count\": " + h.getCount() + ", \"sumMs\": " + h.getSumMs());
+
+                for (double p : PERCENTILES) {
+                    out.print(", \"p" + (int) p + "Ms\": " + h.getPercentile(p));
+                }
+                out.print(", \"maxMs\": " + h.getMaxMs() + "}");
+            }
+            out.println();
+            out.println("  ]");
+            out.println("}");
+        } finally {
+            out.close();
+        }
+    }
+
+    private void
+    writeCsv(File file) throws IOException
+    {
+        PrintWriter out = openWriter(file);
+
+        try {
+            out.println("phase,host,iteration,start_epoch_ms,duration_ms,succeeded");
+
+            for (PhaseMetrics.Sample sample : metrics.getSamples()) {
+                out.println(sample.phase + "," + csvEscape(sample.host) + "," + sample.iteration + ","
+                    + sample.startTime + "," + sample.durationMs + "," + sample.succeeded);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private void
+    writePrometheus(File file) throws IOException
+    {
+        PrintWriter out = openWriter(file);
+
+        try {
+            out.println("# HELP vappdeployer_phase_duration_seconds Duration of vApp deployment lifecycle phases");
+            out.println("# TYPE vappdeployer_phase_duration_seconds summary");
+
+            for (Map.Entry<String, LatencyHistogram> entry : metrics.getHistograms().entrySet()) {
+                String labels = promLabels(entry.getKey());
+                LatencyHistogram h = entry.getValue();
+
+                for (double p : PERCENTILES) {
+                    out.println("vappdeployer_phase_duration_seconds{" + labels + ",quantile=\"" + (p / 100) + "\"} "
+                        + h.getPercentile(p) / 1000.0);
+                }
+                out.println("vappdeployer_phase_duration_seconds_sum{" + labels + "} " + h.getSumMs() / 1000.0);
+                out.println("vappdeployer_phase_duration_seconds_count{" + labels + "} " + h.getCount());
+            }
+
+            out.println("# HELP vappdeployer_phase_duration_max_seconds Longest duration seen per phase");
+            out.println("# TYPE vappdeployer_phase_duration_max_seconds gauge");
+
+            for (Map.Entry<String, LatencyHistogram> entry : metrics.getHistograms().entrySet()) {
+                out.println("vappdeployer_phase_duration_max_seconds{" + promLabels(entry.getKey()) + "} "
+                    + entry.getValue().getMaxMs() / 1000.0);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String
+    promLabels(String histogramKey)
+    {
+        String[] phaseHost = histogramKey.split("\\|", 2);
+        return "phase=\"" + phaseHost[0] + "\",host=\"" + phaseHost[1].replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    private static String
+    jsonEscape(String value)
+    {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    private static String
+    csvEscape(String value)
+    {
+        return value.contains(",") ? "\"" + value.replace("\"", "\"\"") + "\"" : value;
+    }
+
+    private static PrintWriter
+    openWriter(File file) throws IOException
+    {
+        return new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+    }
+
+} // End of run report class
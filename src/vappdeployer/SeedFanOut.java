@@ -0,0 +1,350 @@
+/**
+ * Tree fan-out cloning - full copies of the source vApp are seeded on a few destination hosts first, every
+ * other host then clones from its nearest seed, so clone reads spread over the seeds instead of one source host.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ *          The above copyright notice and this permission notice shall be
+ *          included in all copies or substantial portions of the Software.
+ *
+ *          THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *          EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ *          OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *          NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *          HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *          WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ *          FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ *          OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package vappdeployer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.TaskInfo;
+import com.vmware.vim25.TaskInfoState;
+import com.vmware.vim25.VAppCloneSpec;
+
+public class SeedFanOut
+{
+    private VSphereBackend backend;
+    private InventorySnapshot inventory;
+    private DatastorePlacement placement;
+    private PhaseDeadlines deadlines;
+    private PhaseMetrics metrics;
+    private EventLog events;
+    private RunJournal journal;
+    private ManagedObjectReference srcvAppMor;
+    private String srcvAppName;
+    private long srcvAppBytes;
+    private int seedCount;
+
+    private final List<Seed> seeds = new ArrayList<Seed>();
+
+    // Destination host MOR value -> seed its clones read from
+    private final Map<String, Seed> hostSeeds = new HashMap<String, Seed>();
+
+    /**
+     * Seed copy of the source vApp
+     */
+    static class Seed
+    {
+        final ManagedObjectReference hostMor;
+        final String vAppName;
+        ManagedObjectReference dsMor;
+        ManagedObjectReference vAppMor;
+        Set<String> datastores = new HashSet<String>();
+        int assignedHosts = 0;
+
+        Seed(ManagedObjectReference hostMor, String vAppName)
+        {
+            this.hostMor = hostMor;
+            this.vAppName = vAppName;
+        }
+    }
+
+    /**
+     * Constructor, journal may be null
+     */
+    public
+    SeedFanOut(VSphereBackend backend, InventorySnapshot inventory, DatastorePlacement placement,
+        PhaseDeadlines deadlines, PhaseMetrics metrics, EventLog events, RunJournal journal,
+        ManagedObjectReference srcvAppMor, String srcvAppName, long srcvAppBytes, int seedCount)
+    {
+        this.backend = backend;
+        this.inventory = inventory;
+        this.placement = placement;
+        this.deadlines = deadlines;
+        this.metrics = metrics;
+        this.events = events;
+        this.journal = journal;
+        this.srcvAppMor = srcvAppMor;
+        this.srcvAppName = srcvAppName;
+        this.srcvAppBytes = srcvAppBytes;
+        this.seedCount = seedCount;
+    }
+
+    /**
+     * Clone the seeds from the source vApp in parallel, then assign every destination host its nearest seed.
+     * Returns false if no seed could be created, clones then keep reading from the source vApp
+     */
+    public boolean
+    seed(List<ManagedObjectReference> destHosts) throws Exception
+    {
+        List<Seed> candidates = new ArrayList<Seed>();
+        List<CompletableFuture<TaskInfo>> seedTasks = new ArrayList<CompletableFuture<TaskInfo>>();
+        final long seedStartTime = System.currentTimeMillis();
+
+        for (ManagedObjectReference seedHostMor : pickSeedHosts(destHosts)) {
+            String hostName = inventory.getHostName(seedHostMor);
+            Seed seed = new Seed(seedHostMor, srcvAppName + "-seed-" + hostName);
+
+            // Look ups that can fail come before placement, so they cannot leave its capacity claim behind
+            for (ManagedObjectReference dsMor : inventory.getAccessibleDatastores(seedHostMor)) {
+                seed.datastores.add(dsMor.getVal());
+            }
+            ManagedObjectReference seedResPoolMor = inventory.getResourcePool(seedHostMor);
+            VAppCloneSpec seedCloneSpec = new VAppCloneSpec();
+            seedCloneSpec.setHost(seedHostMor);
+            seedCloneSpec.setVmFolder(inventory.getVmFolder(seedHostMor));
+
+            seed.dsMor = placement.place(seedHostMor, srcvAppBytes);
+            if (seed.dsMor == null) {
+                events.error(null, 0, null, "Could not find any accessible datastore for seed on host: " + hostName);
+                continue;
+            }
+            seedCloneSpec.setLocation(seed.dsMor);
+
+            events.notice("Seed vApp: " + seed.vAppName + " on host: " + hostName);
+            journalSeed(seed, RunJournal.PHASE_SEED);
+            TaskHandle seedTask;
+
+            try {
+                seedTask = backend.clonevApp(srcvAppMor, seed.vAppName, seedResPoolMor, seedCloneSpec);
+            } catch (Exception e) {
+                placement.release(seed.dsMor, srcvAppBytes);
+                throw e;
+            }
+            candidates.add(seed);
+            seedTasks.add(deadlines.bound(seedTask, PhaseMetrics.PHASE_SEED));
+        }
+
+        for (int i = 0; i < candidates.size(); i++) {
+            Seed seed = candidates.get(i);
+            String hostName = inventory.getHostName(seed.hostMor);
+            TaskInfo seedTaskInfo = null;
+
+            try {
+                seedTaskInfo = seedTasks.get(i).join();
+            } catch (Exception e) {
+                events.error(null, 0, null, "[Error] Seed clone of vApp: " + seed.vAppName + " caught exception: " + e);
+            }
+            boolean seeded = seedTaskInfo != null && seedTaskInfo.getState().equals(TaskInfoState.success)
+                && seedTaskInfo.getResult() != null;
+            metrics.record(PhaseMetrics.PHASE_SEED, hostName, 0, seedStartTime, seeded);
+
+            if (seeded) {
+                seed.vAppMor = (ManagedObjectReference) seedTaskInfo.getResult();
+                inventory.addvApp(seed.vAppName, seed.vAppMor);
+                journalSeed(seed, RunJournal.PHASE_SEED);
+                seeds.add(seed);
+            } else {
+                events.error(null, 0, null, "Seed vApp: " + seed.vAppName + " could not be created, host: " + hostName
+                    + " is not used as seed");
+                placement.release(seed.dsMor, srcvAppBytes);
+                leaveIfCreated(seed);
+            }
+        }
+
+        if (seeds.isEmpty()) {
+            events.error(null, 0, null,
+                "No seed vApp could be created, all clones read from source vApp: " + srcvAppName);
+            return false;
+        }
+        assignHosts(destHosts);
+        return true;
+    }
+
+    /**
+     * Seed hosts spread over the datastores - each next seed is the host that sees the most datastores not
+     * seen by any seed picked so far
+     */
+    private List<ManagedObjectReference>
+    pickSeedHosts(List<ManagedObjectReference> destHosts) throws Exception
+    {
+        List<ManagedObjectReference> seedHosts = new ArrayList<ManagedObjectReference>();
+        List<ManagedObjectReference> remaining = new ArrayList<ManagedObjectReference>(destHosts);
+        Set<String> covered = new HashSet<String>();
+
+        while (seedHosts.size() < seedCount && !remaining.isEmpty()) {
+            ManagedObjectReference bestHostMor = null;
+            int bestUncovered = -1;
+
+            for (ManagedObjectReference hostMor : remaining) {
+                int uncovered = 0;
+
+                for (ManagedObjectReference dsMor : inventory.getAccessibleDatastores(hostMor)) {
+                    if (!covered.contains(dsMor.getVal())) {
+                        uncovered++;
+                    }
+                }
+                if (uncovered > bestUncovered) {
+                    bestHostMor = hostMor;
+                    bestUncovered = uncovered;
+                }
+            }
+            seedHosts.add(bestHostMor);
+            remaining.remove(bestHostMor);
+
+            for (ManagedObjectReference dsMor : inventory.getAccessibleDatastores(bestHostMor)) {
+                covered.add(dsMor.getVal());
+            }
+        }
+        return seedHosts;
+    }
+
+    /**
+     * Seed hosts clone from their own seed. Every other host clones from a seed on a datastore it can see,
+     * if there is one, and the seed serving the fewest hosts among those
+     */
+    private void
+    assignHosts(List<ManagedObjectReference> destHosts) throws Exception
+    {
+        for (Seed seed : seeds) {
+            seed.assignedHosts++;
+            hostSeeds.put(seed.hostMor.getVal(), seed);
+        }
+
+        for (ManagedObjectReference hostMor : destHosts) {
+            if (hostSeeds.containsKey(hostMor.getVal())) {
+                continue;
+            }
+            Set<String> hostDatastores = new HashSet<String>();
+
+            for (ManagedObjectReference dsMor : inventory.getAccessibleDatastores(hostMor)) {
+                hostDatastores.add(dsMor.getVal());
+            }
+            Seed nearest = null;
+            boolean nearestShared = false;
+
+            for (Seed seed : seeds) {
+                boolean shared = false;
+
+                for (String dsVal : seed.datastores) {
+                    if (hostDatastores.contains(dsVal)) {
+                        shared = true;
+                        break;
+                    }
+                }
+                if (nearest == null || (shared && !nearestShared)
+                    || (shared == nearestShared && seed.assignedHosts < nearest.assignedHosts)) {
+                    nearest = seed;
+                    nearestShared = shared;
+                }
+            }
+            nearest.assignedHosts++;
+            hostSeeds.put(hostMor.getVal(), nearest);
+        }
+
+        for (Seed seed : seeds) {
+            events.notice("Seed vApp: " + seed.vAppName + " serves " + seed.assignedHosts + " host(s)");
+        }
+    }
+
+    /**
+     * vApp the host's clones read from, the source vApp for hosts without a seed
+     */
+    public ManagedObjectReference
+    sourceFor(ManagedObjectReference hostMor)
+    {
+        Seed seed = hostSeeds.get(hostMor.getVal());
+        return seed != null ? seed.vAppMor : srcvAppMor;
+    }
+
+    /**
+     * Destroy all seeds in parallel, they are never powered on
+     */
+    public void
+    cleanup()
+    {
+        List<CompletableFuture<TaskInfo>> destroyTasks = new ArrayList<CompletableFuture<TaskInfo>>();
+
+        for (Seed seed : seeds) {
+            events.notice("Destroy seed vApp: " + seed.vAppName);
+
+            try {
+                destroyTasks.add(deadlines.bound(backend.destroy(seed.vAppMor), PhaseMetrics.PHASE_DESTROY));
+            } catch (Exception e) {
+                events.error(null, 0, null, "[Error] Could not destroy seed vApp: " + seed.vAppName);
+                destroyTasks.add(null);
+            }
+        }
+
+        for (int i = 0; i < seeds.size(); i++) {
+            Seed seed = seeds.get(i);
+            boolean destroyed = false;
+
+            try {
+                destroyed = destroyTasks.get(i) != null
+                    && destroyTasks.get(i).join().getState().equals(TaskInfoState.success);
+            } catch (Exception e) {
+                events.error(null, 0, null,
+                    "[Error] Destroy of seed vApp: " + seed.vAppName + " caught exception: " + e);
+            }
+
+            if (destroyed) {
+                inventory.removevApp(seed.vAppName);
+                placement.release(seed.dsMor, srcvAppBytes);
+                journalSeed(seed, RunJournal.PHASE_DONE);
+            } else {
+                events.error(null, 0, null, "Seed vApp: " + seed.vAppName + " could not be destroyed");
+            }
+        }
+        seeds.clear();
+        hostSeeds.clear();
+    }
+
+    /**
+     * A seed clone that failed or was cancelled past its deadline may have created the vApp anyway, it then stays
+     * unfinished in the journal for the next run to sweep
+     */
+    private void
+    leaveIfCreated(Seed seed)
+    {
+        try {
+            if (inventory.findvApp(seed.vAppName) != null) {
+                events.error(null, 0, null, "[Error] vApp: " + seed.vAppName
+                    + " of the failed seed clone is left behind, the next run sweeps it");
+                return;
+            }
+        } catch (Exception e) {
+            events.error(null, 0, null,
+                "[Error] Could not look up vApp: " + seed.vAppName + " of the failed seed clone");
+            return;
+        }
+        journalSeed(seed, RunJournal.PHASE_DONE);
+    }
+
+    private void
+    journalSeed(Seed seed, String phase)
+    {
+        if (journal != null) {
+            journal.record(seed.hostMor.getVal(), 0, phase, seed.vAppName,
+                seed.vAppMor == null ? null : seed.vAppMor.getVal());
+        }
+    }
+
+} // End of seed fan-out class
@@ -0,0 +1,318 @@
+/**
+ * Pool of authenticated vSphere sessions shared by deployment workers, with keep-alive
+ * and transparent re-login of expired sessions
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ *          The above copyright notice and this permission notice shall be
+ *          included in all copies or substantial portions of the Software.
+ *
+ *          THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *          EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ *          OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *          NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *          HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *          WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ *          FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ *          OTHER DEALINGS IN THE SOFTWARE.
+ */
+package vappdeployer;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import com.vmware.vim25.NotAuthenticated;
+import com.vmware.vim25.mo.ServiceInstance;
+
+public class SessionPool
+{
+    // Default number of sessions and keep-alive interval
+    static final int DEFAULT_SIZE = 4;
+    static final int DEFAULT_KEEPALIVE_SECONDS = 300;
+
+    private final String url;
+    private final String userName;
+    private final String password;
+    private final int size;
+    private final int keepAliveSeconds;
+
+    // One permit per idle session, a granted permit always finds a session in the idle queue
+    private final Queue<ServiceInstance> idleSessions = new ConcurrentLinkedQueue<ServiceInstance>();
+    private final List<ServiceInstance> allSessions = new ArrayList<ServiceInstance>();
+    private final ExecutorService callExecutor;
+    private final AsyncSemaphore sessionPermits;
+    private ScheduledExecutorService keepAliveExecutor;
+    private volatile EventLog events;
+
+    /**
+     * Work done on a borrowed session
+     */
+    public interface SessionCall<T>
+    {
+        T call(ServiceInstance si) throws Exception;
+    }
+
+    /**
+     * Constructor, keepAliveSeconds 0 disables the keep-alive
+     */
+    public
+    SessionPool(String url, String userName, String password, int size, int keepAliveSeconds)
+    {
+        this.url = url;
+        this.userName = userName;
+        this.password = password;
+        this.size = Math.max(1, size);
+        this.keepAliveSeconds = keepAliveSeconds;
+
+        // One call thread per session, a call that got its session never waits for a thread
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.callExecutor = Executors.newFixedThreadPool(this.size, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "vAppDeployer-session-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.sessionPermits = new AsyncSemaphore(0, callExecutor);
+    }
+
+    /**
+     * Report through the event log from now on, null prints to the console
+     */
+    public void
+    setEventLog(EventLog events)
+    {
+        this.events = events;
+    }
+
+    /**
+     * Fill the pool, the given (already logged in) session becomes its first member
+     */
+    public synchronized void
+    start(ServiceInstance firstSession) throws Exception
+    {
+        addSession(firstSession);
+
+        while (allSessions.size() < size) {
+            addSession(login());
+        }
+        EventLog.noticeOrPrint(events, "Session pool ready with " + allSessions.size() + " sessions");
+
+        if (keepAliveSeconds > 0) {
+            keepAliveExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "vAppDeployer-session-keepalive");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            keepAliveExecutor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run()
+                {
+                    keepAlive();
+                }
+            }, keepAliveSeconds, keepAliveSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Future completes with a borrowed session once one is idle, waiters are served in order
+     */
+    public CompletableFuture<ServiceInstance>
+    acquire()
+    {
+        return sessionPermits.acquire().thenApply(new Function<Void, ServiceInstance>() {
+            @Override
+            public ServiceInstance
+            apply(Void v)
+            {
+                return idleSessions.poll();
+            }
+        });
+    }
+
+    public void
+    release(ServiceInstance si)
+    {
+        idleSessions.offer(si);
+        sessionPermits.release();
+    }
+
+    /**
+     * Run the call on a borrowed session, waiting in the caller's thread for one if all are in use. The backend's
+     * synchronous calls go through here, so an event loop thread making one does wait while all sessions are busy;
+     * only work that can complete later, such as linked clone submission, uses submit
+     */
+    public <T> T
+    execute(SessionCall<T> sessionCall) throws Exception
+    {
+        return call(acquire().get(), sessionCall);
+    }
+
+    /**
+     * Run the call on a session's own thread once a session is idle, the caller does not wait for either
+     */
+    public <T> CompletableFuture<T>
+    submit(final SessionCall<T> sessionCall)
+    {
+        return acquire().thenApplyAsync(new Function<ServiceInstance, T>() {
+            @Override
+            public T
+            apply(ServiceInstance si)
+            {
+                try {
+                    return call(si, sessionCall);
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }
+        }, callExecutor);
+    }
+
+    /**
+     * Run the call on the borrowed session and return it. If the session has expired it is logged in again and the
+     * call retried once
+     */
+    private <T> T
+    call(ServiceInstance si, SessionCall<T> sessionCall) throws Exception
+    {
+        try {
+            try {
+                return sessionCall.call(si);
+            } catch (Exception e) {
+                if (!isSessionExpired(e)) {
+                    throw e;
+                }
+                EventLog.noticeOrPrint(events, "vSphere session expired, logging in again");
+                si = replace(si);
+                return sessionCall.call(si);
+            }
+        } finally {
+            release(si);
+        }
+    }
+
+    /**
+     * Stop the keep-alive and logout all sessions
+     */
+    public synchronized void
+    shutdown()
+    {
+        if (keepAliveExecutor != null) {
+            keepAliveExecutor.shutdownNow();
+        }
+        callExecutor.shutdownNow();
+
+        for (ServiceInstance si : allSessions) {
+            try {
+                si.getServerConnection().logout();
+            } catch (Exception e) {
+                // session already gone
+            }
+        }
+        allSessions.clear();
+        idleSessions.clear();
+    }
+
+    /**
+     * Touch every idle session so the server does not expire it, re-login the ones that expired anyway
+     */
+    private void
+    keepAlive()
+    {
+        for (int i = 0; i < size; i++) {
+            if (!sessionPermits.tryAcquire()) {
+                // Rest are in use, which keeps them alive
+                break;
+            }
+            ServiceInstance si = idleSessions.poll();
+
+            try {
+                si.currentTime();
+            } catch (Exception e) {
+                try {
+                    si = replace(si);
+                } catch (Exception loginEx) {
+                    EventLog.errorOrPrint(events, "[Error] Could not re-login expired vSphere session: "
+                        + loginEx.getMessage());
+                }
+            } finally {
+                release(si);
+            }
+        }
+    }
+
+    /**
+     * Swap an expired session for a freshly logged in one
+     */
+    private synchronized ServiceInstance
+    replace(ServiceInstance expiredSi) throws Exception
+    {
+        ServiceInstance newSi = login();
+        allSessions.remove(expiredSi);
+        allSessions.add(newSi);
+        return newSi;
+    }
+
+    private void
+    addSession(ServiceInstance si)
+    {
+        allSessions.add(si);
+        release(si);
+    }
+
+    /**
+     * Log in a session that is not part of the pool, for a watcher whose own session expired
+     */
+    ServiceInstance
+    newSession() throws Exception
+    {
+        return login();
+    }
+
+    private ServiceInstance
+    login() throws Exception
+    {
+        return new ServiceInstance(new URL(url), userName, password, true);
+    }
+
+    /**
+     * NotAuthenticated fault, as thrown or wrapped by vijava
+     */
+    static boolean
+    isSessionExpired(Throwable e)
+    {
+        while (e != null) {
+            if (e instanceof NotAuthenticated
+                || (e.getMessage() != null && e.getMessage().contains("NotAuthenticated"))) {
+                return true;
+            }
+            e = e.getCause();
+        }
+        return false;
+    }
+
+} // End of session pool class
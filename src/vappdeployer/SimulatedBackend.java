@@ -0,0 +1,777 @@
+/**
+ * In-process vSphere simulator backend. Generates an inventory of configurable size and completes
+ * clone/power/destroy tasks after latencies drawn from per operation (log-normal) distributions, failing
+ * them at a configurable rate - so the deployer's orchestration can be measured and tuned without a vCenter.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ *          The above copyright notice and this permission notice shall be
+ *          included in all copies or substantial portions of the Software.
+ *
+ *          THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *          EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ *          OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *          NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *          HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *          WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ *          FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ *          OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package vappdeployer;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.vmware.vim25.DatastoreSummary;
+import com.vmware.vim25.LocalizedMethodFault;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.TaskInfo;
+import com.vmware.vim25.TaskInfoState;
+import com.vmware.vim25.VAppCloneSpec;
+import com.vmware.vim25.VirtualMachinePowerState;
+
+public class SimulatedBackend implements VSphereBackend
+{
+    // Simulated operations, used as prefix of their latency/failure settings
+    public static final String OP_CLONE = "clone";
+    public static final String OP_LINKED_CLONE = "linkedclone";
+    public static final String OP_POWER_ON = "poweron";
+    public static final String OP_POWER_OFF = "poweroff";
+    public static final String OP_DESTROY = "destroy";
+    public static final String OP_INVENTORY = "inventory";
+    public static final String OP_PROPERTY = "property";
+    public static final String OP_GUEST_READY = "guestready";
+    public static final String OP_SNAPSHOT = "snapshot";
+
+    private static final String[] ALL_OPS = new String[] { OP_CLONE, OP_LINKED_CLONE, OP_POWER_ON, OP_POWER_OFF,
+        OP_DESTROY, OP_INVENTORY, OP_PROPERTY, OP_GUEST_READY, OP_SNAPSHOT };
+
+    // Default median latency (ms) per operation, in ALL_OPS order
+    private static final long[] DEFAULT_MEDIAN_MS = new long[] { 30000, 5000, 3000, 2000, 3000, 500, 20, 20000,
+        2000 };
+
+    private static final long DATASTORE_CAPACITY = 2L * 1024 * 1024 * 1024 * 1024;
+    private static final long VM_COMMITTED_BYTES = 20L * 1024 * 1024 * 1024;
+
+    private int hostCount;
+    private int datastoresPerHost;
+    private int vmsPerVApp;
+    private int hostsPerCluster;
+
+    // Unhealthy/loaded hosts (the last ones), baseline load of a host and load each powered on VM adds, percent
+    private int disconnectedHosts;
+    private int maintenanceHosts;
+    private int loadedHosts;
+    private int baseLoadPercent;
+    private int loadedLoadPercent;
+    private int vmLoadPercent;
+    private String srcvAppName;
+    private final Map<String, double[]> opSettings = new HashMap<String, double[]>();
+
+    private ScheduledThreadPoolExecutor taskCompleter;
+
+    // vCenter task queueing - running task count and starts of tasks waiting for a free slot
+    private int maxRunningTasks;
+    private int runningTasks = 0;
+    private final Queue<Runnable> queuedTasks = new ArrayDeque<Runnable>();
+    private final AtomicLong morCounter = new AtomicLong();
+
+    // Full clones reading from one source vApp at full speed, more share its disk/network bandwidth
+    private int sourceStreams;
+    private final ConcurrentMap<String, AtomicInteger> activeSourceClones =
+        new ConcurrentHashMap<String, AtomicInteger>();
+    private InventoryData baseInventory;
+
+    // vApp name -> MOR, vApp MOR value -> its VMs, VM MOR value -> simulated VM
+    private final ConcurrentMap<String, ManagedObjectReference> vApps =
+        new ConcurrentHashMap<String, ManagedObjectReference>();
+    private final ConcurrentMap<String, List<SimVm>> vAppVms = new ConcurrentHashMap<String, List<SimVm>>();
+    private final ConcurrentMap<String, SimVm> vms = new ConcurrentHashMap<String, SimVm>();
+
+    // Task MOR value -> tasks not finished yet, so they can be cancelled
+    private final ConcurrentMap<String, SimTask> tasks = new ConcurrentHashMap<String, SimTask>();
+
+    /**
+     * Simulated task, finished once - by completing or by being cancelled
+     */
+    static class SimTask
+    {
+        final ManagedObjectReference taskMor;
+        final CompletableFuture<TaskInfo> completion = new CompletableFuture<TaskInfo>();
+        final Calendar queueTime = Calendar.getInstance();
+        Calendar startTime;
+        AtomicInteger sourceClones;
+        boolean finished = false;
+
+        SimTask(ManagedObjectReference taskMor)
+        {
+            this.taskMor = taskMor;
+        }
+
+        /**
+         * Claim finishing the task, false if it is finished already
+         */
+        synchronized boolean
+        finish()
+        {
+            if (finished) {
+                return false;
+            }
+            finished = true;
+            return true;
+        }
+
+        synchronized TaskInfo
+        newTaskInfo()
+        {
+            TaskInfo taskInfo = new TaskInfo();
+            taskInfo.setTask(taskMor);
+            taskInfo.setQueueTime(queueTime);
+            taskInfo.setStartTime(startTime);
+            return taskInfo;
+        }
+    }
+
+    /**
+     * Simulated VM
+     */
+    static class SimVm
+    {
+        final ManagedObjectReference vmMor;
+        final ManagedObjectReference hostMor;
+        volatile VirtualMachinePowerState powerState = VirtualMachinePowerState.poweredOff;
+        // When the guest reports tools running / heartbeat after power on
+        volatile long guestReadyAtMs = Long.MAX_VALUE;
+
+        SimVm(ManagedObjectReference vmMor, ManagedObjectReference hostMor)
+        {
+            this.vmMor = vmMor;
+            this.hostMor = hostMor;
+        }
+    }
+
+    /**
+     * Constructor, settings (all optional):
+     *   hosts, datastoresPerHost, vmsPerVApp, vcenter.maxtasks (tasks running at once, more are queued, 0 unlimited)
+     *   hostsPerCluster (0 for standalone hosts), hosts.disconnected, hosts.maintenance, hosts.loaded (host counts)
+     *   host.load.base.percent, host.load.loaded.percent (baseline of the loaded hosts), host.load.vm.percent (added
+     *   by each powered on VM)
+     *   clone.source.streams (full clones of one source vApp at full speed, more slow down in proportion, 0 unlimited)
+     *   <op>.latency.median.ms, <op>.latency.sigma (0 for fixed latency), <op>.failure.rate (0..1),
+     *   <op>.hang.rate (0..1, task never completes unless cancelled)
+     * where op is one of clone, linkedclone, poweron, poweroff, destroy, inventory, property, guestready, snapshot
+     * (snapshot is both taking and reverting to one, guestready is the time from power on until the guest reports tools running / heartbeat)
+     */
+    public
+    SimulatedBackend(Properties settings, String srcvAppName)
+    {
+        this.srcvAppName = srcvAppName;
+        hostCount = Integer.parseInt(settings.getProperty("hosts", "10"));
+        datastoresPerHost = Integer.parseInt(settings.getProperty("datastoresPerHost", "2"));
+        vmsPerVApp = Integer.parseInt(settings.getProperty("vmsPerVApp", "3"));
+        hostsPerCluster = Integer.parseInt(settings.getProperty("hostsPerCluster", "0"));
+        disconnectedHosts = Integer.parseInt(settings.getProperty("hosts.disconnected", "0"));
+        maintenanceHosts = Integer.parseInt(settings.getProperty("hosts.maintenance", "0"));
+        loadedHosts = Integer.parseInt(settings.getProperty("hosts.loaded", "0"));
+        baseLoadPercent = Integer.parseInt(settings.getProperty("host.load.base.percent", "20"));
+        loadedLoadPercent = Integer.parseInt(settings.getProperty("host.load.loaded.percent", "95"));
+        vmLoadPercent = Integer.parseInt(settings.getProperty("host.load.vm.percent", "2"));
+        maxRunningTasks = Integer.parseInt(settings.getProperty("vcenter.maxtasks", "0"));
+        sourceStreams = Integer.parseInt(settings.getProperty("clone.source.streams", "0"));
+
+        for (int i = 0; i < ALL_OPS.length; i++) {
+            String op = ALL_OPS[i];
+            opSettings.put(op, new double[] {
+                Double.parseDouble(settings.getProperty(op + ".latency.median.ms", String.valueOf(DEFAULT_MEDIAN_MS[i]))),
+                Double.parseDouble(settings.getProperty(op + ".latency.sigma", "0.3")),
+                Double.parseDouble(settings.getProperty(op + ".failure.rate", "0")),
+                Double.parseDouble(settings.getProperty(op + ".hang.rate", "0")) });
+        }
+    }
+
+    /**
+     * Read simulator settings from a properties file
+     */
+    public static Properties
+    loadSettings(String settingsFile) throws IOException
+    {
+        Properties settings = new Properties();
+
+        if (settingsFile != null) {
+            InputStream in = new FileInputStream(settingsFile);
+            try {
+                settings.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        return settings;
+    }
+
+    /**
+     * Build the simulated inventory - one datacenter, standalone hosts with local datastores and the source vApp
+     */
+    @Override
+    public void
+    login(String url, String userName, String password) throws Exception
+    {
+        taskCompleter = new ScheduledThreadPoolExecutor(Math.max(2, Runtime.getRuntime().availableProcessors()));
+        baseInventory = new InventoryData();
+
+        ManagedObjectReference dcMor = newMor("Datacenter");
+        baseInventory.dcVmFolders.put(dcMor.getVal(), newMor("Folder"));
+
+        for (int h = 1; h <= hostCount; h++) {
+            ManagedObjectReference hostMor = newMor("HostSystem");
+            String hostKey = hostMor.getVal();
+            baseInventory.hosts.put(hostKey, hostMor);
+            baseInventory.hostNames.put(hostKey, "sim-esx-" + h);
+            baseInventory.hostResPools.put(hostKey, newMor("ResourcePool"));
+            baseInventory.hostDatacenters.put(hostKey, dcMor);
+            baseInventory.hostClusters.put(hostKey,
+                hostsPerCluster > 0 ? "sim-cluster-" + ((h - 1) / hostsPerCluster + 1) : "sim-esx-" + h);
+
+            // Disconnected, then maintenance mode, then loaded hosts counted back from the last host
+            int fromLast = hostCount - h;
+            boolean connected = fromLast >= disconnectedHosts;
+            boolean inMaintenance = connected && fromLast < disconnectedHosts + maintenanceHosts;
+            boolean loaded = connected && !inMaintenance
+                && fromLast < disconnectedHosts + maintenanceHosts + loadedHosts;
+            baseInventory.hostHealth.put(hostKey, new HostHealth(connected, inMaintenance,
+                loaded ? loadedLoadPercent : baseLoadPercent, baseLoadPercent));
+
+            List<ManagedObjectReference> dsList = new ArrayList<ManagedObjectReference>();
+            for (int d = 1; d <= datastoresPerHost; d++) {
+                ManagedObjectReference dsMor = newMor("Datastore");
+                DatastoreSummary dsSummary = new DatastoreSummary();
+                dsSummary.setDatastore(dsMor);
+                dsSummary.setName("sim-ds-" + h + "-" + d);
+                dsSummary.setAccessible(true);
+                dsSummary.setCapacity(DATASTORE_CAPACITY);
+                dsSummary.setFreeSpace(DATASTORE_CAPACITY / 2);
+                baseInventory.dsSummaries.put(dsMor.getVal(), dsSummary);
+                dsList.add(dsMor);
+            }
+            baseInventory.hostDatastores.put(hostKey, dsList);
+        }
+
+        // Source vApp lives on the first host
+        createvApp(srcvAppName, baseInventory.hosts.values().iterator().next());
+    }
+
+    @Override
+    public void
+    setEventLog(EventLog events)
+    {
+        // Simulated calls have nothing to report besides their tasks' outcomes
+    }
+
+    @Override
+    public void
+    logout()
+    {
+        if (taskCompleter != null) {
+            taskCompleter.shutdownNow();
+        }
+    }
+
+    @Override
+    public InventoryData
+    loadInventory() throws Exception
+    {
+        simulateCall(OP_INVENTORY);
+        InventoryData data = new InventoryData();
+        data.hosts.putAll(baseInventory.hosts);
+        data.hostNames.putAll(baseInventory.hostNames);
+        data.hostResPools.putAll(baseInventory.hostResPools);
+        data.hostDatacenters.putAll(baseInventory.hostDatacenters);
+        data.dcVmFolders.putAll(baseInventory.dcVmFolders);
+        data.hostDatastores.putAll(baseInventory.hostDatastores);
+        data.dsSummaries.putAll(baseInventory.dsSummaries);
+        data.hostClusters.putAll(baseInventory.hostClusters);
+        data.vApps.putAll(vApps);
+
+        // Each powered on VM adds to its host's CPU and memory load
+        Map<String, Integer> poweredOnCounts = new HashMap<String, Integer>();
+        for (SimVm simVm : vms.values()) {
+            if (simVm.powerState == VirtualMachinePowerState.poweredOn) {
+                Integer count = poweredOnCounts.get(simVm.hostMor.getVal());
+                poweredOnCounts.put(simVm.hostMor.getVal(), count == null ? 1 : count + 1);
+            }
+        }
+        for (Map.Entry<String, HostHealth> entry : baseInventory.hostHealth.entrySet()) {
+            HostHealth baseHealth = entry.getValue();
+            Integer count = poweredOnCounts.get(entry.getKey());
+            int vmLoad = count == null ? 0 : count * vmLoadPercent;
+            data.hostHealth.put(entry.getKey(), new HostHealth(baseHealth.isConnected(), baseHealth.isInMaintenance(),
+                Math.min(100, baseHealth.getCpuUsagePercent() + vmLoad),
+                Math.min(100, baseHealth.getMemoryUsagePercent() + vmLoad)));
+        }
+        return data;
+    }
+
+    @Override
+    public Map<String, ManagedObjectReference>
+    loadvApps() throws Exception
+    {
+        simulateCall(OP_INVENTORY);
+        return new HashMap<String, ManagedObjectReference>(vApps);
+    }
+
+    @Override
+    public List<VAppVmInfo>
+    getvAppVms(ManagedObjectReference vAppMor) throws Exception
+    {
+        simulateCall(OP_PROPERTY);
+        List<VAppVmInfo> vmInfoList = new ArrayList<VAppVmInfo>();
+        List<SimVm> simVms = vAppVms.get(vAppMor.getVal());
+
+        if (simVms != null) {
+            for (SimVm simVm : simVms) {
+                vmInfoList.add(new VAppVmInfo(simVm.vmMor, simVm.powerState, simVm.hostMor, VM_COMMITTED_BYTES));
+            }
+        }
+        return vmInfoList;
+    }
+
+    @Override
+    public TaskHandle
+    clonevApp(ManagedObjectReference srcvAppMor, String newvAppName, ManagedObjectReference resPoolMor,
+        final VAppCloneSpec cloneSpec) throws Exception
+    {
+        return cloneTask(OP_CLONE, newvAppName, cloneSpec.getHost(), srcvAppMor.getVal());
+    }
+
+    @Override
+    public TaskHandle
+    linkedClonevApp(ManagedObjectReference srcvAppMor, String newvAppName, ManagedObjectReference resPoolMor,
+        ManagedObjectReference vmFolderMor, ManagedObjectReference hostMor, ManagedObjectReference dsMor)
+        throws Exception
+    {
+        return cloneTask(OP_LINKED_CLONE, newvAppName, hostMor, null);
+    }
+
+    private TaskHandle
+    cloneTask(String op, final String newvAppName, final ManagedObjectReference hostMor, String sourceKey)
+    {
+        return scheduleTask(op, new TaskAction() {
+            @Override
+            public Object
+            apply()
+            {
+                return createvApp(newvAppName, hostMor);
+            }
+        }, sourceKey);
+    }
+
+    @Override
+    public TaskHandle
+    powerOnMultiVM(ManagedObjectReference dcMor, final List<ManagedObjectReference> vmMors) throws Exception
+    {
+        return scheduleTask(OP_POWER_ON, new TaskAction() {
+            @Override
+            public Object
+            apply()
+            {
+                setPowerState(vmMors, VirtualMachinePowerState.poweredOn);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Tools running and heartbeat are the same here, both follow guestready latency after power on
+     */
+    @Override
+    public CompletableFuture<Boolean>
+    watchGuestReady(List<ManagedObjectReference> vmMors, String condition) throws Exception
+    {
+        final CompletableFuture<Boolean> readyFuture = new CompletableFuture<Boolean>();
+        long readyAtMs = 0;
+
+        for (ManagedObjectReference vmMor : vmMors) {
+            SimVm simVm = vms.get(vmMor.getVal());
+            readyAtMs = Math.max(readyAtMs, simVm != null ? simVm.guestReadyAtMs : Long.MAX_VALUE);
+        }
+
+        // Guests that never get ready (powered off or gone) leave the future pending, like the real watcher
+        if (readyAtMs != Long.MAX_VALUE) {
+            taskCompleter.schedule(new Runnable() {
+                @Override
+                public void
+                run()
+                {
+                    readyFuture.complete(Boolean.TRUE);
+                }
+            }, Math.max(0, readyAtMs - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        }
+        return readyFuture;
+    }
+
+    @Override
+    public void
+    unwatchGuestReady(List<ManagedObjectReference> vmMors)
+    {
+        // nothing registered
+    }
+
+    @Override
+    public List<TaskHandle>
+    powerOffVMs(ManagedObjectReference vAppMor, final List<ManagedObjectReference> vmMors) throws Exception
+    {
+        // Simulated vApp-level power off, one task for all VMs
+        List<TaskHandle> taskHandles = new ArrayList<TaskHandle>();
+        taskHandles.add(scheduleTask(OP_POWER_OFF, new TaskAction() {
+            @Override
+            public Object
+            apply()
+            {
+                setPowerState(vmMors, VirtualMachinePowerState.poweredOff);
+                return null;
+            }
+        }));
+        return taskHandles;
+    }
+
+    /**
+     * Snapshots are not tracked, taking and reverting to one only takes time
+     */
+    @Override
+    public List<TaskHandle>
+    snapshotVMs(List<ManagedObjectReference> vmMors, String snapshotName) throws Exception
+    {
+        return snapshotTasks(vmMors, null);
+    }
+
+    @Override
+    public List<TaskHandle>
+    revertVMs(final List<ManagedObjectReference> vmMors, String snapshotName) throws Exception
+    {
+        // Snapshots are taken powered off, reverting leaves the VM powered off
+        return snapshotTasks(vmMors, VirtualMachinePowerState.poweredOff);
+    }
+
+    private List<TaskHandle>
+    snapshotTasks(List<ManagedObjectReference> vmMors, final VirtualMachinePowerState revertedState)
+    {
+        List<TaskHandle> taskHandles = new ArrayList<TaskHandle>();
+
+        for (final ManagedObjectReference vmMor : vmMors) {
+            taskHandles.add(scheduleTask(OP_SNAPSHOT, new TaskAction() {
+                @Override
+                public Object
+                apply()
+                {
+                    if (revertedState != null) {
+                        setPowerState(Collections.singletonList(vmMor), revertedState);
+                    }
+                    return null;
+                }
+            }));
+        }
+        return taskHandles;
+    }
+
+    @Override
+    public TaskHandle
+    destroy(final ManagedObjectReference entityMor) throws Exception
+    {
+        return scheduleTask(OP_DESTROY, new TaskAction() {
+            @Override
+            public Object
+            apply()
+            {
+                List<SimVm> simVms = vAppVms.remove(entityMor.getVal());
+                if (simVms != null) {
+                    for (SimVm simVm : simVms) {
+                        vms.remove(simVm.vmMor.getVal());
+                    }
+                }
+                for (Map.Entry<String, ManagedObjectReference> entry : vApps.entrySet()) {
+                    if (entry.getValue().getVal().equals(entityMor.getVal())) {
+                        vApps.remove(entry.getKey());
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Effect of a simulated task, applied when the task succeeds. Returns TaskInfo.result
+     */
+    interface TaskAction
+    {
+        Object
+        apply();
+    }
+
+    /**
+     * Complete a task after the operation's simulated latency, failing it at the configured rate.
+     * Beyond vcenter.maxtasks running tasks, new tasks stay queued until a running one completes
+     */
+    private TaskHandle
+    scheduleTask(final String op, final TaskAction action)
+    {
+        return scheduleTask(op, action, null);
+    }
+
+    /**
+     * Task reading from the given source vApp, slowed down while more than clone.source.streams tasks read from it
+     */
+    private TaskHandle
+    scheduleTask(final String op, final TaskAction action, final String sourceKey)
+    {
+        final SimTask simTask = new SimTask(newMor("Task"));
+        final boolean fail = ThreadLocalRandom.current().nextDouble() < opSettings.get(op)[2];
+        final boolean hang = ThreadLocalRandom.current().nextDouble() < opSettings.get(op)[3];
+        tasks.put(simTask.taskMor.getVal(), simTask);
+
+        startOrQueue(new Runnable() {
+            @Override
+            public void
+            run()
+            {
+                double latencyFactor = 1.0;
+
+                synchronized (simTask) {
+                    // Cancelled while queued, give back the slot it just got
+                    if (simTask.finished) {
+                        taskFinished();
+                        return;
+                    }
+                    simTask.startTime = Calendar.getInstance();
+                    simTask.sourceClones = sourceClones(sourceKey);
+
+                    if (simTask.sourceClones != null) {
+                        latencyFactor = Math.max(1.0,
+                            simTask.sourceClones.incrementAndGet() / (double) sourceStreams);
+                    }
+                }
+
+                // A hung task only ends when it is cancelled
+                if (hang) {
+                    return;
+                }
+
+                taskCompleter.schedule(new Runnable() {
+                    @Override
+                    public void
+                    run()
+                    {
+                        if (!simTask.finish()) {
+                            return;
+                        }
+                        TaskInfo taskInfo = simTask.newTaskInfo();
+
+                        if (fail) {
+                            LocalizedMethodFault fault = new LocalizedMethodFault();
+                            fault.setLocalizedMessage("Simulated task failure");
+                            taskInfo.setState(TaskInfoState.error);
+                            taskInfo.setError(fault);
+                        } else {
+                            taskInfo.setResult(action.apply());
+                            taskInfo.setState(TaskInfoState.success);
+                        }
+                        release(simTask);
+                        simTask.completion.complete(taskInfo);
+                    }
+                }, (long) (sampleLatencyMs(op) * latencyFactor), TimeUnit.MILLISECONDS);
+            }
+        });
+
+        return new TaskHandle(simTask.taskMor, simTask.completion);
+    }
+
+    /**
+     * Cancelled tasks fail right away and their operation does not take effect
+     */
+    @Override
+    public void
+    cancelTask(TaskHandle task) throws Exception
+    {
+        simulateCall(OP_PROPERTY);
+        if (task.getTaskMor() == null) {
+            return;
+        }
+        SimTask simTask = tasks.get(task.getTaskMor().getVal());
+        boolean started;
+
+        if (simTask == null) {
+            return;
+        }
+        synchronized (simTask) {
+            if (!simTask.finish()) {
+                return;
+            }
+            started = simTask.startTime != null;
+        }
+
+        TaskInfo taskInfo = simTask.newTaskInfo();
+        LocalizedMethodFault fault = new LocalizedMethodFault();
+        fault.setLocalizedMessage("The task was canceled by a user");
+        taskInfo.setState(TaskInfoState.error);
+        taskInfo.setError(fault);
+
+        if (started) {
+            release(simTask);
+        } else {
+            tasks.remove(simTask.taskMor.getVal());
+        }
+        simTask.completion.complete(taskInfo);
+    }
+
+    /**
+     * Free the vCenter task slot and source stream of a started task that finished
+     */
+    private void
+    release(SimTask simTask)
+    {
+        tasks.remove(simTask.taskMor.getVal());
+
+        if (simTask.sourceClones != null) {
+            simTask.sourceClones.decrementAndGet();
+        }
+        taskFinished();
+    }
+
+    private AtomicInteger
+    sourceClones(String sourceKey)
+    {
+        if (sourceKey == null || sourceStreams <= 0) {
+            return null;
+        }
+        AtomicInteger newCount = new AtomicInteger();
+        AtomicInteger count = activeSourceClones.putIfAbsent(sourceKey, newCount);
+        return count != null ? count : newCount;
+    }
+
+    private void
+    startOrQueue(Runnable taskStart)
+    {
+        synchronized (queuedTasks) {
+            if (maxRunningTasks > 0 && runningTasks >= maxRunningTasks) {
+                queuedTasks.add(taskStart);
+                return;
+            }
+            runningTasks++;
+        }
+        taskStart.run();
+    }
+
+    /**
+     * Running task completed, start the longest queued one in its place
+     */
+    private void
+    taskFinished()
+    {
+        Runnable nextStart;
+
+        synchronized (queuedTasks) {
+            nextStart = queuedTasks.poll();
+            if (nextStart == null) {
+                runningTasks--;
+            }
+        }
+        if (nextStart != null) {
+            nextStart.run();
+        }
+    }
+
+    /**
+     * Block the caller for a synchronous API call's simulated latency
+     */
+    private void
+    simulateCall(String op) throws InterruptedException
+    {
+        long latencyMs = sampleLatencyMs(op);
+
+        if (latencyMs > 0) {
+            Thread.sleep(latencyMs);
+        }
+    }
+
+    /**
+     * Log-normal latency around the operation's median
+     */
+    private long
+    sampleLatencyMs(String op)
+    {
+        double[] settings = opSettings.get(op);
+        double gaussian = settings[1] > 0 ? ThreadLocalRandom.current().nextGaussian() * settings[1] : 0;
+        return Math.max(0L, Math.round(settings[0] * Math.exp(gaussian)));
+    }
+
+    private ManagedObjectReference
+    createvApp(String vAppName, ManagedObjectReference hostMor)
+    {
+        ManagedObjectReference vAppMor = newMor("VirtualApp");
+        List<SimVm> simVms = new ArrayList<SimVm>();
+
+        for (int i = 0; i < vmsPerVApp; i++) {
+            SimVm simVm = new SimVm(newMor("VirtualMachine"), hostMor);
+            simVms.add(simVm);
+            vms.put(simVm.vmMor.getVal(), simVm);
+        }
+        vAppVms.put(vAppMor.getVal(), simVms);
+        vApps.put(vAppName, vAppMor);
+        return vAppMor;
+    }
+
+    private void
+    setPowerState(List<ManagedObjectReference> vmMors, VirtualMachinePowerState powerState)
+    {
+        for (ManagedObjectReference vmMor : vmMors) {
+            SimVm simVm = vms.get(vmMor.getVal());
+            if (simVm != null) {
+                simVm.powerState = powerState;
+                simVm.guestReadyAtMs = powerState.equals(VirtualMachinePowerState.poweredOn)
+                    ? System.currentTimeMillis() + sampleLatencyMs(OP_GUEST_READY) : Long.MAX_VALUE;
+            }
+        }
+    }
+
+    private ManagedObjectReference
+    newMor(String type)
+    {
+        ManagedObjectReference mor = new ManagedObjectReference();
+        mor.setType(type);
+        mor.setVal(type.toLowerCase() + "-" + morCounter.incrementAndGet());
+        return mor;
+    }
+
+    /**
+     * Number of vApps currently in the simulated inventory, source vApp included
+     */
+    public int
+    getvAppCount()
+    {
+        return vApps.size();
+    }
+
+} // End of simulated backend class
@@ -0,0 +1,360 @@
+/**
+ * Shared watcher that tracks completion of all in-flight vSphere tasks through a single
+ * PropertyCollector filter (over a ListView of the tasks) and WaitForUpdatesEx, instead of
+ * polling TaskInfo of every task separately.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ *          The above copyright notice and this permission notice shall be
+ *          included in all copies or substantial portions of the Software.
+ *
+ *          THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *          EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ *          OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *          NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *          HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *          WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ *          FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ *          OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package vappdeployer;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.vmware.vim25.LocalizedMethodFault;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.ObjectUpdate;
+import com.vmware.vim25.ObjectUpdateKind;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertyFilterUpdate;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.SelectionSpec;
+import com.vmware.vim25.TaskInfo;
+import com.vmware.vim25.TaskInfoState;
+import com.vmware.vim25.TraversalSpec;
+import com.vmware.vim25.UpdateSet;
+import com.vmware.vim25.VimPortType;
+import com.vmware.vim25.WaitOptions;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.PropertyFilter;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.Task;
+
+public class TaskCompletionWatcher implements Runnable
+{
+    // Task properties the filter reports on
+    private static final String TASK_MOR_TYPE = "Task";
+    private static final String LIST_VIEW_MOR_TYPE = "ListView";
+    private static final String PROP_STATE = "info.state";
+    private static final String PROP_ERROR = "info.error";
+    private static final String PROP_RESULT = "info.result";
+    private static final String PROP_QUEUE_TIME = "info.queueTime";
+    private static final String PROP_START_TIME = "info.startTime";
+
+    // Max seconds a single WaitForUpdatesEx call stays parked on the server
+    private static final int MAX_WAIT_SECONDS = 30;
+
+    // Session, collector, filter and view are replaced when the session expires
+    private volatile ServiceInstance si;
+    private volatile VimPortType vimService;
+    private volatile PropertyCollector watcherPc;
+    private volatile PropertyFilter taskFilter;
+    private volatile ManagedObjectReference taskListViewMor;
+    private final SessionPool sessionPool;
+    private boolean ownSession = false;
+    private volatile EventLog events;
+    private Thread watcherThread;
+    private volatile boolean running = false;
+
+    // Task MOR value -> last known task info and the future completed on terminal state
+    private final ConcurrentMap<String, TaskInfo> taskInfoMap = new ConcurrentHashMap<String, TaskInfo>();
+    private final ConcurrentMap<String, CompletableFuture<TaskInfo>> pendingTasks =
+        new ConcurrentHashMap<String, CompletableFuture<TaskInfo>>();
+
+    /**
+     * Constructor, the session pool logs the watcher in again once its session expired
+     */
+    public
+    TaskCompletionWatcher(ServiceInstance si, SessionPool sessionPool)
+    {
+        this.si = si;
+        this.vimService = si.getServerConnection().getVimService();
+        this.sessionPool = sessionPool;
+    }
+
+    /**
+     * Report through the event log from now on, null prints to the console
+     */
+    public void
+    setEventLog(EventLog events)
+    {
+        this.events = events;
+    }
+
+    /**
+     * Create dedicated PropertyCollector, the task ListView, the filter over it and start watcher thread
+     */
+    public synchronized void
+    start() throws Exception
+    {
+        if (running) {
+            return;
+        }
+        createFilter();
+
+        running = true;
+        watcherThread = new Thread(this, "TaskCompletionWatcher");
+        watcherThread.setDaemon(true);
+        watcherThread.start();
+    }
+
+    private void
+    createFilter() throws Exception
+    {
+        // Dedicated collector, so WaitForUpdatesEx does not interfere with other property retrievals
+        watcherPc = si.getPropertyCollector().createPropertyCollector();
+        taskListViewMor = vimService.createListView(si.getServiceContent().getViewManager(),
+            new ManagedObjectReference[0]);
+
+        TraversalSpec viewTs = new TraversalSpec();
+        viewTs.setName("traverseTaskListView");
+        viewTs.setType(LIST_VIEW_MOR_TYPE);
+        viewTs.setPath("view");
+        viewTs.setSkip(Boolean.FALSE);
+
+        ObjectSpec viewOs = new ObjectSpec();
+        viewOs.setObj(taskListViewMor);
+        viewOs.setSkip(Boolean.TRUE);
+        viewOs.setSelectSet(new SelectionSpec[] { viewTs });
+
+        PropertySpec taskPs = new PropertySpec();
+        taskPs.setType(TASK_MOR_TYPE);
+        taskPs.setAll(Boolean.FALSE);
+        taskPs.setPathSet(new String[] { PROP_STATE, PROP_ERROR, PROP_RESULT, PROP_QUEUE_TIME, PROP_START_TIME });
+
+        PropertyFilterSpec pfs = new PropertyFilterSpec();
+        pfs.setObjectSet(new ObjectSpec[] { viewOs });
+        pfs.setPropSet(new PropertySpec[] { taskPs });
+        taskFilter = watcherPc.createFilter(pfs, true);
+    }
+
+    /**
+     * Log the watcher in on a new session of its own and put every task still pending into the new view, which
+     * reports their current state
+     */
+    private synchronized void
+    relogin() throws Exception
+    {
+        ServiceInstance expiredSi = si;
+        si = sessionPool.newSession();
+        vimService = si.getServerConnection().getVimService();
+        createFilter();
+
+        if (ownSession) {
+            try {
+                expiredSi.getServerConnection().logout();
+            } catch (Exception e) {
+                // session already gone
+            }
+        }
+        ownSession = true;
+
+        List<ManagedObjectReference> taskMors = new ArrayList<ManagedObjectReference>();
+        for (String taskKey : pendingTasks.keySet()) {
+            ManagedObjectReference taskMor = new ManagedObjectReference();
+            taskMor.setType(TASK_MOR_TYPE);
+            taskMor.setVal(taskKey);
+            taskMors.add(taskMor);
+        }
+        taskInfoMap.clear();
+
+        if (!taskMors.isEmpty()) {
+            vimService.modifyListView(taskListViewMor, taskMors.toArray(new ManagedObjectReference[taskMors.size()]),
+                null);
+        }
+    }
+
+    /**
+     * Register a task with the watcher, returned future completes once the task reaches success or error
+     */
+    public CompletableFuture<TaskInfo>
+    watch(Task task) throws Exception
+    {
+        String taskKey = task.getMOR().getVal();
+        CompletableFuture<TaskInfo> taskFuture = new CompletableFuture<TaskInfo>();
+        CompletableFuture<TaskInfo> existingFuture = pendingTasks.putIfAbsent(taskKey, taskFuture);
+
+        if (existingFuture != null) {
+            return existingFuture;
+        }
+
+        // Newly added objects are reported with their current state, so an already finished task is not missed
+        try {
+            vimService.modifyListView(taskListViewMor, new ManagedObjectReference[] { task.getMOR() }, null);
+        } catch (Exception e) {
+            // Not in the view, no update would ever complete it
+            pendingTasks.remove(taskKey, taskFuture);
+            taskFuture.completeExceptionally(e);
+            throw e;
+        }
+        return taskFuture;
+    }
+
+    /**
+     * Watcher loop - wait for property updates of all registered tasks
+     */
+    @Override
+    public void
+    run()
+    {
+        String version = "";
+        WaitOptions waitOpts = new WaitOptions();
+        waitOpts.setMaxWaitSeconds(MAX_WAIT_SECONDS);
+
+        while (running) {
+            try {
+                UpdateSet updateSet = watcherPc.waitForUpdatesEx(version, waitOpts);
+
+                // null UpdateSet means maxWaitSeconds elapsed without any change
+                if (updateSet == null) {
+                    continue;
+                }
+                version = updateSet.getVersion();
+
+                if (updateSet.getFilterSet() != null) {
+                    for (PropertyFilterUpdate filterUpdate : updateSet.getFilterSet()) {
+                        if (filterUpdate.getObjectSet() != null) {
+                            for (ObjectUpdate objUpdate : filterUpdate.getObjectSet()) {
+                                handleObjectUpdate(objUpdate);
+                            }
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                if (running && SessionPool.isSessionExpired(e)) {
+                    EventLog.errorOrPrint(events, "[Error] Task watcher session expired, logging in again");
+                    try {
+                        relogin();
+                    } catch (Exception loginEx) {
+                        EventLog.errorOrPrint(events, "[Error] Could not log task watcher in again: "
+                            + loginEx.getMessage());
+                    }
+                }
+                if (running) {
+                    EventLog.errorOrPrint(events,
+                        "[Error] Task watcher caught exception, re-syncing all watched tasks");
+                    // Empty version makes the next call report full state of every task in the view again
+                    version = "";
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException ie) {
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Apply property changes of one task and complete its future if it reached a terminal state
+     */
+    private void
+    handleObjectUpdate(ObjectUpdate objUpdate) throws Exception
+    {
+        String taskKey = objUpdate.getObj().getVal();
+
+        // Task left the view after completion, nothing more to track
+        if (objUpdate.getKind().equals(ObjectUpdateKind.leave)) {
+            taskInfoMap.remove(taskKey);
+            return;
+        }
+        TaskInfo taskInfo = taskInfoMap.get(taskKey);
+
+        if (taskInfo == null) {
+            taskInfo = new TaskInfo();
+            taskInfo.setTask(objUpdate.getObj());
+            taskInfoMap.put(taskKey, taskInfo);
+        }
+
+        if (objUpdate.getChangeSet() != null) {
+            for (PropertyChange change : objUpdate.getChangeSet()) {
+                if (change.getName().equals(PROP_STATE)) {
+                    taskInfo.setState((TaskInfoState) change.getVal());
+                } else if (change.getName().equals(PROP_ERROR)) {
+                    taskInfo.setError((LocalizedMethodFault) change.getVal());
+                } else if (change.getName().equals(PROP_RESULT)) {
+                    taskInfo.setResult(change.getVal());
+                } else if (change.getName().equals(PROP_QUEUE_TIME)) {
+                    taskInfo.setQueueTime((Calendar) change.getVal());
+                } else if (change.getName().equals(PROP_START_TIME)) {
+                    taskInfo.setStartTime((Calendar) change.getVal());
+                }
+            }
+        }
+
+        TaskInfoState taskState = taskInfo.getState();
+
+        if (taskState != null && (taskState.equals(TaskInfoState.success) || taskState.equals(TaskInfoState.error))) {
+            CompletableFuture<TaskInfo> taskFuture = pendingTasks.remove(taskKey);
+            taskInfoMap.remove(taskKey);
+            vimService.modifyListView(taskListViewMor, null, new ManagedObjectReference[] { objUpdate.getObj() });
+
+            if (taskFuture != null) {
+                taskFuture.complete(taskInfo);
+            }
+        }
+    }
+
+    /**
+     * Stop watcher thread, fail outstanding futures and destroy server side collector and view
+     */
+    public synchronized void
+    shutdown()
+    {
+        if (!running) {
+            return;
+        }
+        running = false;
+
+        for (CompletableFuture<TaskInfo> taskFuture : pendingTasks.values()) {
+            taskFuture.completeExceptionally(new IllegalStateException("Task watcher has been shut down"));
+        }
+        pendingTasks.clear();
+        taskInfoMap.clear();
+
+        try {
+            watcherPc.cancelWaitForUpdates();
+        } catch (Exception e) {
+            // eat out the exception
+        }
+        try {
+            taskFilter.destroyPropertyFilter();
+            vimService.destroyView(taskListViewMor);
+            watcherPc.destroyPropertyCollector();
+        } catch (Exception e) {
+            EventLog.errorOrPrint(events, "[Error] Unable to cleanup task watcher objects on server");
+        }
+        if (ownSession) {
+            try {
+                si.getServerConnection().logout();
+            } catch (Exception e) {
+                // session already gone
+            }
+        }
+    }
+
+} // End of task watcher class
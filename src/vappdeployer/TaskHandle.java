@@ -0,0 +1,88 @@
+/**
+ * Handle of a vSphere task started through a backend - the task MOR (null for operations a backend
+ * runs as several tasks) and a future completed with the final TaskInfo, once the task succeeded or failed.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ *          The above copyright notice and this permission notice shall be
+ *          included in all copies or substantial portions of the Software.
+ *
+ *          THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *          EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ *          OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *          NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *          HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *          WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ *          FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ *          OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package vappdeployer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.TaskInfo;
+
+public class TaskHandle
+{
+    private ManagedObjectReference taskMor;
+    private CompletableFuture<TaskInfo> completion;
+    // Tasks an operation without a task of its own runs as, added as they are submitted
+    private final List<ManagedObjectReference> subtaskMors = new CopyOnWriteArrayList<ManagedObjectReference>();
+
+    /**
+     * Constructor, taskMor is null for an operation that runs as several tasks
+     */
+    public
+    TaskHandle(ManagedObjectReference taskMor, CompletableFuture<TaskInfo> completion)
+    {
+        this.taskMor = taskMor;
+        this.completion = completion;
+    }
+
+    public ManagedObjectReference
+    getTaskMor()
+    {
+        return taskMor;
+    }
+
+    public List<ManagedObjectReference>
+    getSubtaskMors()
+    {
+        return subtaskMors;
+    }
+
+    /**
+     * Task MOR value for messages, or the subtask MOR values of an operation without a task of its own
+     */
+    public String
+    describe()
+    {
+        if (taskMor != null) {
+            return taskMor.getVal();
+        }
+        List<String> subtaskVals = new ArrayList<String>();
+
+        for (ManagedObjectReference subtaskMor : subtaskMors) {
+            subtaskVals.add(subtaskMor.getVal());
+        }
+        return subtaskVals.toString();
+    }
+
+    public CompletableFuture<TaskInfo>
+    getCompletion()
+    {
+        return completion;
+    }
+
+} // End of task handle class
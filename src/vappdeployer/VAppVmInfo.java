@@ -0,0 +1,186 @@
+/**
+ * VM list of a vApp along with power state, host and committed storage of each VM, fetched in one batched
+ * RetrieveProperties call (vApp -> vm traversal) instead of per VM getRuntime() round trips.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ *          The above copyright notice and this permission notice shall be
+ *          included in all copies or substantial portions of the Software.
+ *
+ *          THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *          EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ *          OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *          NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *          HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *          WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ *          FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ *          OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package vappdeployer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.vmware.vim25.DynamicProperty;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.RetrieveOptions;
+import com.vmware.vim25.RetrieveResult;
+import com.vmware.vim25.SelectionSpec;
+import com.vmware.vim25.TraversalSpec;
+import com.vmware.vim25.VirtualMachinePowerState;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.ServerConnection;
+
+public class VAppVmInfo
+{
+    // VC inventory related objects
+    private static final String VIRTUAL_APP_MOR_TYPE = "VirtualApp";
+    private static final String VM_MOR_TYPE = "VirtualMachine";
+    private static final String PROP_POWER_STATE = "runtime.powerState";
+    private static final String PROP_COMMITTED = "summary.storage.committed";
+    private static final String PROP_HOST = "runtime.host";
+    private static final int RETRIEVE_PAGE_SIZE = 1000;
+
+    private ManagedObjectReference vmMor;
+    private VirtualMachinePowerState powerState;
+    private ManagedObjectReference hostMor;
+    private long committedBytes;
+
+    VAppVmInfo(ManagedObjectReference vmMor, VirtualMachinePowerState powerState, ManagedObjectReference hostMor,
+        long committedBytes)
+    {
+        this.vmMor = vmMor;
+        this.powerState = powerState;
+        this.hostMor = hostMor;
+        this.committedBytes = committedBytes;
+    }
+
+    public ManagedObjectReference
+    getVmMor()
+    {
+        return vmMor;
+    }
+
+    public VirtualMachinePowerState
+    getPowerState()
+    {
+        return powerState;
+    }
+
+    public ManagedObjectReference
+    getHostMor()
+    {
+        return hostMor;
+    }
+
+    public long
+    getCommittedBytes()
+    {
+        return committedBytes;
+    }
+
+    /**
+     * Fetch all VMs of the vApp along with their power state in a single call
+     */
+    public static List<VAppVmInfo>
+    fetch(ServerConnection conn, ManagedObjectReference vAppMor) throws Exception
+    {
+        TraversalSpec vmTs = new TraversalSpec();
+        vmTs.setName("traverseVAppVms");
+        vmTs.setType(VIRTUAL_APP_MOR_TYPE);
+        vmTs.setPath("vm");
+        vmTs.setSkip(Boolean.FALSE);
+
+        ObjectSpec vAppOs = new ObjectSpec();
+        vAppOs.setObj(vAppMor);
+        vAppOs.setSkip(Boolean.TRUE);
+        vAppOs.setSelectSet(new SelectionSpec[] { vmTs });
+
+        PropertySpec vmPs = new PropertySpec();
+        vmPs.setType(VM_MOR_TYPE);
+        vmPs.setAll(Boolean.FALSE);
+        vmPs.setPathSet(new String[] { PROP_POWER_STATE, PROP_HOST, PROP_COMMITTED });
+
+        PropertyFilterSpec pfs = new PropertyFilterSpec();
+        pfs.setObjectSet(new ObjectSpec[] { vAppOs });
+        pfs.setPropSet(new PropertySpec[] { vmPs });
+
+        RetrieveOptions retrieveOpts = new RetrieveOptions();
+        retrieveOpts.setMaxObjects(RETRIEVE_PAGE_SIZE);
+
+        List<VAppVmInfo> vmInfoList = new ArrayList<VAppVmInfo>();
+        PropertyCollector pc = conn.getServiceInstance().getPropertyCollector();
+        RetrieveResult result = pc.retrievePropertiesEx(new PropertyFilterSpec[] { pfs }, retrieveOpts);
+
+        while (result != null) {
+            if (result.getObjects() == null) {
+                break;
+            }
+            for (ObjectContent oc : result.getObjects()) {
+                VirtualMachinePowerState vmPowerState = null;
+                ManagedObjectReference vmHost = null;
+                long vmCommitted = 0L;
+
+                if (oc.getPropSet() != null) {
+                    for (DynamicProperty dp : oc.getPropSet()) {
+                        if (dp.getName().equals(PROP_POWER_STATE)) {
+                            vmPowerState = (VirtualMachinePowerState) dp.getVal();
+                        } else if (dp.getName().equals(PROP_HOST)) {
+                            vmHost = (ManagedObjectReference) dp.getVal();
+                        } else if (dp.getName().equals(PROP_COMMITTED)) {
+                            vmCommitted = ((Long) dp.getVal()).longValue();
+                        }
+                    }
+                }
+                vmInfoList.add(new VAppVmInfo(oc.getObj(), vmPowerState, vmHost, vmCommitted));
+            }
+            if (result.getToken() == null) {
+                break;
+            }
+            result = pc.continueRetrievePropertiesEx(result.getToken());
+        }
+        return vmInfoList;
+    }
+
+    /**
+     * Storage committed by all the given VMs, i.e. roughly the space a full clone of the vApp needs
+     */
+    public static long
+    totalCommittedBytes(List<VAppVmInfo> vmInfoList)
+    {
+        long total = 0L;
+
+        for (VAppVmInfo vmInfo : vmInfoList) {
+            total += vmInfo.getCommittedBytes();
+        }
+        return total;
+    }
+
+    /**
+     * MORs of the given VMs, optionally only those in the given power state
+     */
+    public static List<ManagedObjectReference>
+    vmMors(List<VAppVmInfo> vmInfoList, VirtualMachinePowerState stateFilter)
+    {
+        List<ManagedObjectReference> vmMors = new ArrayList<ManagedObjectReference>();
+
+        for (VAppVmInfo vmInfo : vmInfoList) {
+            if (stateFilter == null || stateFilter.equals(vmInfo.getPowerState())) {
+                vmMors.add(vmInfo.getVmMor());
+            }
+        }
+        return vmMors;
+    }
+
+} // End of vApp VM info class
@@ -0,0 +1,317 @@
+/**
+ * Multi vCenter fan-out - one deployer per vCenter, each with its own source vApp, credentials, sessions and
+ * concurrency budget, all running in parallel, with per vCenter and overall statistics at the end.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ *          The above copyright notice and this permission notice shall be
+ *          included in all copies or substantial portions of the Software.
+ *
+ *          THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *          EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ *          OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *          NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *          HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *          WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ *          FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ *          OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package vappdeployer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class VCenterFanOut
+{
+    // One (optionally double quoted) argument of a vCenters file line
+    private static final Pattern ARG_PATTERN = Pattern.compile("\"([^\"]*)\"|(\\S+)");
+
+    private final List<VCenterRun> vCenterRuns = new ArrayList<VCenterRun>();
+    private String reportDir;
+
+    /**
+     * Deployer of one vCenter and how its run went
+     */
+    static class VCenterRun
+    {
+        final String label;
+        final String[] args;
+        DeployvApp deployer;
+        long wallMs = 0L;
+        boolean completed = false;
+
+        VCenterRun(String label, String[] args)
+        {
+            this.label = label;
+            this.args = args;
+        }
+    }
+
+    /**
+     * Constructor. Every non empty line of the vCenters file holds the arguments of one vCenter (--vsphereip,
+     * --username, --password, --srcvapp, --sessions, --maxconcurrent, ... and an optional --label), on top of
+     * the arguments given on the command line
+     */
+    public
+    VCenterFanOut(String vCentersFile, String[] sharedArgs) throws IOException
+    {
+        List<String> shared = new ArrayList<String>();
+
+        // Command line arguments apply to every vCenter, except the vCenters file itself
+        for (int i = 0; i < sharedArgs.length; i++) {
+            if (sharedArgs[i].equals("--vcenters")) {
+                i++;
+            } else if (sharedArgs[i].equals("--reportdir") && i + 1 < sharedArgs.length) {
+                reportDir = sharedArgs[++i];
+            } else {
+                shared.add(sharedArgs[i]);
+            }
+        }
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(vCentersFile), "UTF-8"));
+
+        try {
+            String line;
+
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                List<String> vcArgs = parseLine(line);
+                String label = argValue(vcArgs, "--label");
+
+                if (label == null) {
+                    label = argValue(vcArgs, "--vsphereip");
+                }
+                if (label == null) {
+                    label = "vcenter-" + (vCenterRuns.size() + 1);
+                }
+
+                List<String> args = new ArrayList<String>(shared);
+
+                // Keep journals, event traces and reports of the vCenters apart
+                if (argValue(vcArgs, "--journal") == null) {
+                    String sharedJournal = argValue(shared, "--journal");
+                    args.add("--journal");
+                    args.add(sharedJournal == null ? "vAppDeployer-" + label + ".journal"
+                        : labelledPath(sharedJournal, label));
+                }
+                String sharedTrace = argValue(shared, "--eventlog");
+                if (sharedTrace != null && argValue(vcArgs, "--eventlog") == null) {
+                    args.add("--eventlog");
+                    args.add(labelledPath(sharedTrace, label));
+                }
+                if (reportDir != null && argValue(vcArgs, "--reportdir") == null) {
+                    args.add("--reportdir");
+                    args.add(new File(reportDir, label).getPath());
+                }
+
+                // Later arguments win, so the vCenter's own settings override the shared ones
+                args.addAll(vcArgs);
+                args.add("--label");
+                args.add(label);
+                vCenterRuns.add(new VCenterRun(label, args.toArray(new String[args.size()])));
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Path with the label inserted before its extension, run.journal -> run-siteA.journal
+     */
+    private static String
+    labelledPath(String path, String label)
+    {
+        File file = new File(path);
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String labelledName = dot > 0 ? name.substring(0, dot) + "-" + label + name.substring(dot)
+            : name + "-" + label;
+        return new File(file.getParentFile(), labelledName).getPath();
+    }
+
+    private static List<String>
+    parseLine(String line)
+    {
+        List<String> args = new ArrayList<String>();
+        Matcher matcher = ARG_PATTERN.matcher(line);
+
+        while (matcher.find()) {
+            args.add(matcher.group(1) != null ? matcher.group(1) : matcher.group(2));
+        }
+        return args;
+    }
+
+    private static String
+    argValue(List<String> args, String key)
+    {
+        String value = null;
+
+        for (int i = 0; i + 1 < args.size(); i++) {
+            if (args.get(i).equals(key)) {
+                value = args.get(i + 1);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Validate and log into every vCenter, then run all of them in parallel and print the comparison
+     */
+    public boolean
+    run() throws Exception
+    {
+        if (vCenterRuns.isEmpty()) {
+            System.err.println("[Error] No vCenters found in vCenters file");
+            return false;
+        }
+
+        for (VCenterRun vCenterRun : vCenterRuns) {
+            System.out.println("========== vCenter: " + vCenterRun.label + " ==========");
+            vCenterRun.deployer = new DeployvApp(vCenterRun.args);
+
+            if (!vCenterRun.deployer.validateProperties()) {
+                System.err.println("[Error] Invalid settings for vCenter: " + vCenterRun.label + " "
+                    + Arrays.toString(maskPassword(vCenterRun.args)));
+
+                // None of them runs, drop the sessions of the ones validated so far
+                for (VCenterRun validatedRun : vCenterRuns) {
+                    if (validatedRun.deployer == null) {
+                        break;
+                    }
+                    validatedRun.deployer.logout();
+                }
+                return false;
+            }
+        }
+
+        // Each vCenter's lifecycles run on its own scheduler, this only waits for their handlers
+        ExecutorService vCenterExecutor = Executors.newFixedThreadPool(vCenterRuns.size());
+        List<Future<?>> allRuns = new ArrayList<Future<?>>();
+
+        for (final VCenterRun vCenterRun : vCenterRuns) {
+            allRuns.add(vCenterExecutor.submit(new Runnable() {
+                @Override
+                public void
+                run()
+                {
+                    long startTime = System.currentTimeMillis();
+
+                    try {
+                        vCenterRun.deployer.vAppDeploymentHandler();
+                        vCenterRun.completed = true;
+                    } catch (Exception e) {
+                        System.err.println("[Error] Deployment on vCenter: " + vCenterRun.label + " failed");
+                        e.printStackTrace();
+                    }
+                    vCenterRun.wallMs = System.currentTimeMillis() - startTime;
+                }
+            }));
+        }
+
+        for (Future<?> tempRun : allRuns) {
+            tempRun.get();
+        }
+        vCenterExecutor.shutdown();
+
+        printComparison();
+        return true;
+    }
+
+    private static String[]
+    maskPassword(String[] args)
+    {
+        String[] masked = args.clone();
+
+        for (int i = 0; i + 1 < masked.length; i++) {
+            if (masked[i].equals("--password")) {
+                masked[i + 1] = "******";
+            }
+        }
+        return masked;
+    }
+
+    /**
+     * Per vCenter and overall lifecycle statistics, then the overall phase latencies and report
+     */
+    private void
+    printComparison()
+    {
+        PhaseMetrics overall = new PhaseMetrics();
+        long overallWallMs = 0L;
+
+        System.out.println("------------------------------------ vCenter comparison ------------------------------------");
+        System.out.println(String.format("%-24s %10s %7s %9s %12s %9s %9s %9s %9s", "vCenter", "Lifecycles",
+            "Failed", "Wall (s)", "Per minute", "p50 (s)", "p90 (s)", "Clone p50", "Clone p90"));
+
+        for (VCenterRun vCenterRun : vCenterRuns) {
+            PhaseMetrics metrics = vCenterRun.deployer.getMetrics();
+            overall.merge(metrics, vCenterRun.label);
+            overallWallMs = Math.max(overallWallMs, vCenterRun.wallMs);
+
+            printRow(vCenterRun.completed ? vCenterRun.label : vCenterRun.label + " (aborted)", metrics,
+                vCenterRun.wallMs);
+        }
+        printRow("overall", overall, overallWallMs);
+        System.out.println("--------------------------------------------------------------------------------------------");
+
+        RunReport runReport = new RunReport(overall);
+        System.out.println("Overall phase latencies, all vCenters:");
+        runReport.printSummary();
+
+        if (reportDir != null) {
+            try {
+                runReport.write(reportDir);
+            } catch (Exception e) {
+                System.err.println("[Error] Unable to write run report to: " + reportDir);
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static void
+    printRow(String label, PhaseMetrics metrics, long wallMs)
+    {
+        LatencyHistogram lifecycles = metrics.getHistograms()
+            .get(PhaseMetrics.PHASE_LIFECYCLE + "|" + PhaseMetrics.ALL_HOSTS);
+        LatencyHistogram clones = metrics.getHistograms().get(PhaseMetrics.PHASE_CLONE + "|" + PhaseMetrics.ALL_HOSTS);
+        long failed = 0L;
+
+        for (PhaseMetrics.Sample sample : metrics.getSamples()) {
+            if (sample.phase.equals(PhaseMetrics.PHASE_LIFECYCLE) && !sample.succeeded) {
+                failed++;
+            }
+        }
+        long count = lifecycles != null ? lifecycles.getCount() : 0L;
+
+        System.out.println(String.format(Locale.ROOT, "%-24s %10d %7d %9.1f %12.1f %9.1f %9.1f %9.1f %9.1f", label,
+            count, failed, wallMs / 1000.0, count * 60000.0 / Math.max(1L, wallMs),
+            lifecycles != null ? lifecycles.getPercentile(50) / 1000.0 : 0.0,
+            lifecycles != null ? lifecycles.getPercentile(90) / 1000.0 : 0.0,
+            clones != null ? clones.getPercentile(50) / 1000.0 : 0.0,
+            clones != null ? clones.getPercentile(90) / 1000.0 : 0.0));
+    }
+
+} // End of vCenter fan-out class
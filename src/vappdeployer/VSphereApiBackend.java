@@ -0,0 +1,664 @@
+/**
+ * Backend running the deployer's vSphere operations against a live vCenter/ESXi through vijava.
+ * Task completion is tracked by the shared TaskCompletionWatcher.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ *          The above copyright notice and this permission notice shall be
+ *          included in all copies or substantial portions of the Software.
+ *
+ *          THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *          EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ *          OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *          NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *          HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *          WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ *          FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ *          OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package vappdeployer;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import com.vmware.vim25.DatastoreSummary;
+import com.vmware.vim25.DynamicProperty;
+import com.vmware.vim25.HostHardwareSummary;
+import com.vmware.vim25.HostListSummaryQuickStats;
+import com.vmware.vim25.HostSystemConnectionState;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.RetrieveOptions;
+import com.vmware.vim25.RetrieveResult;
+import com.vmware.vim25.SelectionSpec;
+import com.vmware.vim25.TaskInfo;
+import com.vmware.vim25.TaskInfoState;
+import com.vmware.vim25.TraversalSpec;
+import com.vmware.vim25.VAppCloneSpec;
+import com.vmware.vim25.VirtualAppVAppState;
+import com.vmware.vim25.mo.ContainerView;
+import com.vmware.vim25.mo.Datacenter;
+import com.vmware.vim25.mo.ManagedEntity;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.Task;
+import com.vmware.vim25.mo.VirtualApp;
+import com.vmware.vim25.mo.VirtualMachine;
+import com.vmware.vim25.mo.VirtualMachineSnapshot;
+
+public class VSphereApiBackend implements VSphereBackend
+{
+    // VC inventory related objects
+    private static final String DC_MOR_TYPE = "Datacenter";
+    private static final String FOLDER_MOR_TYPE = "Folder";
+    private static final String COMPUTE_RESOURCE_MOR_TYPE = "ComputeResource";
+    private static final String HOST_MOR_TYPE = "HostSystem";
+    private static final String DATASTORE_MOR_TYPE = "Datastore";
+    private static final String VIRTUAL_APP_MOR_TYPE = "VirtualApp";
+    private static final String CONTAINER_VIEW_MOR_TYPE = "ContainerView";
+
+    // Objects returned per RetrievePropertiesEx page
+    private static final int RETRIEVE_PAGE_SIZE = 1000;
+
+    private final int sessionPoolSize;
+    private final int keepAliveSeconds;
+    private SessionPool sessionPool;
+    private ServiceInstance primarySi;
+    private TaskCompletionWatcher taskWatcher;
+    private GuestReadinessWatcher readinessWatcher;
+    private final Map<String, LinkedCloneDeployer> linkedCloneDeployers = new HashMap<String, LinkedCloneDeployer>();
+    private ExecutorService linkedCloneExecutor;
+    private volatile EventLog events;
+
+    /**
+     * Constructors
+     */
+    public
+    VSphereApiBackend()
+    {
+        this(SessionPool.DEFAULT_SIZE, SessionPool.DEFAULT_KEEPALIVE_SECONDS);
+    }
+
+    public
+    VSphereApiBackend(int sessionPoolSize, int keepAliveSeconds)
+    {
+        this.sessionPoolSize = sessionPoolSize;
+        this.keepAliveSeconds = keepAliveSeconds;
+
+        // JVM keeps only 5 idle HTTP connections per server by default, let every session keep a few
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", String.valueOf(Math.max(5, sessionPoolSize * 4)));
+        }
+    }
+
+    /**
+     * Login to VC, start the task watcher on that session and fill the session pool
+     */
+    @Override
+    public void
+    login(String url, String userName, String password) throws Exception
+    {
+        primarySi = new ServiceInstance(new URL(url), userName, password, true);
+
+        sessionPool = new SessionPool(url, userName, password, sessionPoolSize, keepAliveSeconds);
+
+        // Single watcher for all in-flight tasks across deployment threads, its long poll keeps the session alive.
+        // Should the session expire anyway, the watcher logs in again through the pool
+        taskWatcher = new TaskCompletionWatcher(primarySi, sessionPool);
+        taskWatcher.start();
+
+        sessionPool.start(primarySi);
+    }
+
+    @Override
+    public synchronized void
+    setEventLog(EventLog events)
+    {
+        this.events = events;
+        sessionPool.setEventLog(events);
+        taskWatcher.setEventLog(events);
+
+        if (readinessWatcher != null) {
+            readinessWatcher.setEventLog(events);
+        }
+        for (LinkedCloneDeployer linkedCloneDeployer : linkedCloneDeployers.values()) {
+            linkedCloneDeployer.setEventLog(events);
+        }
+    }
+
+    @Override
+    public void
+    logout()
+    {
+        if (taskWatcher != null) {
+            taskWatcher.shutdown();
+        }
+        synchronized (this) {
+            if (readinessWatcher != null) {
+                readinessWatcher.shutdown();
+            }
+        }
+        if (linkedCloneExecutor != null) {
+            linkedCloneExecutor.shutdownNow();
+        }
+        if (sessionPool != null) {
+            sessionPool.shutdown();
+        }
+    }
+
+    /**
+     * One RetrievePropertiesEx over a ContainerView of the whole inventory, parent links resolved in memory
+     */
+    @Override
+    public InventoryData
+    loadInventory() throws Exception
+    {
+        return sessionPool.execute(new SessionPool.SessionCall<InventoryData>() {
+            @Override
+            public InventoryData call(ServiceInstance si) throws Exception
+            {
+                return loadInventory(si);
+            }
+        });
+    }
+
+    private InventoryData
+    loadInventory(ServiceInstance si) throws Exception
+    {
+        InventoryData data = new InventoryData();
+
+        // Parent links of hosts, compute resources and folders, resolved to datacenter in memory
+        Map<String, ManagedObjectReference> parentMap = new HashMap<String, ManagedObjectReference>();
+        Map<String, ManagedObjectReference> computeResPoolMap = new HashMap<String, ManagedObjectReference>();
+        Map<String, String> computeResNameMap = new HashMap<String, String>();
+
+        // Host runtime state and load, combined into host health once all are read
+        Map<String, HostSystemConnectionState> connStateMap = new HashMap<String, HostSystemConnectionState>();
+        Map<String, Boolean> maintenanceMap = new HashMap<String, Boolean>();
+        Map<String, HostListSummaryQuickStats> quickStatsMap = new HashMap<String, HostListSummaryQuickStats>();
+        Map<String, HostHardwareSummary> hardwareMap = new HashMap<String, HostHardwareSummary>();
+
+        String[] viewTypes = new String[] { DC_MOR_TYPE, FOLDER_MOR_TYPE, COMPUTE_RESOURCE_MOR_TYPE, HOST_MOR_TYPE,
+            DATASTORE_MOR_TYPE, VIRTUAL_APP_MOR_TYPE };
+        ContainerView inventoryView = si.getViewManager().createContainerView(si.getRootFolder(), viewTypes, true);
+
+        try {
+            PropertySpec[] propSpecs = new PropertySpec[] {
+                createPropertySpec(DC_MOR_TYPE, "vmFolder"),
+                createPropertySpec(FOLDER_MOR_TYPE, "parent"),
+                createPropertySpec(COMPUTE_RESOURCE_MOR_TYPE, "name", "parent", "resourcePool"),
+                createPropertySpec(HOST_MOR_TYPE, "name", "parent", "datastore", "runtime.connectionState",
+                    "runtime.inMaintenanceMode", "summary.quickStats", "summary.hardware"),
+                createPropertySpec(DATASTORE_MOR_TYPE, "summary"),
+                createPropertySpec(VIRTUAL_APP_MOR_TYPE, "name") };
+
+            for (ObjectContent oc : retrieveAll(si, inventoryView.getMOR(), propSpecs)) {
+                ManagedObjectReference mor = oc.getObj();
+                String type = mor.getType();
+
+                if (oc.getPropSet() == null) {
+                    continue;
+                }
+
+                for (DynamicProperty dp : oc.getPropSet()) {
+                    String prop = dp.getName();
+                    Object val = dp.getVal();
+
+                    if (type.equals(DC_MOR_TYPE)) {
+                        data.dcVmFolders.put(mor.getVal(), (ManagedObjectReference) val);
+                    } else if (type.equals(HOST_MOR_TYPE)) {
+                        data.hosts.put(mor.getVal(), mor);
+                        if (prop.equals("name")) {
+                            data.hostNames.put(mor.getVal(), (String) val);
+                        } else if (prop.equals("parent")) {
+                            parentMap.put(mor.getVal(), (ManagedObjectReference) val);
+                        } else if (prop.equals("datastore")) {
+                            List<ManagedObjectReference> dsList = new ArrayList<ManagedObjectReference>();
+                            if (val != null) {
+                                for (ManagedObjectReference dsMor : (ManagedObjectReference[]) val) {
+                                    dsList.add(dsMor);
+                                }
+                            }
+                            data.hostDatastores.put(mor.getVal(), dsList);
+                        } else if (prop.equals("runtime.connectionState")) {
+                            connStateMap.put(mor.getVal(), (HostSystemConnectionState) val);
+                        } else if (prop.equals("runtime.inMaintenanceMode")) {
+                            maintenanceMap.put(mor.getVal(), (Boolean) val);
+                        } else if (prop.equals("summary.quickStats")) {
+                            quickStatsMap.put(mor.getVal(), (HostListSummaryQuickStats) val);
+                        } else if (prop.equals("summary.hardware")) {
+                            hardwareMap.put(mor.getVal(), (HostHardwareSummary) val);
+                        }
+                    } else if (type.equals(DATASTORE_MOR_TYPE)) {
+                        data.dsSummaries.put(mor.getVal(), (DatastoreSummary) val);
+                    } else if (type.equals(VIRTUAL_APP_MOR_TYPE)) {
+                        data.vApps.put((String) val, mor);
+                    } else if (prop.equals("parent")) {
+                        // Folders and compute resources (including clusters)
+                        parentMap.put(mor.getVal(), (ManagedObjectReference) val);
+                    } else if (prop.equals("resourcePool")) {
+                        computeResPoolMap.put(mor.getVal(), (ManagedObjectReference) val);
+                    } else if (prop.equals("name")) {
+                        computeResNameMap.put(mor.getVal(), (String) val);
+                    }
+                }
+            }
+        } finally {
+            inventoryView.destroyView();
+        }
+
+        for (String hostKey : data.hosts.keySet()) {
+            // Host's parent is its (cluster) compute resource, deploy into its root resource pool
+            ManagedObjectReference computeResMor = parentMap.get(hostKey);
+            if (computeResMor != null) {
+                data.hostResPools.put(hostKey, computeResPoolMap.get(computeResMor.getVal()));
+                data.hostClusters.put(hostKey, computeResNameMap.get(computeResMor.getVal()));
+            }
+
+            // Usage from quickStats against the host's capacity, MHz and MB
+            HostListSummaryQuickStats quickStats = quickStatsMap.get(hostKey);
+            HostHardwareSummary hardware = hardwareMap.get(hostKey);
+            int cpuPercent = 0;
+            int memPercent = 0;
+            if (quickStats != null && hardware != null) {
+                if (quickStats.getOverallCpuUsage() != null) {
+                    cpuPercent = HostHealth.usagePercent(quickStats.getOverallCpuUsage(),
+                        (long) hardware.getCpuMhz() * hardware.getNumCpuCores());
+                }
+                if (quickStats.getOverallMemoryUsage() != null) {
+                    memPercent = HostHealth.usagePercent(quickStats.getOverallMemoryUsage(),
+                        hardware.getMemorySize() / (1024 * 1024));
+                }
+            }
+            boolean connected = connStateMap.get(hostKey) == HostSystemConnectionState.connected;
+            data.hostHealth.put(hostKey, new HostHealth(connected, Boolean.TRUE.equals(maintenanceMap.get(hostKey)),
+                cpuPercent, memPercent));
+
+            ManagedObjectReference tempMor = computeResMor;
+            while (tempMor != null && !tempMor.getType().equals(DC_MOR_TYPE)) {
+                tempMor = parentMap.get(tempMor.getVal());
+            }
+            if (tempMor != null) {
+                data.hostDatacenters.put(hostKey, tempMor);
+            }
+        }
+        return data;
+    }
+
+    @Override
+    public Map<String, ManagedObjectReference>
+    loadvApps() throws Exception
+    {
+        return sessionPool.execute(new SessionPool.SessionCall<Map<String, ManagedObjectReference>>() {
+            @Override
+            public Map<String, ManagedObjectReference> call(ServiceInstance si) throws Exception
+            {
+                return loadvApps(si);
+            }
+        });
+    }
+
+    private Map<String, ManagedObjectReference>
+    loadvApps(ServiceInstance si) throws Exception
+    {
+        Map<String, ManagedObjectReference> vApps = new HashMap<String, ManagedObjectReference>();
+        ContainerView vAppView = si.getViewManager().createContainerView(si.getRootFolder(),
+            new String[] { VIRTUAL_APP_MOR_TYPE }, true);
+
+        try {
+            for (ObjectContent oc : retrieveAll(si, vAppView.getMOR(),
+                new PropertySpec[] { createPropertySpec(VIRTUAL_APP_MOR_TYPE, "name") })) {
+                if (oc.getPropSet() != null) {
+                    vApps.put((String) oc.getPropSet()[0].getVal(), oc.getObj());
+                }
+            }
+        } finally {
+            vAppView.destroyView();
+        }
+        return vApps;
+    }
+
+    @Override
+    public List<VAppVmInfo>
+    getvAppVms(final ManagedObjectReference vAppMor) throws Exception
+    {
+        return sessionPool.execute(new SessionPool.SessionCall<List<VAppVmInfo>>() {
+            @Override
+            public List<VAppVmInfo> call(ServiceInstance si) throws Exception
+            {
+                return VAppVmInfo.fetch(si.getServerConnection(), vAppMor);
+            }
+        });
+    }
+
+    @Override
+    public TaskHandle
+    clonevApp(final ManagedObjectReference srcvAppMor, final String newvAppName,
+        final ManagedObjectReference resPoolMor, final VAppCloneSpec cloneSpec) throws Exception
+    {
+        return watch(sessionPool.execute(new SessionPool.SessionCall<Task>() {
+            @Override
+            public Task call(ServiceInstance si) throws Exception
+            {
+                VirtualApp srcvAppObject = new VirtualApp(si.getServerConnection(), srcvAppMor);
+                return srcvAppObject.cloneVApp_Task(newvAppName, resPoolMor, cloneSpec);
+            }
+        }));
+    }
+
+    /**
+     * Linked clone runs as several tasks (create vApp, one clone per VM), the returned handle has no task MOR,
+     * it gets the per VM clone tasks as subtasks once they are submitted and completes once all of them did
+     */
+    @Override
+    public TaskHandle
+    linkedClonevApp(ManagedObjectReference srcvAppMor, String newvAppName, ManagedObjectReference resPoolMor,
+        ManagedObjectReference vmFolderMor, ManagedObjectReference hostMor, ManagedObjectReference dsMor)
+        throws Exception
+    {
+        LinkedCloneDeployer linkedCloneDeployer;
+
+        synchronized (this) {
+            if (linkedCloneExecutor == null) {
+                linkedCloneExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread
+                    newThread(Runnable r)
+                    {
+                        Thread t = new Thread(r, "vAppDeployer-linked-clone");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+            // One deployer per source vApp, its first linked clone prepares the base snapshots, others share that
+            linkedCloneDeployer = linkedCloneDeployers.get(srcvAppMor.getVal());
+            if (linkedCloneDeployer == null) {
+                linkedCloneDeployer = new LinkedCloneDeployer(sessionPool, srcvAppMor, taskWatcher,
+                    linkedCloneExecutor);
+                linkedCloneDeployer.setEventLog(events);
+                linkedCloneDeployers.put(srcvAppMor.getVal(), linkedCloneDeployer);
+            }
+        }
+
+        final CompletableFuture<TaskInfo> completion = new CompletableFuture<TaskInfo>();
+        TaskHandle linkedCloneTask = new TaskHandle(null, completion);
+
+        linkedCloneDeployer.deploy(newvAppName, resPoolMor, vmFolderMor, hostMor, dsMor,
+            linkedCloneTask.getSubtaskMors()).thenApply(new Function<ManagedObjectReference, TaskInfo>() {
+                @Override
+                public TaskInfo
+                apply(ManagedObjectReference newvAppMor)
+                {
+                    TaskInfo taskInfo = new TaskInfo();
+                    taskInfo.setState(newvAppMor != null ? TaskInfoState.success : TaskInfoState.error);
+                    taskInfo.setResult(newvAppMor);
+                    return taskInfo;
+                }
+            }).whenComplete(new BiConsumer<TaskInfo, Throwable>() {
+                @Override
+                public void
+                accept(TaskInfo taskInfo, Throwable t)
+                {
+                    if (t != null) {
+                        completion.completeExceptionally(t);
+                    } else {
+                        completion.complete(taskInfo);
+                    }
+                }
+            });
+        return linkedCloneTask;
+    }
+
+    @Override
+    public TaskHandle
+    powerOnMultiVM(final ManagedObjectReference dcMor, final List<ManagedObjectReference> vmMors) throws Exception
+    {
+        return watch(sessionPool.execute(new SessionPool.SessionCall<Task>() {
+            @Override
+            public Task call(ServiceInstance si) throws Exception
+            {
+                VirtualMachine[] vms = new VirtualMachine[vmMors.size()];
+
+                for (int i = 0; i < vms.length; i++) {
+                    vms[i] = new VirtualMachine(si.getServerConnection(), vmMors.get(i));
+                }
+                return new Datacenter(si.getServerConnection(), dcMor).powerOnMultiVM_Task(vms);
+            }
+        }));
+    }
+
+    /**
+     * Guest status comes from one shared watcher, started on first use
+     */
+    @Override
+    public CompletableFuture<Boolean>
+    watchGuestReady(List<ManagedObjectReference> vmMors, String condition) throws Exception
+    {
+        synchronized (this) {
+            if (readinessWatcher == null) {
+                readinessWatcher = new GuestReadinessWatcher(primarySi, sessionPool);
+                readinessWatcher.setEventLog(events);
+                readinessWatcher.start();
+            }
+        }
+        return readinessWatcher.watch(vmMors, condition);
+    }
+
+    @Override
+    public synchronized void
+    unwatchGuestReady(List<ManagedObjectReference> vmMors)
+    {
+        if (readinessWatcher != null) {
+            readinessWatcher.unwatch(vmMors);
+        }
+    }
+
+    @Override
+    public List<TaskHandle>
+    powerOffVMs(final ManagedObjectReference vAppMor, final List<ManagedObjectReference> vmMors) throws Exception
+    {
+        List<Task> tasks = sessionPool.execute(new SessionPool.SessionCall<List<Task>>() {
+            @Override
+            public List<Task> call(ServiceInstance si) throws Exception
+            {
+                List<Task> tasks = new ArrayList<Task>();
+                VirtualApp vAppObject = new VirtualApp(si.getServerConnection(), vAppMor);
+
+                // vApp-level stop needs the vApp started, VMs powered on one by one leave it stopped
+                if (VirtualAppVAppState.started.equals(vAppObject.getSummary().getVAppState())) {
+                    tasks.add(vAppObject.powerOffVApp_Task(true));
+                } else {
+                    for (ManagedObjectReference vmMor : vmMors) {
+                        tasks.add(new VirtualMachine(si.getServerConnection(), vmMor).powerOffVM_Task());
+                    }
+                }
+                return tasks;
+            }
+        });
+
+        return watchAll(tasks);
+    }
+
+    @Override
+    public List<TaskHandle>
+    snapshotVMs(final List<ManagedObjectReference> vmMors, final String snapshotName) throws Exception
+    {
+        List<Task> tasks = sessionPool.execute(new SessionPool.SessionCall<List<Task>>() {
+            @Override
+            public List<Task> call(ServiceInstance si) throws Exception
+            {
+                List<Task> tasks = new ArrayList<Task>();
+
+                for (ManagedObjectReference vmMor : vmMors) {
+                    tasks.add(new VirtualMachine(si.getServerConnection(), vmMor).createSnapshot_Task(snapshotName,
+                        "Taken by vAppDeployer", false, false));
+                }
+                return tasks;
+            }
+        });
+        return watchAll(tasks);
+    }
+
+    @Override
+    public List<TaskHandle>
+    revertVMs(final List<ManagedObjectReference> vmMors, final String snapshotName) throws Exception
+    {
+        List<Task> tasks = sessionPool.execute(new SessionPool.SessionCall<List<Task>>() {
+            @Override
+            public List<Task> call(ServiceInstance si) throws Exception
+            {
+                List<Task> tasks = new ArrayList<Task>();
+
+                for (ManagedObjectReference vmMor : vmMors) {
+                    VirtualMachine vm = new VirtualMachine(si.getServerConnection(), vmMor);
+                    ManagedObjectReference snapshotMor = LinkedCloneDeployer.findSnapshot(vm.getSnapshot(),
+                        snapshotName);
+
+                    if (snapshotMor == null) {
+                        throw new IllegalStateException("Could not find snapshot: " + snapshotName + " on VM: "
+                            + vmMor.getVal());
+                    }
+                    tasks.add(new VirtualMachineSnapshot(si.getServerConnection(), snapshotMor)
+                        .revertToSnapshot_Task(null));
+                }
+                return tasks;
+            }
+        });
+        return watchAll(tasks);
+    }
+
+    @Override
+    public TaskHandle
+    destroy(final ManagedObjectReference entityMor) throws Exception
+    {
+        return watch(sessionPool.execute(new SessionPool.SessionCall<Task>() {
+            @Override
+            public Task call(ServiceInstance si) throws Exception
+            {
+                return new ManagedEntity(si.getServerConnection(), entityMor).destroy_Task();
+            }
+        }));
+    }
+
+    /**
+     * An operation without a task of its own is cancelled through its subtasks, the ones that already completed
+     * can not be cancelled and are skipped
+     */
+    @Override
+    public void
+    cancelTask(final TaskHandle task) throws Exception
+    {
+        sessionPool.execute(new SessionPool.SessionCall<Void>() {
+            @Override
+            public Void call(ServiceInstance si) throws Exception
+            {
+                if (task.getTaskMor() != null) {
+                    new Task(si.getServerConnection(), task.getTaskMor()).cancelTask();
+                    return null;
+                }
+                Exception cancelEx = null;
+
+                for (ManagedObjectReference subtaskMor : task.getSubtaskMors()) {
+                    try {
+                        new Task(si.getServerConnection(), subtaskMor).cancelTask();
+                    } catch (Exception e) {
+                        cancelEx = e;
+                    }
+                }
+                if (cancelEx != null) {
+                    throw cancelEx;
+                }
+                return null;
+            }
+        });
+    }
+
+    private TaskHandle
+    watch(Task task) throws Exception
+    {
+        return new TaskHandle(task.getMOR(), taskWatcher.watch(task));
+    }
+
+    private List<TaskHandle>
+    watchAll(List<Task> tasks) throws Exception
+    {
+        List<TaskHandle> taskHandles = new ArrayList<TaskHandle>();
+        for (Task task : tasks) {
+            taskHandles.add(watch(task));
+        }
+        return taskHandles;
+    }
+
+    /**
+     * Retrieve properties of all objects in the view, following RetrievePropertiesEx paging
+     */
+    private List<ObjectContent>
+    retrieveAll(ServiceInstance si, ManagedObjectReference viewMor, PropertySpec[] propSpecs) throws Exception
+    {
+        TraversalSpec viewTs = new TraversalSpec();
+        viewTs.setName("traverseInventoryView");
+        viewTs.setType(CONTAINER_VIEW_MOR_TYPE);
+        viewTs.setPath("view");
+        viewTs.setSkip(Boolean.FALSE);
+
+        ObjectSpec viewOs = new ObjectSpec();
+        viewOs.setObj(viewMor);
+        viewOs.setSkip(Boolean.TRUE);
+        viewOs.setSelectSet(new SelectionSpec[] { viewTs });
+
+        PropertyFilterSpec pfs = new PropertyFilterSpec();
+        pfs.setObjectSet(new ObjectSpec[] { viewOs });
+        pfs.setPropSet(propSpecs);
+
+        RetrieveOptions retrieveOpts = new RetrieveOptions();
+        retrieveOpts.setMaxObjects(RETRIEVE_PAGE_SIZE);
+
+        List<ObjectContent> allObjects = new ArrayList<ObjectContent>();
+        PropertyCollector pc = si.getPropertyCollector();
+        RetrieveResult result = pc.retrievePropertiesEx(new PropertyFilterSpec[] { pfs }, retrieveOpts);
+
+        while (result != null) {
+            if (result.getObjects() != null) {
+                for (ObjectContent oc : result.getObjects()) {
+                    allObjects.add(oc);
+                }
+            }
+            if (result.getToken() == null) {
+                break;
+            }
+            result = pc.continueRetrievePropertiesEx(result.getToken());
+        }
+        return allObjects;
+    }
+
+    private static PropertySpec
+    createPropertySpec(String type, String... props)
+    {
+        PropertySpec ps = new PropertySpec();
+        ps.setType(type);
+        ps.setAll(Boolean.FALSE);
+        ps.setPathSet(props);
+        return ps;
+    }
+
+} // End of vSphere API backend class
@@ -0,0 +1,134 @@
+/**
+ * vSphere operations used by the deployer. VSphereApiBackend runs them against a live vCenter,
+ * SimulatedBackend against an in-process simulated inventory, to measure the orchestration logic alone.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ *          The above copyright notice and this permission notice shall be
+ *          included in all copies or substantial portions of the Software.
+ *
+ *          THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *          EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ *          OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *          NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ *          HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *          WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ *          FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ *          OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package vappdeployer;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.VAppCloneSpec;
+
+public interface VSphereBackend
+{
+    /**
+     * Login to the server, throws if the login failed
+     */
+    void
+    login(String url, String userName, String password) throws Exception;
+
+    /**
+     * Stop task tracking and logout
+     */
+    void
+    logout();
+
+    /**
+     * Load hosts, their resource pools, datacenters, datastores and all vApps in bulk
+     */
+    InventoryData
+    loadInventory() throws Exception;
+
+    /**
+     * Load only the vApp name -> MOR index
+     */
+    Map<String, ManagedObjectReference>
+    loadvApps() throws Exception;
+
+    /**
+     * VMs of the vApp with power state, host and committed storage
+     */
+    List<VAppVmInfo>
+    getvAppVms(ManagedObjectReference vAppMor) throws Exception;
+
+    /**
+     * Full clone of the vApp, TaskInfo.result of the task is the new vApp
+     */
+    TaskHandle
+    clonevApp(ManagedObjectReference srcvAppMor, String newvAppName, ManagedObjectReference resPoolMor,
+        VAppCloneSpec cloneSpec) throws Exception;
+
+    /**
+     * Linked clone of the vApp's VMs into a new vApp, TaskInfo.result of the task is the new vApp
+     */
+    TaskHandle
+    linkedClonevApp(ManagedObjectReference srcvAppMor, String newvAppName, ManagedObjectReference resPoolMor,
+        ManagedObjectReference vmFolderMor, ManagedObjectReference hostMor, ManagedObjectReference dsMor)
+        throws Exception;
+
+    TaskHandle
+    powerOnMultiVM(ManagedObjectReference dcMor, List<ManagedObjectReference> vmMors) throws Exception;
+
+    /**
+     * Future completes once guests of all VMs meet the condition (ReadinessGate.READY_TOOLS or READY_HEARTBEAT)
+     */
+    CompletableFuture<Boolean>
+    watchGuestReady(List<ManagedObjectReference> vmMors, String condition) throws Exception;
+
+    /**
+     * Stop watching VMs whose readiness the caller gave up waiting for
+     */
+    void
+    unwatchGuestReady(List<ManagedObjectReference> vmMors);
+
+    /**
+     * Power off the given (running) VMs of a vApp - a single vApp-level task where the vApp itself is started,
+     * otherwise one task per VM, all submitted together
+     */
+    List<TaskHandle>
+    powerOffVMs(ManagedObjectReference vAppMor, List<ManagedObjectReference> vmMors) throws Exception;
+
+    /**
+     * Take a snapshot of the given VMs, one task per VM
+     */
+    List<TaskHandle>
+    snapshotVMs(List<ManagedObjectReference> vmMors, String snapshotName) throws Exception;
+
+    /**
+     * Revert the given VMs to their snapshot of that name, one task per VM
+     */
+    List<TaskHandle>
+    revertVMs(List<ManagedObjectReference> vmMors, String snapshotName) throws Exception;
+
+    /**
+     * Destroy a vApp (with its VMs) or any other managed entity
+     */
+    TaskHandle
+    destroy(ManagedObjectReference entityMor) throws Exception;
+
+    /**
+     * Ask vCenter to cancel the task, tasks that can no longer be cancelled run to completion
+     */
+    void
+    cancelTask(TaskHandle task) throws Exception;
+
+    /**
+     * Report session, watcher and linked clone messages through the event log, null prints them to the console
+     */
+    void
+    setEventLog(EventLog events);
+
+} // End of vSphere backend interface